@@ -8,4 +8,12 @@ public interface Bufferable {
      */
     String id();
 
+    /**
+     * @return the cost of holding this instance in a weighted FSFTBuffer, such as
+     * the bytes of memory it takes. By default every instance weighs 1.
+     */
+    default long weight() {
+        return 1;
+    }
+
 }
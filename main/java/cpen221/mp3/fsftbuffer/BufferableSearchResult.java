@@ -0,0 +1,89 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Representation Invariants (RI):
+ * query != null, and query equals normalize(query)
+ * results != null, and results.size() <= limit if limit >= 0
+ *
+ * Abstraction Function (AF):
+ * Datatype used to store the results of a search in a FSFT buffer, under its normalized query.
+ * results are the titles the wiki returned when it was searched for query with limit, at time
+ * fetched. Searches return their results in a fixed order, so the results of a search with a
+ * smaller limit are the first ones of results. If limit is -1, or the wiki returned fewer than
+ * limit results, results are every result there is, and answer a search with any limit.
+ *
+ * Thread Safety:
+ * BufferableSearchResult is immutable.
+ */
+public class BufferableSearchResult implements Bufferable {
+
+    private final String query;
+    private final int limit;
+    private final List<String> results;
+    private final long fetched;
+
+    /**
+     * @param query   the normalized query that was searched for.
+     *                query != null, and query equals normalize(query)
+     * @param limit   the limit it was searched with, or -1 for unlimited results.
+     *                limit >= -1
+     * @param results the results of the search.
+     *                results != null
+     * @param fetched the time, in milliseconds, at which the wiki was searched
+     */
+    public BufferableSearchResult(String query, int limit, List<String> results, long fetched) {
+        this.query = query;
+        this.limit = limit;
+        this.results = List.copyOf(results);
+        this.fetched = fetched;
+    }
+
+    public String id() {
+        return query;
+    }
+
+    /**
+     * @return the time, in milliseconds, at which the wiki was searched
+     */
+    public long fetched() {
+        return fetched;
+    }
+
+    /**
+     * @param limit the limit of a search for the same query.
+     *              limit >= -1
+     * @return true if the results held are enough to answer the search
+     */
+    public boolean answers(int limit) {
+        if (this.limit < 0 || results.size() < this.limit) {
+            return true;
+        }
+        return limit >= 0 && limit <= this.limit;
+    }
+
+    /**
+     * @param limit the limit of a search for the same query.
+     *              limit >= -1, and answers(limit)
+     * @return the results of the search, which the caller may modify
+     */
+    public List<String> results(int limit) {
+        if (limit < 0 || limit >= results.size()) {
+            return new ArrayList<>(results);
+        }
+        return new ArrayList<>(results.subList(0, limit));
+    }
+
+    /**
+     * Searches ignore case, so queries that differ only in case share one result.
+     * @param query a query.
+     *              query != null
+     * @return the key under which the results of query are stored
+     */
+    public static String normalize(String query) {
+        return query.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,23 +1,172 @@
 package cpen221.mp3.fsftbuffer;
 
-/**
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Representation Invariants (RI):
+ * title != null
+ * exactly one of page and compressed is non-null
+ * if compressed != null, it inflates to exactly pageBytes bytes, the UTF-8 encoding of the page
+ *
+ * Abstraction Function (AF):
  * Datatype used to store pages from wikipedia into a FSFT buffer.
+ * A page of fewer than COMPRESSION_THRESHOLD characters is kept as its String, page. A longer one is
+ * kept only as compressed, the deflated UTF-8 bytes of its text, which take a fraction of the memory
+ * of the String, and is inflated again each time its text is asked for. A page that deflate does not
+ * shrink, or that is not valid UTF-16, is kept as its String whatever its length.
+ *
+ * Thread Safety:
+ * BufferableWikiPage is immutable, and every call to getPageText inflates with an Inflater of its own.
  */
 public class BufferableWikiPage implements Bufferable {
 
-    private String page;
-    private String title;
+    /* pages shorter than this, in characters, are not worth compressing */
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    private final String title;
+    private final String page;
+    private final byte[] compressed;
+    private final int pageBytes;
 
     public BufferableWikiPage(String title, String page) {
-        this.page = page;
         this.title = title;
+        ByteBuffer encoded = page.length() < COMPRESSION_THRESHOLD ? null : encode(page);
+        byte[] deflated = encoded == null ? null : deflate(encoded);
+        this.page = deflated == null ? page : null;
+        this.compressed = deflated;
+        this.pageBytes = deflated == null ? 0 : encoded.limit();
+    }
+
+    private BufferableWikiPage(String title, String page, byte[] compressed, int pageBytes) {
+        this.title = title;
+        this.page = page;
+        this.compressed = compressed;
+        this.pageBytes = pageBytes;
     }
 
     public String id() {
-        return new String(this.title);
+        return title;
     }
 
+    /**
+     * @return the text of the page. A page stored compressed is inflated again on every call.
+     */
     public String getPageText() {
-        return new String(this.page);
+        if (page != null) {
+            return page;
+        }
+        byte[] bytes = new byte[pageBytes];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int inflated = 0;
+            while (inflated < bytes.length) {
+                int read = inflater.inflate(bytes, inflated, bytes.length - inflated);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("page ends early");
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Error in reading cached page.", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the bytes of memory the text of the page takes: its deflated bytes if it
+     *         is compressed, or two per character if it is not
+     */
+    @Override
+    public long weight() {
+        return compressed != null ? compressed.length : 2L * page.length();
+    }
+
+    /**
+     * @return true if the page is kept as its deflated UTF-8 text
+     */
+    boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * @return the length of the UTF-8 text of a compressed page, or 0 for any other page
+     */
+    int pageBytes() {
+        return pageBytes;
+    }
+
+    /**
+     * @return the deflated UTF-8 text of a compressed page, the UTF-8 text of any other page, or
+     *         null if the page is not valid UTF-16 and so has no UTF-8 text. The array must not be
+     *         modified.
+     */
+    byte[] storedBytes() {
+        if (compressed != null) {
+            return compressed;
+        }
+        ByteBuffer encoded = encode(page);
+        return encoded == null ? null : Arrays.copyOf(encoded.array(), encoded.limit());
+    }
+
+    /**
+     * Creates the page that storedBytes returned bytes for.
+     * @param title      the title of the page.
+     *                   title != null
+     * @param bytes      what storedBytes returned. The page keeps it, so it must not be modified.
+     *                   bytes != null
+     * @param compressed what isCompressed returned
+     * @param pageBytes  what pageBytes returned
+     * @return the page
+     */
+    static BufferableWikiPage fromStored(String title, byte[] bytes, boolean compressed, int pageBytes) {
+        if (compressed) {
+            return new BufferableWikiPage(title, null, bytes, pageBytes);
+        }
+        return new BufferableWikiPage(title, new String(bytes, StandardCharsets.UTF_8), null, 0);
+    }
+
+    // Helper Methods in private
+
+    //the UTF-8 encoding of page, or null if page is not valid UTF-16
+    private static ByteBuffer encode(String page) {
+        try {
+            return StandardCharsets.UTF_8.newEncoder().encode(CharBuffer.wrap(page));
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    //the deflated bytes of encoded, or null if deflate does not make them smaller
+    private static byte[] deflate(ByteBuffer encoded) {
+        int length = encoded.remaining();
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(encoded);
+            deflater.finish();
+            byte[] out = new byte[length / 2];
+            int deflated = 0;
+            while (!deflater.finished()) {
+                if (deflated == out.length) {
+                    if (out.length >= length) {
+                        return null;
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, length));
+                }
+                deflated += deflater.deflate(out, deflated, out.length - deflated);
+            }
+            return out.length == deflated ? out : Arrays.copyOf(out, deflated);
+        } finally {
+            deflater.end();
+        }
     }
 }
@@ -0,0 +1,19 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * Receives the objects a FSFTBuffer evicts to make room for new ones, for instance to keep
+ * them in a larger, slower tier.
+ */
+public interface EvictionListener<T extends Bufferable> {
+
+    /**
+     * Called once for every object that is evicted before it has timed out, because the
+     * buffer was full, after the buffer has released its locks. Objects that time out are
+     * not passed on.
+     *
+     * @param t      the evicted object
+     * @param expiry the time, in milliseconds, at which t would have timed out had it stayed
+     *               in the buffer
+     */
+    void evicted(T t, long expiry);
+}
@@ -0,0 +1,300 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/*
+ * Representation Invariants (RI):
+ * index.size() == size -> every linked node is indexed and every indexed node is linked
+ * for each node n in the list, n.next.expiry >= n.expiry (up to clock adjustments) -> nodes are
+ * kept in the order in which they were last refreshed, which is also the order of their expiry
+ * times because every entry shares the same timeout. An object added back with the expiry it
+ * had before is placed where that expiry puts it, as if last refreshed then.
+ * weight is the sum of the weights of the nodes in the list
+ *
+ * Abstraction Function (AF):
+ * ExpiryQueue holds the objects of one FSFTBuffer (or one segment of it). Each object in the
+ * queue is represented by a node in index keyed by its id(), and the linked list that starts
+ * after head holds the same nodes from the earliest expiry time to the latest. The node right
+ * after head is therefore both the least recently accessed object and the first one to time out.
+ * Each node also keeps the weight weigher gave its object when it was added or replaced, and
+ * weight is their total, so that the owner can keep the queue within a budget.
+ *
+ * Thread Safety:
+ * ExpiryQueue is not thread safe. The owner must guard every call with its own lock.
+ */
+class ExpiryQueue<T extends Bufferable> {
+
+    private final Map<String, Node<T>> index;
+    private final Node<T> head;
+    private final ToLongFunction<? super T> weigher;
+    private int size;
+    private long weight;
+
+    private static final class Node<T> {
+        final String id;
+        T value;
+        long expiry;
+        long weight;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(String id, T value, long expiry) {
+            this.id = id;
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * An object removed to make room, and the time at which it would have timed out.
+     */
+    static final class Eviction<T> {
+        final T value;
+        final long expiry;
+
+        Eviction(T value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Create an empty queue.
+     *
+     * @param weigher gives the weight of each object added, weigher != null
+     */
+    ExpiryQueue(ToLongFunction<? super T> weigher) {
+        index = new HashMap<>();
+        head = new Node<>(null, null, Long.MIN_VALUE);
+        head.prev = head;
+        head.next = head;
+        this.weigher = weigher;
+        size = 0;
+        weight = 0;
+    }
+
+    /**
+     * @return the number of objects in the queue, including ones that have
+     * timed out but have not been swept yet
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the total weight of the objects in the queue, including ones that have
+     * timed out but have not been swept yet
+     */
+    long weight() {
+        return weight;
+    }
+
+    /**
+     * @param id  the identifier of the object to look for
+     * @param now the current time in milliseconds
+     * @return true if an object with the given id is in the queue and has
+     * not timed out at time now
+     */
+    boolean isLive(String id, long now) {
+        Node<T> node = index.get(id);
+        return node != null && node.expiry >= now;
+    }
+
+    /**
+     * Look up a live object and push its expiry time back.
+     * An object that has timed out is removed instead.
+     *
+     * @param id        the identifier of the object to look for
+     * @param now       the current time in milliseconds
+     * @param newExpiry the new expiry time of the object if it is live
+     * @return the object, or null if there is no live object with that id
+     */
+    T refresh(String id, long now, long newExpiry) {
+        Node<T> node = index.get(id);
+        if (node == null) {
+            return null;
+        }
+        if (node.expiry < now) {
+            unlink(node);
+            return null;
+        }
+        node.expiry = newExpiry;
+        moveToTail(node);
+        return node.value;
+    }
+
+    /**
+     * Replace the object stored under t.id() and push its expiry time back.
+     * An object that has timed out is removed instead.
+     *
+     * @param t         the new object
+     * @param now       the current time in milliseconds
+     * @param newExpiry the new expiry time of the object if it is live
+     * @return true if a live object was replaced, false otherwise
+     */
+    boolean replace(T t, long now, long newExpiry) {
+        Node<T> node = index.get(t.id());
+        if (node == null) {
+            return false;
+        }
+        if (node.expiry < now) {
+            unlink(node);
+            return false;
+        }
+        setValue(node, t);
+        node.expiry = newExpiry;
+        moveToTail(node);
+        return true;
+    }
+
+    /**
+     * Add an object, replacing any object that already has the same id. It is placed
+     * after every object that times out no later than it, so an object given the
+     * latest expiry is added as the most recently accessed one, in constant time.
+     *
+     * @param t      the object to add
+     * @param expiry the time, in milliseconds, at which the object times out
+     */
+    void add(T t, long expiry) {
+        String id = t.id();
+        Node<T> node = index.get(id);
+        if (node == null) {
+            node = new Node<>(id, null, expiry);
+            setValue(node, t);
+            index.put(id, node);
+            size++;
+        } else {
+            setValue(node, t);
+            node.expiry = expiry;
+            detach(node);
+        }
+        attachAfter(node, lastNotAfter(expiry));
+    }
+
+    /**
+     * Remove the object with the given id, if any.
+     *
+     * @param id the identifier of the object to remove
+     * @return the removed object, or null if there was none
+     */
+    T remove(String id) {
+        Node<T> node = index.get(id);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        return node.value;
+    }
+
+    /**
+     * Remove the heaviest of the least recently accessed objects. With a sample of 1 this
+     * is the least recently accessed object; with a larger one, a heavy object is removed
+     * before lighter ones that were accessed about as long ago, freeing more weight at once.
+     *
+     * @param sample the number of least recently accessed objects to choose from, sample >= 1
+     * @param keep   the identifier of an object that must not be removed, or null
+     * @return the removed object, or null if there is no object but the one to keep
+     */
+    Eviction<T> evict(int sample, String keep) {
+        Node<T> victim = victim(sample, keep);
+        if (victim == null) {
+            return null;
+        }
+        unlink(victim);
+        return new Eviction<>(victim.value, victim.expiry);
+    }
+
+    /**
+     * @param sample the number of least recently accessed objects to choose from, sample >= 1
+     * @param keep   the identifier of an object that must not be removed, or null
+     * @return the identifier of the object evict would remove, or null if it would remove none
+     */
+    String victimId(int sample, String keep) {
+        Node<T> victim = victim(sample, keep);
+        return victim == null ? null : victim.id;
+    }
+
+    /**
+     * Remove objects that have timed out, starting from the one that expires first.
+     * Since the queue is ordered by expiry time, the sweep stops at the first live object,
+     * so the cost is proportional to the number of objects removed.
+     *
+     * @param now the current time in milliseconds
+     * @param max the maximum number of objects to remove, max >= 0
+     * @return the number of objects removed
+     */
+    int sweep(long now, int max) {
+        int removed = 0;
+        while (removed < max && size > 0 && head.next.expiry < now) {
+            unlink(head.next);
+            removed++;
+        }
+        return removed;
+    }
+
+    // Helper Methods in private
+
+    //the heaviest of the sample least recently accessed nodes other than keep, the eldest of them on a tie
+    private Node<T> victim(int sample, String keep) {
+        Node<T> victim = null;
+        int seen = 0;
+        for (Node<T> node = head.next; node != head && seen < sample; node = node.next) {
+            if (node.id.equals(keep)) {
+                continue;
+            }
+            if (victim == null || node.weight > victim.weight) {
+                victim = node;
+            }
+            seen++;
+        }
+        return victim;
+    }
+
+    private void unlink(Node<T> node) {
+        detach(node);
+        index.remove(node.id);
+        size--;
+        weight -= node.weight;
+    }
+
+    private void setValue(Node<T> node, T t) {
+        long newWeight = weigher.applyAsLong(t);
+        weight += newWeight - node.weight;
+        node.value = t;
+        node.weight = newWeight;
+    }
+
+    private void moveToTail(Node<T> node) {
+        detach(node);
+        attachTail(node);
+    }
+
+    private void detach(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private void attachTail(Node<T> node) {
+        attachAfter(node, head.prev);
+    }
+
+    private void attachAfter(Node<T> node, Node<T> prev) {
+        node.prev = prev;
+        node.next = prev.next;
+        prev.next.prev = node;
+        prev.next = node;
+    }
+
+    //the last node that times out no later than expiry, or head if there is none
+    private Node<T> lastNotAfter(long expiry) {
+        Node<T> node = head.prev;
+        while (node != head && node.expiry > expiry) {
+            node = node.prev;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,63 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Abstraction Function (AF):
+ * ExpirySweeper removes the timed-out objects of every FSFTBuffer that sweeps in the background, on
+ * scheduler, a single daemon thread shared by all of them, so that any number of buffers cost one
+ * thread. Each buffer is swept by a chain of ticks: a tick removes at most DBATCH timed-out objects
+ * from each segment, holding only that segment's lock while it does, and schedules the next tick
+ * straight away if any segment had more, or DPERIOD later if none had. A burst of timeouts is
+ * therefore cleared in a quick run of short ticks, none of which blocks a segment for longer than it
+ * takes to remove DBATCH objects, and the ticks of other buffers run in between.
+ * Each segment's queue is already ordered by expiry time, so a tick finds the timed-out objects at its
+ * front without a separate heap or timing wheel of deadlines.
+ * A chain holds its buffer through a weak reference, and ends once the buffer has been collected, so
+ * sweeping never keeps a buffer that is no longer used alive.
+ *
+ * Thread Safety:
+ * scheduler is thread safe, and every tick of a buffer goes through FSFTBuffer.sweepExpired, which takes
+ * the lock of each segment in turn.
+ */
+final class ExpirySweeper {
+
+    /* the time, in milliseconds, between the ticks of a buffer that had nothing left to sweep */
+    static final long DPERIOD = 1000;
+
+    /* the most timed-out objects a tick removes from one segment while holding its lock */
+    static final int DBATCH = 256;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "fsftbuffer-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ExpirySweeper() {
+    }
+
+    /**
+     * Starts sweeping a buffer in the background, until it is collected.
+     *
+     * @param buffer the buffer to sweep, buffer != null
+     */
+    static void start(FSFTBuffer<?> buffer) {
+        WeakReference<FSFTBuffer<?>> reference = new WeakReference<>(buffer);
+        scheduler.schedule(() -> tick(reference), DPERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    // Helper Methods in private
+
+    private static void tick(WeakReference<FSFTBuffer<?>> reference) {
+        FSFTBuffer<?> buffer = reference.get();
+        if (buffer == null) {
+            return;
+        }
+        boolean more = buffer.sweepExpired(DBATCH);
+        scheduler.schedule(() -> tick(reference), more ? 0 : DPERIOD, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,29 +1,71 @@
 package cpen221.mp3.fsftbuffer;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
 
 /*
  * Representation Invariants (RI):
- * buffer.keySet().equals(timeMap.keySet()) -> keySet of buffer and timeMap match
- * buffer.keySet().size() <= fixedCapacity -> buffer and timeMap always have less keys than fixedCapacity
+ * segments.length >= 1
+ * the capacities of all segments add up to max(fixedCapacity, 0)
+ * segments[i].queue.weight() <= segments[i].capacity -> the buffer never holds more than fixedCapacity
+ * every object t is stored in segmentFor(t.id())
+ * every object in a queue expires exactly timeout milliseconds after it was last put, touched or updated,
+ *   or, if it was put with an expiry and has not been touched or updated since, at that expiry
  *
  * Abstraction Function (AF):
- * FSFTBuffer contains keys of buffer and timeMap in bufferables, where each key in buffer maps to an object
- * in the FSFTBuffer with that id() and each key in timeMap maps to the time at which the object mapped is timed-out
+ * FSFTBuffer contains the objects held in the queues of its segments, where each object is stored under
+ * its id() together with the time at which it is timed-out. Each queue keeps its objects ordered by that
+ * time, so the first object in a queue is both the least recently accessed object of its segment and the
+ * next one in that segment to time out.
  * Here,
- * fixedCapacity represents the numbers of bufferables allowed in the FSFTBuffer
+ * fixedCapacity represents the total weight of the bufferables allowed in the FSFTBuffer, where weigher
+ * gives the weight of each. In a buffer created by a constructor every bufferable weighs 1, so
+ * fixedCapacity is a number of bufferables; in one created by weighted, each weighs what its weight()
+ * reports, such as the bytes its page text takes, so fixedCapacity is a budget of memory.
  * timeout represents the amount of time that a bufferable can last without acted on by other methods.
  *
+ * Timed-out objects are removed lazily: a touch, get or update that finds one removes it, and every put
+ * sweeps the timed-out objects at the front of its segment's queue. Each object is swept at most once, so
+ * put, get, touch and update all run in amortized constant time.
+ * Left to that, a buffer that is idle, or only read, keeps its timed-out objects in memory indefinitely.
+ * Once sweepInBackground has been called, ExpirySweeper also removes them in the background, a bounded
+ * batch per segment at a time, within about ExpirySweeper.DPERIOD of when they time out.
+ *
+ * Segments:
+ * A buffer created with a concurrency level of 1 has a single segment and behaves as an exact LRU buffer.
+ * With a higher concurrency level, ids are spread over several segments and fixedCapacity is split between
+ * them, so the buffer as a whole still never holds more than fixedCapacity objects. Eviction is LRU within a
+ * segment only: a put evicts when its own segment holds ceil(fixedCapacity / segments) objects, even if other
+ * segments have room, and the object it evicts is the least recently accessed one of that segment rather
+ * than of the whole buffer. Since ids are spread over the segments by hash, a well-mixed workload fills the
+ * buffer close to fixedCapacity before it starts evicting.
+ * Timeouts are exact in every mode.
+ *
+ * Eviction:
+ * To make room, a buffer evicts the heaviest of the sample least recently accessed objects of the
+ * segment, as many times as it takes. sample is 1 in a buffer that counts objects, so it evicts exactly
+ * the least recently accessed one. A weighted buffer looks at EVICTION_SAMPLE of them, so that among
+ * pages that have gone about as long unread, a 500 KB article goes before the stubs that would each
+ * free a hundredth of its memory. An object heavier than the capacity of its segment is never held.
+ * An object evicted to make room for another before it has timed out is handed to listener, if there
+ * is one, together with the time at which it would have timed out, so that a second tier can keep it
+ * for exactly as long as the buffer would have.
+ *
+ * Admission:
+ * A buffer created with admission gives each segment a sketch, a FrequencySketch of how often each id
+ * has recently been put, touched or got in that segment, whether it was in the buffer or not. When a
+ * full segment would have to evict an object to make room for a new one, the new one is only admitted
+ * if the sketch has seen it more often than the object it would evict; otherwise put refuses it and
+ * the buffer is unchanged. A client sweeping through thousands of titles it asks for once therefore
+ * cannot flush the pages other clients keep asking for, while a title that starts being asked for
+ * often is admitted as soon as it has been asked for more often than the least recently used page.
+ *
  * To make FSFT Buffer Thread Safe:
- * The keyword "synchronized" was used to safeguard mutable fields.
- * buffer and timeMap are converted into synchronizedMaps to account for thread safety
+ * Each segment is guarded by its own lock, using the keyword "synchronized" on the segment.
+ * A queue is only ever accessed while holding the lock of its segment, and no method holds more than
+ * one segment lock at a time, so operations on ids in different segments proceed in parallel.
  *
  */
 
@@ -38,23 +80,107 @@ public class FSFTBuffer<T extends Bufferable> {
     /* the default timeout value is 3600s */
     public static final int DTIMEOUT = 3600;
 
+    /* the default concurrency level is a single segment */
+    public static final int DCONCURRENCY = 1;
+
     public static final long SECONDS_TO_MILLIS = 1000;
 
-    private final int fixedCapacity;
+    /* the number of least recently accessed objects a weighted buffer chooses the heaviest of */
+    private static final int EVICTION_SAMPLE = 4;
+
+    private final long fixedCapacity;
     private final long timeout;
-    private final Map<String, T> buffer;
-    private final Map<String, Long> timeMap;
+    private final Segment<T>[] segments;
+    private final EvictionListener<? super T> listener;
+    private final ToLongFunction<? super T> weigher;
+    private final int sample;
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    private static final class Segment<T extends Bufferable> {
+        final ExpiryQueue<T> queue;
+        final long capacity;
+        final FrequencySketch sketch;
+
+        Segment(long capacity, ToLongFunction<? super T> weigher, FrequencySketch sketch) {
+            this.queue = new ExpiryQueue<>(weigher);
+            this.capacity = capacity;
+            this.sketch = sketch;
+        }
+    }
 
 
      // checkRep method to check for Representation Invariants
-    synchronized private void checkRep() {
-        assert buffer.size() == timeMap.size() :
-                "buffer.size() and timeMap.size() should be equal";
+    private void checkRep() {
+        long totalCapacity = 0;
+        for (Segment<T> segment : segments) {
+            synchronized (segment) {
+                assert segment.queue.weight() <= segment.capacity : "segment weight exceeds capacity";
+            }
+            totalCapacity += segment.capacity;
+        }
+        assert totalCapacity == Math.max(fixedCapacity, 0) : "segment capacities do not add up to capacity";
+    }
+
+    /**
+     * Create a buffer with a fixed capacity, a timeout value and a
+     * concurrency level.
+     * Objects in the buffer that have not been refreshed within the
+     * timeout period are removed from the cache.
+     *
+     * @param capacity         the number of objects the buffer can hold
+     * @param timeout          the duration, in seconds, an object should
+     *                         be in the buffer before it times out
+     * @param concurrencyLevel the number of segments the buffer is split into, so
+     *                         that up to this many threads can access different ids
+     *                         at once. 1 gives a single, exactly LRU buffer.
+     *                         concurrencyLevel >= 1
+     * @param listener         receives every object evicted before it has timed out,
+     *                         or null if evicted objects are simply dropped
+     */
+    public FSFTBuffer(int capacity, int timeout, int concurrencyLevel, EvictionListener<? super T> listener) {
+        this(capacity, timeout, concurrencyLevel, listener, false);
+    }
 
-        assert buffer.keySet().equals(timeMap.keySet()) :
-                "buffer.keySet and timeMap.keySet should be equal";
+    /**
+     * Create a buffer with a fixed capacity, a timeout value and a
+     * concurrency level, that may refuse new objects that are less popular
+     * than the ones they would evict.
+     * Objects in the buffer that have not been refreshed within the
+     * timeout period are removed from the cache.
+     *
+     * @param capacity         the number of objects the buffer can hold
+     * @param timeout          the duration, in seconds, an object should
+     *                         be in the buffer before it times out
+     * @param concurrencyLevel the number of segments the buffer is split into, so
+     *                         that up to this many threads can access different ids
+     *                         at once. 1 gives a single, exactly LRU buffer.
+     *                         concurrencyLevel >= 1
+     * @param listener         receives every object evicted before it has timed out,
+     *                         or null if evicted objects are simply dropped
+     * @param admission        true if a put into a full buffer only evicts an object
+     *                         for one whose id has recently been asked for more often
+     */
+    public FSFTBuffer(int capacity, int timeout, int concurrencyLevel, EvictionListener<? super T> listener,
+                      boolean admission) {
+        this(capacity, timeout, concurrencyLevel, listener, t -> 1, 1, admission);
+    }
 
-        assert buffer.size() <= fixedCapacity : "buffer size exceeds capacity";
+    /**
+     * Create a buffer with a fixed capacity, a timeout value and a
+     * concurrency level.
+     * Objects in the buffer that have not been refreshed within the
+     * timeout period are removed from the cache.
+     *
+     * @param capacity         the number of objects the buffer can hold
+     * @param timeout          the duration, in seconds, an object should
+     *                         be in the buffer before it times out
+     * @param concurrencyLevel the number of segments the buffer is split into, so
+     *                         that up to this many threads can access different ids
+     *                         at once. 1 gives a single, exactly LRU buffer.
+     *                         concurrencyLevel >= 1
+     */
+    public FSFTBuffer(int capacity, int timeout, int concurrencyLevel) {
+        this(capacity, timeout, concurrencyLevel, null);
     }
 
     /**
@@ -67,53 +193,114 @@ public class FSFTBuffer<T extends Bufferable> {
      *                 be in the buffer before it times out
      */
     public FSFTBuffer(int capacity, int timeout) {
+        this(capacity, timeout, DCONCURRENCY);
+    }
+
+
+    /**
+     * Create a buffer with default capacity and timeout values.
+     */
+    public FSFTBuffer() {
+        this(DSIZE, DTIMEOUT);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private FSFTBuffer(long capacity, int timeout, int concurrencyLevel, EvictionListener<? super T> listener,
+                       ToLongFunction<? super T> weigher, int sample, boolean admission) {
         this.fixedCapacity = capacity;
         this.timeout = timeout * SECONDS_TO_MILLIS;
-        buffer = Collections.synchronizedMap(new HashMap<>());
-        timeMap = Collections.synchronizedMap(new HashMap<>());
+        this.listener = listener;
+        this.weigher = weigher;
+        this.sample = sample;
+
+        int segmentCount = (int) Math.max(1, Math.min(concurrencyLevel, capacity));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long share = Math.max(0, capacity) / segmentCount;
+            long remainder = Math.max(0, capacity) % segmentCount;
+            long segmentCapacity = share + (i < remainder ? 1 : 0);
+            segments[i] = new Segment<>(segmentCapacity, weigher,
+                    admission ? new FrequencySketch((int) Math.min(segmentCapacity, Integer.MAX_VALUE)) : null);
+        }
         if (CHECK_RI) {
             checkRep();
         }
     }
 
-
     /**
-     * Create a buffer with default capacity and timeout values.
+     * Create a buffer whose capacity is a total weight rather than a number of objects,
+     * each object weighing what its weight() reports when it is put or updated.
+     * Objects in the buffer that have not been refreshed within the
+     * timeout period are removed from the cache.
+     *
+     * @param capacity         the total weight of the objects the buffer can hold.
+     *                         Each segment holds an equal share of it, so no object
+     *                         heavier than capacity / concurrencyLevel is held.
+     * @param timeout          the duration, in seconds, an object should
+     *                         be in the buffer before it times out
+     * @param concurrencyLevel the number of segments the buffer is split into, so
+     *                         that up to this many threads can access different ids
+     *                         at once.
+     *                         concurrencyLevel >= 1
+     * @param listener         receives every object evicted before it has timed out,
+     *                         or null if evicted objects are simply dropped
+     * @return the buffer
      */
-    public FSFTBuffer() {
-        this(DSIZE, DTIMEOUT);
+    public static <T extends Bufferable> FSFTBuffer<T> weighted(long capacity, int timeout, int concurrencyLevel,
+                                                               EvictionListener<? super T> listener) {
+        return new FSFTBuffer<>(capacity, timeout, concurrencyLevel, listener,
+                t -> Math.max(1, t.weight()), EVICTION_SAMPLE, false);
     }
 
     /**
      * Add a value to the buffer.
      * If the buffer is full then remove the least recently accessed
-     * object to make room for the new object.
+     * object, or in a weighted buffer the heaviest of the least recently
+     * accessed ones, until there is room for the new object. A buffer with
+     * admission refuses the new object instead if its id has not recently been
+     * asked for more often than that of the object it would remove.
      */
-    synchronized public boolean put(T t) {
-        if (buffer.containsKey(t.id()) && !isTimedOut(t.id())) {
-            if (CHECK_RI) {
-                System.out.println("Failed to add: " + t.id());
-            }
+    public boolean put(T t) {
+        return put(t, Long.MAX_VALUE);
+    }
 
-            return false;
-        }
-        if (buffer.containsKey(t.id()) && !isTimedOut(t.id())) {
-            return false;
-        }
-        if (buffer.keySet().size() == fixedCapacity) {
-            updateBuffer();
-        }
-        if (buffer.keySet().size() == fixedCapacity) {
-            List<String> list = new ArrayList<>(timeMap.keySet());
+    /**
+     * Add a value to the buffer that times out at a given time, or timeout
+     * after now if that is sooner, rather than always timeout after now. It is placed among the other objects as if it had last been
+     * accessed timeout before expiry, so it is evicted no later than they
+     * would be. This is for an object moved back from a second tier, which
+     * must not become any less stale for having left the buffer.
+     *
+     * @param t      the object to add
+     * @param expiry the time, in milliseconds, at which t times out
+     * @return true if t was added, false if it was not, including if expiry has passed
+     */
+    public boolean put(T t, long expiry) {
+        Segment<T> segment = segmentFor(t.id());
+        List<ExpiryQueue.Eviction<T>> evicted;
+        synchronized (segment) {
+            long currentTime = System.currentTimeMillis();
+            segment.queue.sweep(currentTime, Integer.MAX_VALUE);
+            if (segment.sketch != null) {
+                segment.sketch.increment(t.id());
+            }
 
-            String id = timeMap.keySet().parallelStream()
-                    .reduce(list.get(0), (x, y) -> (timeMap.get(x) < timeMap.get(y)) ? x : y);
+            long expiresAt = Math.min(expiry, currentTime + timeout);
+            if (expiresAt < currentTime || segment.queue.isLive(t.id(), currentTime)
+                    || weigher.applyAsLong(t) > segment.capacity || !admits(segment, t)) {
+                if (CHECK_RI) {
+                    System.out.println("Failed to add: " + t.id());
+                }
 
-            timeMap.remove(id);
-            buffer.remove(id);
+                return false;
+            }
+            // a timed-out object with the same id is replaced, so its weight must not be made room for
+            segment.queue.remove(t.id());
+            // the sweep above left only live objects, so none of those evicted has timed out
+            evicted = makeRoom(segment, weigher.applyAsLong(t), null);
+            segment.queue.add(t, expiresAt);
         }
-        buffer.put(t.id(), t);
-        timeMap.put(t.id(), System.currentTimeMillis() + timeout);
+        notifyEvicted(evicted);
 
         if (CHECK_RI) {
             checkRep();
@@ -129,9 +316,18 @@ public class FSFTBuffer<T extends Bufferable> {
      * @throws  ObjectNotFoundException if no bufferable in the buffer has t.id() equal to id
      */
     public T get(String id) throws ObjectNotFoundException {
+        Segment<T> segment = segmentFor(id);
+        T t;
+        synchronized (segment) {
+            long currentTime = System.currentTimeMillis();
+            if (segment.sketch != null) {
+                segment.sketch.increment(id);
+            }
+            t = segment.queue.refresh(id, currentTime, currentTime + timeout);
+        }
 
-        if (touch(id)) {
-            return buffer.get(id);
+        if (t != null) {
+            return t;
         }
 
         throw new ObjectNotFoundException("Object not found in the buffer");
@@ -150,22 +346,19 @@ public class FSFTBuffer<T extends Bufferable> {
      * @return true if successful and false otherwise
      */
     public boolean touch(String id) {
-        synchronized (this) {
+        Segment<T> segment = segmentFor(id);
+        boolean touched;
+        synchronized (segment) {
             long currentTime = System.currentTimeMillis();
-            boolean check = buffer.containsKey(id) && !isTimedOut(id);
-
-            if (!check) {
-                buffer.remove(id);
-                timeMap.remove(id);
-                return false;
+            if (segment.sketch != null) {
+                segment.sketch.increment(id);
             }
-
-            timeMap.replace(id, currentTime + timeout);
+            touched = segment.queue.refresh(id, currentTime, currentTime + timeout) != null;
         }
         if (CHECK_RI) {
             checkRep();
         }
-        return true;
+        return touched;
     }
 
 
@@ -177,37 +370,104 @@ public class FSFTBuffer<T extends Bufferable> {
      * @param t the object to update
      * @return true if successful and false otherwise
      */
-    public synchronized boolean update(T t) {
+    public boolean update(T t) {
         if (CHECK_RI) {
             checkRep();
         }
-        buffer.replace(t.id(), t);
-        return touch(t.id());
+        Segment<T> segment = segmentFor(t.id());
+        List<ExpiryQueue.Eviction<T>> evicted;
+        synchronized (segment) {
+            long currentTime = System.currentTimeMillis();
+            if (weigher.applyAsLong(t) > segment.capacity) {
+                segment.queue.remove(t.id());
+                return false;
+            }
+            if (!segment.queue.replace(t, currentTime, currentTime + timeout)) {
+                return false;
+            }
+            segment.queue.sweep(currentTime, Integer.MAX_VALUE);
+            evicted = makeRoom(segment, 0, t.id());
+        }
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    /**
+     * Start removing timed-out objects in the background, so that they do not stay in
+     * memory until a put or a lookup of their id happens to find them. They are removed
+     * on a thread shared by every buffer, within about a second of timing out, and no
+     * segment is locked for longer than it takes to remove a small batch of them.
+     * Sweeping stops once the buffer is no longer used. Calling this method again has
+     * no effect.
+     */
+    public void sweepInBackground() {
+        if (sweeping.compareAndSet(false, true)) {
+            ExpirySweeper.start(this);
+        }
+    }
+
+    /**
+     * Remove timed-out objects from every segment, holding the lock of only one
+     * segment at a time.
+     *
+     * @param max the most objects to remove from each segment, max >= 1
+     * @return true if some segment may have more timed-out objects left
+     */
+    boolean sweepExpired(int max) {
+        boolean more = false;
+        for (Segment<T> segment : segments) {
+            synchronized (segment) {
+                more |= segment.queue.sweep(System.currentTimeMillis(), max) == max;
+            }
+        }
+        return more;
     }
 
     // Helper Methods in private
 
-    //checks for time-out
-    synchronized private boolean isTimedOut(String id) {
-        long currentTime = System.currentTimeMillis();
-        boolean checkMapId = !(timeMap.get(id) == null);
-        return checkMapId && timeMap.get(id) < currentTime;
+    //true unless segment has admission, must evict to make room for t, and has seen t no more often than
+    //the object it would evict; requires the segment lock
+    private boolean admits(Segment<T> segment, T t) {
+        if (segment.sketch == null || segment.queue.weight() + weigher.applyAsLong(t) <= segment.capacity) {
+            return true;
+        }
+        String victim = segment.queue.victimId(sample, null);
+        return victim == null || segment.sketch.frequency(t.id()) > segment.sketch.frequency(victim);
     }
 
-    //updates the buffer and timeMap by removing objects that have timed out
-    synchronized private boolean updateBuffer() {
-        long currentTime = System.currentTimeMillis();
-        int prevBufferSize = buffer.size();
-        Set<String> validKeys =
-                timeMap.keySet().parallelStream().filter(x -> timeMap.get(x) > currentTime)
-                        .collect(Collectors.toSet());
-        timeMap.keySet().removeIf(x -> !validKeys.contains(x));
-        buffer.keySet().removeIf(x -> !validKeys.contains(x));
+    //evicts objects other than keep until segment has room for needed more weight; requires the segment lock
+    private List<ExpiryQueue.Eviction<T>> makeRoom(Segment<T> segment, long needed, String keep) {
+        List<ExpiryQueue.Eviction<T>> evicted = null;
+        while (segment.queue.weight() + needed > segment.capacity) {
+            ExpiryQueue.Eviction<T> eviction = segment.queue.evict(sample, keep);
+            if (eviction == null) {
+                break;
+            }
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(eviction);
+        }
+        return evicted;
+    }
 
-        if (CHECK_RI) {
-            checkRep();
+    //hands the evicted objects to listener; must be called without holding a segment lock
+    private void notifyEvicted(List<ExpiryQueue.Eviction<T>> evicted) {
+        if (evicted == null || listener == null) {
+            return;
+        }
+        for (ExpiryQueue.Eviction<T> eviction : evicted) {
+            listener.evicted(eviction.value, eviction.expiry);
         }
+    }
 
-        return prevBufferSize > buffer.size();
+    //finds the segment that holds the object with the given id
+    private Segment<T> segmentFor(String id) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[Math.floorMod(h, segments.length)];
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package cpen221.mp3.fsftbuffer;
+
+/*
+ * Representation Invariants (RI):
+ * table.length == DEPTH, and every row has the same length, a power of two, with mask == that length - 1
+ * 0 <= table[i][j] <= MAX_COUNT for all i, j
+ * 0 <= additions < sampleSize
+ *
+ * Abstraction Function (AF):
+ * FrequencySketch estimates how often each id has been seen recently, in a fixed amount of memory
+ * whatever the number of distinct ids. It is a count-min sketch: every id is hashed to one counter in
+ * each of the DEPTH rows of table, increment adds one to each of them, and frequency is the smallest,
+ * which over-counts an id only by how much every one of its counters is shared with other ids.
+ * Counters saturate at MAX_COUNT, since all an admission policy needs to know is which of two ids is
+ * more popular, not by how much.
+ * To forget old popularity, every sampleSize increments every counter is halved, so an id that was
+ * popular an hour ago but is not now soon counts for no more than one that is seen now and again.
+ *
+ * Thread Safety:
+ * FrequencySketch is not thread safe. The owner must guard every call with its own lock.
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Creates a sketch in which nothing has been seen.
+     *
+     * @param expectedEntries the number of ids the owner holds at once. The sketch has four
+     *                        counters per row for each of them, and ages every ten times that
+     *                        many increments, expectedEntries >= 0
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 24)) * 4 - 1) << 1;
+        table = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * Math.max(16, expectedEntries);
+    }
+
+    /**
+     * Records that an id has been seen once more, halving every count if this was the
+     * sampleSize-th increment since they were last halved.
+     *
+     * @param id the id seen, id != null
+     */
+    void increment(String id) {
+        int hash = spread(id.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            int j = indexOf(hash, i);
+            if (table[i][j] < MAX_COUNT) {
+                table[i][j]++;
+            }
+        }
+        if (++additions == sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * @param id an id, id != null
+     * @return an estimate, from 0 to 15, of how often id has been seen recently. It is never
+     * less than the number of times id was seen since the counts were last halved, unless
+     * that is more than 15.
+     */
+    int frequency(String id) {
+        int hash = spread(id.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    // Helper Methods in private
+
+    private void age() {
+        for (byte[] row : table) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] >>= 1;
+            }
+        }
+        additions = 0;
+    }
+
+    //the counter of row i for an id with the given spread hash
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
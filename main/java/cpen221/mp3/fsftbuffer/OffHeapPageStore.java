@@ -0,0 +1,189 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Representation Invariants (RI):
+ * 0 <= tail <= slab.capacity()
+ * every entry in index has length > 0, lies within [0, slab.capacity()), and no two entries overlap
+ * index is in the order the entries were written, which, starting from tail and wrapping round
+ *   at the end of slab, is also the order of their offsets
+ *
+ * Abstraction Function (AF):
+ * OffHeapPageStore is a second tier for the pages a FSFTBuffer evicts when it is full. The bytes of
+ * each page, in the form BufferableWikiPage keeps them, are held outside the Java heap, in slab,
+ * a direct buffer or a memory-mapped file, so that they add nothing to the work of the garbage
+ * collector. Only index, which maps each title to where its bytes are and when it expires, is on
+ * the heap.
+ * slab is a circular log. Each page is written at tail, which then moves past it, wrapping round
+ * to 0 when a page does not fit before the end of slab. A page written over the oldest pages
+ * evicts them, so the store holds as many of the most recently evicted pages as fit in it. Pages
+ * taken out of the store leave holes that are reused once tail comes round to them.
+ * A page keeps the expiry time it had in the buffer, and take returns it only until then, together
+ * with that time, so that the buffer it is moved back into keeps it no longer than it would have
+ * had it never left. A page is therefore never served staler through the store than it would have
+ * been from the buffer alone.
+ *
+ * Thread Safety:
+ * Every method that touches index or tail holds the lock of the store, and slab is only read
+ * and written with absolute gets and puts.
+ */
+public class OffHeapPageStore implements EvictionListener<BufferableWikiPage> {
+
+    private final ByteBuffer slab;
+    private final Map<String, Entry> index = new LinkedHashMap<>();
+    private int tail = 0;
+
+    private static final class Entry {
+        final int offset;
+        final int length;
+        final boolean compressed;
+        final int pageBytes;
+        final long expiry;
+
+        Entry(int offset, int length, boolean compressed, int pageBytes, long expiry) {
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+            this.pageBytes = pageBytes;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * A page taken out of the store, and the time at which it times out.
+     */
+    public static final class StoredPage {
+        private final BufferableWikiPage page;
+        private final long expiry;
+
+        private StoredPage(BufferableWikiPage page, long expiry) {
+            this.page = page;
+            this.expiry = expiry;
+        }
+
+        /**
+         * @return the page
+         */
+        public BufferableWikiPage page() {
+            return page;
+        }
+
+        /**
+         * @return the time, in milliseconds, at which the page would have timed out in the
+         *         buffer it was evicted from
+         */
+        public long expiry() {
+            return expiry;
+        }
+    }
+
+    /**
+     * Creates a store of pages in direct memory, outside the Java heap.
+     * @param capacityBytes the number of bytes of pages the store can hold.
+     *                      capacityBytes >= 0
+     */
+    public OffHeapPageStore(int capacityBytes) {
+        slab = ByteBuffer.allocateDirect(capacityBytes);
+    }
+
+    /**
+     * Creates a store of pages in a memory-mapped file, which the operating system pages in and
+     * out as it needs, so the store can be larger than the memory of the machine. The contents of
+     * the file are overwritten, and are of no use once the store is gone.
+     * @param file          the file to map. It is created if it does not exist.
+     *                      file != null
+     * @param capacityBytes the number of bytes of pages the store can hold.
+     *                      capacityBytes >= 0
+     */
+    public OffHeapPageStore(Path file, int capacityBytes) {
+        slab = map(file, capacityBytes);
+    }
+
+    /**
+     * Keeps a page evicted from a buffer, until it expires or is written over.
+     * A page that has no UTF-8 form, is empty, or is larger than the store, is dropped. Empty
+     * pages take no space in the slab, so their offsets would not mark where they end.
+     * @param page   the evicted page.
+     *               page != null
+     * @param expiry the time, in milliseconds, at which page would have timed out in the buffer
+     */
+    @Override
+    public void evicted(BufferableWikiPage page, long expiry) {
+        byte[] bytes = page.storedBytes();
+        if (bytes == null || bytes.length == 0 || bytes.length > slab.capacity()) {
+            return;
+        }
+
+        synchronized (this) {
+            index.remove(page.id());
+            if (tail + bytes.length > slab.capacity()) {
+                // the pages between tail and the end of slab are the oldest, older than any before tail
+                evictOverlapping(tail, slab.capacity());
+                tail = 0;
+            }
+            evictOverlapping(tail, tail + bytes.length);
+            slab.put(tail, bytes);
+            index.put(page.id(), new Entry(tail, bytes.length, page.isCompressed(), page.pageBytes(), expiry));
+            tail += bytes.length;
+        }
+    }
+
+    /**
+     * Removes a page from the store.
+     * @param title the title of the page.
+     *              title != null
+     * @return the page and the time at which it expires, or null if the store does not hold a
+     *         page with that title that has not expired
+     */
+    public synchronized StoredPage take(String title) {
+        Entry entry = index.remove(title);
+        if (entry == null || entry.expiry < System.currentTimeMillis()) {
+            return null;
+        }
+        byte[] bytes = new byte[entry.length];
+        slab.get(entry.offset, bytes);
+        return new StoredPage(BufferableWikiPage.fromStored(title, bytes, entry.compressed, entry.pageBytes),
+                entry.expiry);
+    }
+
+    /**
+     * @return the number of pages in the store, including ones that have expired but
+     *         have not been written over yet
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    // Helper Methods in private
+
+    //removes the oldest entries for as long as they overlap [start, end)
+    private void evictOverlapping(int start, int end) {
+        Iterator<Entry> entries = index.values().iterator();
+        while (entries.hasNext()) {
+            Entry eldest = entries.next();
+            if (eldest.offset >= end || eldest.offset + eldest.length <= start) {
+                return;
+            }
+            entries.remove();
+        }
+    }
+
+    private static ByteBuffer map(Path file, int capacityBytes) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error in mapping the page store.");
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.wikimediator.WikiMediator;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Representation Invariants (RI):
+ * loops.length >= 1
+ * every open connection is registered with exactly one loop, and only that loop's thread touches it
+ * a connection has at most one request being processed by compute at a time, or at most
+ *   MAX_QUEUED once it is pipelined
+ *
+ * Abstraction Function (AF):
+ * NioWikiMediatorServer serves the same protocol as WikiMediatorServer, through processor, but
+ * without giving each client a thread of its own. serverChannel is non-blocking; serve accepts
+ * connections on acceptSelector and hands each one to one of the loops in turn. Each loop is an
+ * I/O thread with its own Selector, which reads the bytes of all its connections as they arrive,
+ * splits them into lines, and writes responses back as the sockets can take them, so a few loops
+ * serve thousands of connections, however many of them are idle.
+ * Requests themselves run on compute, a pool of n threads. The requests of one connection are run
+ * one at a time and answered in the order they were sent, as WikiMediatorServer answers them, so
+ * clients cannot tell the two servers apart. A connection that has asked for pipelining has up to
+ * MAX_QUEUED of its requests run at once instead, and each answered as soon as it is ready, as
+ * WikiMediatorServer does. A connection that has MAX_QUEUED requests waiting is
+ * not read from until some of them have run. Requests with a timeout are handed on from compute
+ * to requestThreads, and cancelled once they time out. Compute threads hand responses back to the
+ * loop as JSON trees, and the loop escapes them straight into the ResponseBuffer of their
+ * connection, which is reused by all of its responses and written from as the socket allows.
+ * A connection that sends a request of type "compress" gets every later response compressed.
+ *
+ * running is true until a stop request has been answered. The loops then write what they have
+ * and close their connections, and requestThreads and mediator are only shut down once the
+ * requests compute was already running have finished.
+ *
+ * Thread Safety:
+ * Connections are confined to the thread of their loop: compute threads hand finished responses
+ * back to it through the loop's task queue, and wake its selector.
+ */
+public class NioWikiMediatorServer {
+
+    /* the default number of I/O threads */
+    public static final int DIO_THREADS = 2;
+
+    private static final int READ_BYTES = 8192;
+    private static final int MAX_LINE_BYTES = 1 << 26;
+    private static final int MAX_QUEUED = 64;
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private volatile boolean running;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoLoop[] loops;
+    private final ExecutorService compute;
+    private final ExecutorService requestThreads;
+    private final WikiMediator mediator;
+    private final RequestProcessor processor;
+
+    /**
+     * Start a server at a given port number, with the ability to process
+     * up to n requests concurrently, from any number of clients.
+     *
+     * @param port the port number to bind the server to, 9000 <= {@code port} <= 9999
+     * @param ioThreads the number of threads that read and write the sockets of all clients, {@code ioThreads} >= 1
+     * @param n the number of concurrent requests the server can handle, 0 < {@code n}
+     * @param wikiMediator the WikiMediator instance to use for the server, {@code wikiMediator} is not {@code null}
+     */
+    public NioWikiMediatorServer(int port, int ioThreads, int n, WikiMediator wikiMediator) {
+        mediator = wikiMediator;
+        compute = Executors.newFixedThreadPool(n);
+        requestThreads = ServerExecutors.newThreadPerTaskExecutor("wiki-request");
+        processor = new RequestProcessor(wikiMediator, requestThreads);
+        running = true;
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            loops = new IoLoop[Math.max(1, ioThreads)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(i);
+            }
+        } catch (IOException io) {
+            throw new RuntimeException("Server failed to initialize");
+        }
+    }
+
+    /**
+     * Start a server at a given port number, with the default number of I/O threads and
+     * the ability to process up to n requests concurrently.
+     *
+     * @param port the port number to bind the server to, 9000 <= {@code port} <= 9999
+     * @param n the number of concurrent requests the server can handle, 0 < {@code n}
+     * @param wikiMediator the WikiMediator instance to use for the server, {@code wikiMediator} is not {@code null}
+     */
+    public NioWikiMediatorServer(int port, int n, WikiMediator wikiMediator) {
+        this(port, DIO_THREADS, n, wikiMediator);
+    }
+
+    /**
+     * Conducts all server business, until the server is told to shut down, and then stores
+     * the requests of the mediator and closes it.
+     */
+    public void serve() {
+        mediator.readStorage();
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        int next = 0;
+        try {
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while (running && (channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[next].add(channel);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (IOException io) {
+            io.printStackTrace();
+            throw new RuntimeException("Error in accepting connection.");
+        } finally {
+            try {
+                serverChannel.close();
+                acceptSelector.close();
+            } catch (IOException io) {
+                io.printStackTrace();
+            }
+            for (IoLoop loop : loops) {
+                loop.shutdown();
+            }
+            // the requests still running finish before the mediator they use is closed
+            ServerExecutors.shutdownAndAwait(compute);
+            requestThreads.shutdown();
+            mediator.storeRequests();
+            mediator.close();
+        }
+    }
+
+    // Helper Methods in private
+
+    //stops accepting connections; called once a stop request has been answered
+    private void stop() {
+        running = false;
+        acceptSelector.wakeup();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One I/O thread, and the connections registered with its selector.
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean open = true;
+
+        IoLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "wiki-io-" + index);
+            thread.setDaemon(true);
+        }
+
+        //hands a newly accepted connection to this loop
+        void add(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        //runs task on the thread of this loop
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        //writes what the connections still have to send, then closes them and stops the loop
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.keys()) {
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.flush();
+                    } catch (IOException e) {
+                        // the client is gone, there is nothing left to send it
+                    }
+                    connection.close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection: the bytes read but not yet split into lines, the
+     * requests waiting to run, and the responses waiting to be written.
+     */
+    private final class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(READ_BYTES);
+        private int scanned = 0;
+        private final Deque<String> requests = new ArrayDeque<>();
+        private final ResponseBuffer responses = new ResponseBuffer();
+        private int inFlight = 0;
+        private boolean pipelined = false;
+        private boolean endOfInput = false;
+
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        //reads what has arrived, and starts the first request that is complete
+        void read() throws IOException {
+            if (!input.hasRemaining()) {
+                if (input.capacity() >= MAX_LINE_BYTES) {
+                    throw new IOException("Request line too long");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            if (channel.read(input) < 0) {
+                endOfInput = true;
+            }
+
+            int start = 0;
+            for (int i = scanned; i < input.position(); i++) {
+                if (input.get(i) == '\n') {
+                    int end = i > start && input.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[end - start];
+                    input.get(start, line);
+                    requests.add(new String(line, CHARSET));
+                    start = i + 1;
+                }
+            }
+            if (endOfInput && start < input.position()) {
+                // like readLine, treat whatever follows the last line terminator as a last line
+                byte[] line = new byte[input.position() - start];
+                input.get(start, line);
+                requests.add(new String(line, CHARSET));
+                start = input.position();
+            }
+            input.flip();
+            input.position(start);
+            input.compact();
+            scanned = input.position();
+
+            dispatch();
+            updateInterest();
+        }
+
+        //starts the waiting requests on compute: the next one if none is running, or, once the
+        //connection is pipelined, every one up to MAX_QUEUED running at once
+        void dispatch() {
+            while (!requests.isEmpty() && inFlight < (pipelined ? MAX_QUEUED : 1)) {
+                start(requests.poll());
+            }
+            closeIfDone();
+        }
+
+        private void start(String request) {
+            inFlight++;
+            compute.execute(() -> {
+                JsonObject response;
+                try {
+                    response = processor.respond(request);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    loop.execute(this::close);
+                    return;
+                }
+                loop.execute(() -> complete(response));
+            });
+        }
+
+        //queues the response to a running request, and starts the requests waiting for it
+        void complete(JsonObject response) {
+            inFlight--;
+            if (!channel.isOpen()) {
+                return;
+            }
+            pipelined |= RequestProcessor.isPipeline(response);
+            responses.append(response);
+            if (RequestProcessor.isCompress(response)) {
+                responses.compress(RequestProcessor.compressionLevel(response));
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (RequestProcessor.isStop(response)) {
+                NioWikiMediatorServer.this.stop();
+            }
+            dispatch();
+            updateInterest();
+        }
+
+        //writes as much of the waiting responses as the socket will take
+        void write() throws IOException {
+            responses.writeTo(channel);
+            updateInterest();
+            closeIfDone();
+        }
+
+        //writes every waiting response, waiting for the socket if it has to
+        void flush() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            long deadline = System.nanoTime() + 1_000_000_000L;
+            while (!responses.isEmpty() && System.nanoTime() < deadline) {
+                write();
+                if (!responses.isEmpty()) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            responses.close();
+        }
+
+        //reads only while few requests are waiting, and waits to write only while a response is
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!endOfInput && requests.size() < MAX_QUEUED) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!responses.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        //closes the connection once the client has stopped sending and has every response
+        private void closeIfDone() {
+            if (endOfInput && inFlight == 0 && requests.isEmpty() && responses.isEmpty()) {
+                close();
+            }
+        }
+    }
+}
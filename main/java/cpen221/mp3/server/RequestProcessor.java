@@ -0,0 +1,311 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.wikimediator.WikiMediator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/*
+ * Abstraction Function (AF):
+ * RequestProcessor turns the JSON requests of the server protocol into JSON responses, by
+ * calling mediator. It is shared by every front end of the server, so that they all speak
+ * exactly the same protocol: one JSON object per line in each direction, each response
+ * carrying the id of its request, a status of "success" or "failed", and the response itself.
+ * A request of type "stop" is answered with "bye", after which the front end shuts down.
+ * A request of type "pipeline" is answered with "pipelined", and a "pipelined" member that no
+ * other response has. The front end then runs the later requests of the same connection
+ * concurrently and answers each one as soon as it is ready, rather than in order; clients
+ * match responses to requests by their ids.
+ * A request of type "compress" is answered with "compressed", and a "compressed" member holding
+ * the deflate level asked for in "level", or ResponseBuffer.DLEVEL. The front end then sends every
+ * later response of the same connection compressed, in frames, as ResponseBuffer describes.
+ *
+ * A request of type "batch" carries an array of sub-requests in "requests", and is answered with
+ * an array of their responses, in the same order. The sub-requests run in parallel on workers,
+ * and identical sub-requests, ignoring their ids, run only once and share a response, each copy
+ * tagged with its own id. Identical sub-requests therefore reach mediator once, and count as
+ * one request in windowedPeakLoad, and identical getPage and search sub-requests as one in
+ * zeitgeist and trending. A sub-request that throws is answered as failed without failing the
+ * others. A batch cannot hold stop, pipeline, compress or batch requests.
+ *
+ * A request without a timeout runs on the thread that calls respond. A request with one runs on
+ * a thread of workers, while the calling thread waits for it; if it times out, it is cancelled,
+ * which interrupts the thread running it, and the calling thread answers that it timed out.
+ * A getPage request that shares a page load with others only stops waiting for it when it is
+ * interrupted, since the load runs on a thread of its own, so the requests that have not timed
+ * out still receive the page.
+ * Every request builds its response in a JsonObject of its own, so a request that times out
+ * cannot change the response already sent for it.
+ *
+ * Thread Safety:
+ * RequestProcessor has no mutable state, and mediator and workers are thread-safe, so any
+ * number of requests can be processed at once.
+ */
+class RequestProcessor {
+    private static final Gson jsonConverter = new Gson();
+    private static final Set<String> BATCH_EXCLUDED = Set.of("stop", "pipeline", "compress", "batch");
+
+    private final WikiMediator mediator;
+    private final ExecutorService workers;
+
+    /**
+     * Creates a processor that answers requests with the given mediator.
+     * @param mediator the WikiMediator that answers all requests.
+     *                 mediator != null
+     * @param workers  runs the requests that have a timeout, and the sub-requests of batches.
+     *                 It must be able to run as many of them at once as there may be.
+     *                 workers != null
+     */
+    RequestProcessor(WikiMediator mediator, ExecutorService workers) {
+        this.mediator = mediator;
+        this.workers = workers;
+    }
+
+    /**
+     * Answers one request, waiting no longer than the request's timeout, if it has one.
+     * @param request a request, as one line of JSON.
+     *                request != null
+     * @return the response to request
+     */
+    JsonObject respond(String request) {
+        return respond(jsonConverter.fromJson(request, JsonObject.class));
+    }
+
+    /**
+     * @param response a response returned by respond.
+     *                 response != null
+     * @return true if response answers a stop request, after which the server shuts down
+     */
+    static boolean isStop(JsonObject response) {
+        return response.has("response") && response.get("response").isJsonPrimitive()
+                && response.get("response").getAsString().equals("bye");
+    }
+
+    /**
+     * @param response a response returned by respond.
+     *                 response != null
+     * @return true if response answers a pipeline request, after which the connection it came
+     *         from is answered out of order
+     */
+    static boolean isPipeline(JsonObject response) {
+        return response.has("pipelined");
+    }
+
+    /**
+     * @param response a response returned by respond.
+     *                 response != null
+     * @return true if response answers a compress request, after which the later responses to the
+     *         connection it came from are compressed
+     */
+    static boolean isCompress(JsonObject response) {
+        return response.has("compressed");
+    }
+
+    /**
+     * @param response a response for which isCompress is true.
+     *                 response != null
+     * @return the deflate level the later responses are compressed with
+     */
+    static int compressionLevel(JsonObject response) {
+        return response.get("compressed").getAsInt();
+    }
+
+    // Helper Methods in private
+
+    //answers a parsed request, waiting no longer than its timeout, if it has one
+    private JsonObject respond(JsonObject json) {
+        if (!json.has("timeout")) {
+            return createResponse(json);
+        }
+
+        Future<JsonObject> future = workers.submit(() -> createResponse(json));
+        try {
+            return future.get(json.get("timeout").getAsInt(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            JsonObject response = new JsonObject();
+            response.add("id", json.get("id"));
+            addErrorMessage(response);
+            return response;
+        } catch (ExecutionException | InterruptedException e) {
+            future.cancel(true);
+            e.printStackTrace();
+            throw new RuntimeException("Error in creating response.");
+        }
+    }
+
+    /**
+     * Given a request, create the appropriate response by using a
+     * WikiMediator Service
+     * @param json  client request
+     * @return  response to client
+     */
+    private JsonObject createResponse(JsonObject json) {
+        JsonObject response = new JsonObject();
+        response.add("id", json.get("id"));
+        String result;
+        boolean successful = false;
+
+        try {
+            switch (json.get("type").getAsString()) {
+                case "search":
+                    result = mediator.search(
+                                    json.get("query").getAsString(),
+                                    json.get("limit").getAsInt()).toString();
+                    successful = true;
+                    break;
+
+                case "getPage":
+                    result = mediator.getPage(
+                            json.get("pageTitle").getAsString()
+                    );
+                    successful = true;
+                    break;
+
+                case "zeitgeist":
+                    result = mediator.zeitgeist(
+                            json.get("limit").getAsInt()
+                    ).toString();
+                    successful = true;
+                    break;
+
+                case "trending":
+                    result = mediator.trending(
+                            json.get("timeLimitInSeconds").getAsInt(),
+                            json.get("maxItems").getAsInt()
+                    ).toString();
+                    successful = true;
+                    break;
+
+                case "windowedPeakLoad":
+                    if (json.has("timeWindowInSeconds")) {
+                        result = Integer.toString(mediator.windowedPeakLoad(
+                                json.get("timeWindowInSeconds").getAsInt()));
+                    } else {
+                        result = Integer.toString(mediator.windowedPeakLoad());
+                    }
+                    successful = true;
+                    break;
+
+                case "shortestPath":
+                    try {
+                        result = mediator.shortestPath(
+                                json.get("pageTitle1").getAsString(),
+                                json.get("pageTitle2").getAsString(),
+                                json.get("timeout").getAsInt()
+                        ).toString();
+                        successful = true;
+                    } catch (TimeoutException e) {
+                        result =  "Operation timed out";
+                        addErrorMessage(response);
+                    }
+                    break;
+
+                case "stop":
+                    result = "bye";
+                    break;
+
+                case "pipeline":
+                    result = "pipelined";
+                    response.addProperty("pipelined", true);
+                    successful = true;
+                    break;
+
+                case "compress":
+                    int level = json.has("level") ? json.get("level").getAsInt() : ResponseBuffer.DLEVEL;
+                    if (level < 0 || level > 9) {
+                        result = "Compression level must be between 0 and 9.";
+                        response.addProperty("status", "failed");
+                        break;
+                    }
+                    result = "compressed";
+                    response.addProperty("compressed", level);
+                    successful = true;
+                    break;
+
+                case "batch":
+                    response.add("response", respondAll(json.get("requests").getAsJsonArray()));
+                    response.addProperty("status", "success");
+                    return response;
+
+                default:
+                    result = "Operation not recognized.";
+                    response.addProperty("status", "failed");
+            }
+        } catch (NullPointerException | IllegalStateException | ClassCastException np) {
+            result = "Error in parsing request";
+            response.addProperty("status", "failed");
+        }
+        response.addProperty("response", result);
+        if (successful) {
+            response.addProperty("status", "success");
+        }
+        return response;
+    }
+
+    /**
+     * Answers the sub-requests of a batch in parallel, running each distinct sub-request once.
+     * @param requests  the sub-requests.
+     * @return  their responses, in the order of requests
+     */
+    private JsonArray respondAll(JsonArray requests) {
+        Map<String, CompletableFuture<JsonObject>> distinct = new HashMap<>();
+        List<CompletableFuture<JsonObject>> responses = new ArrayList<>(requests.size());
+        for (JsonElement element : requests) {
+            JsonObject request = element.getAsJsonObject();
+            String type = request.has("type") ? request.get("type").getAsString() : "";
+            if (BATCH_EXCLUDED.contains(type)) {
+                JsonObject response = new JsonObject();
+                response.add("id", request.get("id"));
+                response.addProperty("response", "Operation not allowed in a batch.");
+                response.addProperty("status", "failed");
+                responses.add(CompletableFuture.completedFuture(response));
+                continue;
+            }
+            JsonObject withoutId = request.deepCopy();
+            withoutId.remove("id");
+            responses.add(distinct.computeIfAbsent(jsonConverter.toJson(withoutId),
+                    key -> CompletableFuture.supplyAsync(() -> respond(request), workers)
+                            .exceptionally(RequestProcessor::failedResponse)));
+        }
+
+        JsonArray array = new JsonArray(requests.size());
+        for (int i = 0; i < responses.size(); i++) {
+            JsonObject response = responses.get(i).join().deepCopy();
+            response.add("id", requests.get(i).getAsJsonObject().get("id"));
+            array.add(response);
+        }
+        return array;
+    }
+
+    /**
+     * @param e the exception a sub-request of a batch threw.
+     * @return the response to the sub-request, without its id
+     */
+    private static JsonObject failedResponse(Throwable e) {
+        e.printStackTrace();
+        JsonObject response = new JsonObject();
+        response.addProperty("response", "Error in answering request.");
+        response.addProperty("status", "failed");
+        return response;
+    }
+
+    /**
+     * Add a timeout error message to response.
+     * @param response  Response to which the error message
+     *                  should be added.
+     */
+    private void addErrorMessage (JsonObject response) {
+        response.addProperty("status", "failed");
+        response.addProperty("response", "Operation timed out.");
+    }
+}
@@ -0,0 +1,282 @@
+package cpen221.mp3.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/*
+ * Representation Invariants (RI):
+ * buffer is in write mode: the bytes from 0 to buffer.position() are the lines not yet written out
+ * every byte in buffer is ASCII, unless deflater != null
+ * frame != null if and only if deflater != null
+ *
+ * Abstraction Function (AF):
+ * ResponseBuffer holds the response lines of one connection that have not been written to it yet.
+ * append writes a response as one line of JSON straight into buffer, escaping its strings as it
+ * goes, so the page text of a getPage response is copied once, from its String into buffer,
+ * rather than into a JSON String first and then into bytes. buffer is reused by every response
+ * of the connection, and grows to fit the largest of them. Once empty, a buffer larger than
+ * DRETAINED is replaced by a new one of the initial size if the last line appended used less than
+ * a quarter of it, so a connection keeps a large buffer only while its responses are large.
+ * lastLine is the length of the last line appended, before it was compressed.
+ *
+ * Every character outside of printable ASCII is written as a \\uXXXX escape, so the lines are the
+ * same bytes in every ASCII-compatible charset, and any JSON parser reads back the same strings
+ * Gson would have written.
+ *
+ * Once compress has been called, every line appended is compressed by deflater and appended as a
+ * frame instead: its length, as a 4-byte big-endian int, then its bytes. deflater is one stream
+ * for the whole connection, flushed at the end of every frame, so a frame is only readable by an
+ * Inflater that has read every frame before it, and later frames reuse what earlier ones held.
+ * frame is reused to hold each frame while it is compressed.
+ *
+ * Thread Safety:
+ * ResponseBuffer is not thread-safe; a connection that answers requests concurrently must append
+ * and write while holding a lock.
+ */
+final class ResponseBuffer {
+
+    /* the size of a new buffer */
+    static final int DSIZE = 8192;
+
+    /* the largest buffer kept once it is empty */
+    static final int DRETAINED = 1 << 16;
+
+    /* the deflate level of connections that do not ask for one */
+    static final int DLEVEL = Deflater.BEST_SPEED;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(DSIZE);
+    private int lastLine = 0;
+    private Deflater deflater = null;
+    private ByteBuffer frame = null;
+
+    /**
+     * Appends a response to the lines waiting to be written.
+     * @param response a response.
+     *                 response != null
+     */
+    void append(JsonObject response) {
+        int start = buffer.position();
+        writeElement(response);
+        ensure(LINE_SEPARATOR.length);
+        buffer.put(LINE_SEPARATOR);
+        lastLine = buffer.position() - start;
+        if (deflater != null) {
+            deflate(start);
+        }
+    }
+
+    /**
+     * Compresses every line appended from now on into a frame. Lines that are compressed
+     * already go on being compressed as before.
+     * @param level the deflate level, from 0 (none) to 9 (smallest).
+     *              0 <= level <= 9
+     */
+    void compress(int level) {
+        if (deflater != null) {
+            return;
+        }
+        deflater = new Deflater(level);
+        frame = ByteBuffer.allocate(DSIZE);
+    }
+
+    /**
+     * Frees the native memory of the compressor. Nothing can be appended afterwards.
+     */
+    void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return true if every line appended has been written out
+     */
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * Writes every waiting line to out, blocking until it has taken them.
+     * @param out the stream of the connection.
+     *            out != null
+     * @throws IOException if out cannot be written to
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        out.flush();
+        buffer.clear();
+        shrink();
+    }
+
+    /**
+     * Writes as many of the waiting lines to channel as it takes without blocking.
+     * @param channel the channel of the connection.
+     *                channel != null
+     * @return true if every waiting line has been written
+     * @throws IOException if channel cannot be written to
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        try {
+            channel.write(buffer);
+        } finally {
+            buffer.compact();
+        }
+        shrink();
+        return isEmpty();
+    }
+
+    // Helper Methods in private
+
+    private void writeElement(JsonElement element) {
+        if (element.isJsonObject()) {
+            ensure(1);
+            buffer.put((byte) '{');
+            boolean first = true;
+            for (Map.Entry<String, JsonElement> member : ((JsonObject) element).entrySet()) {
+                if (!first) {
+                    ensure(1);
+                    buffer.put((byte) ',');
+                }
+                first = false;
+                writeString(member.getKey());
+                ensure(1);
+                buffer.put((byte) ':');
+                writeElement(member.getValue());
+            }
+            ensure(1);
+            buffer.put((byte) '}');
+        } else if (element.isJsonArray()) {
+            ensure(1);
+            buffer.put((byte) '[');
+            boolean first = true;
+            for (JsonElement item : (JsonArray) element) {
+                if (!first) {
+                    ensure(1);
+                    buffer.put((byte) ',');
+                }
+                first = false;
+                writeElement(item);
+            }
+            ensure(1);
+            buffer.put((byte) ']');
+        } else if (element.isJsonPrimitive() && ((JsonPrimitive) element).isString()) {
+            writeString(element.getAsString());
+        } else {
+            // null, booleans and numbers are short, and written as Gson writes them
+            writeAscii(element.isJsonNull() ? "null" : element.getAsJsonPrimitive().toString());
+        }
+    }
+
+    //writes s as a JSON string, escaping it as it is copied
+    private void writeString(String s) {
+        // every character takes at most 6 bytes, and most take 1
+        ensure(s.length() + 2);
+        buffer.put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+                if (!buffer.hasRemaining()) {
+                    ensure(s.length() - i + 1);
+                }
+                buffer.put((byte) c);
+                continue;
+            }
+            ensure(6 + s.length() - i);
+            buffer.put((byte) '\\');
+            switch (c) {
+                case '"':
+                    buffer.put((byte) '"');
+                    break;
+                case '\\':
+                    buffer.put((byte) '\\');
+                    break;
+                case '\n':
+                    buffer.put((byte) 'n');
+                    break;
+                case '\r':
+                    buffer.put((byte) 'r');
+                    break;
+                case '\t':
+                    buffer.put((byte) 't');
+                    break;
+                default:
+                    buffer.put((byte) 'u');
+                    buffer.put(HEX[(c >> 12) & 0xf]);
+                    buffer.put(HEX[(c >> 8) & 0xf]);
+                    buffer.put(HEX[(c >> 4) & 0xf]);
+                    buffer.put(HEX[c & 0xf]);
+            }
+        }
+        ensure(1);
+        buffer.put((byte) '"');
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    //replaces the line that starts at start with a frame of its compressed bytes
+    private void deflate(int start) {
+        deflater.setInput(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start);
+        frame.clear();
+        while (true) {
+            int written = deflater.deflate(frame.array(), frame.arrayOffset() + frame.position(),
+                    frame.remaining(), Deflater.SYNC_FLUSH);
+            frame.position(frame.position() + written);
+            // a flush that fills the space it was given may have more to write
+            if (frame.hasRemaining()) {
+                break;
+            }
+            frame = grown(frame, frame.capacity());
+        }
+
+        buffer.position(start);
+        ensure(4 + frame.position());
+        buffer.putInt(frame.position());
+        buffer.put(frame.array(), frame.arrayOffset(), frame.position());
+    }
+
+    //makes room for at least bytes more bytes
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            buffer = grown(buffer, bytes);
+        }
+    }
+
+    //a copy of b, in write mode, with room for at least bytes more bytes
+    private static ByteBuffer grown(ByteBuffer b, int bytes) {
+        int capacity = b.capacity();
+        while (capacity - b.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        b.flip();
+        larger.put(b);
+        return larger;
+    }
+
+    private void shrink() {
+        if (isEmpty() && buffer.capacity() > DRETAINED && lastLine < buffer.capacity() / 4) {
+            buffer = ByteBuffer.allocate(DSIZE);
+            if (frame != null) {
+                frame = ByteBuffer.allocate(DSIZE);
+            }
+        }
+    }
+}
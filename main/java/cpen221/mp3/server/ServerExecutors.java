@@ -0,0 +1,81 @@
+package cpen221.mp3.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Abstraction Function (AF):
+ * ServerExecutors creates the executors the server front ends run connections and requests on.
+ * A thread-per-task executor runs every task on a new thread of its own, so that tasks that block,
+ * such as requests waiting on the wiki, never wait for each other. Where the JVM has virtual
+ * threads, those threads are virtual, and thousands of blocked tasks cost little more than their
+ * stacks; elsewhere they are daemon platform threads. newVirtualThreadPerTaskExecutor is looked up
+ * reflectively, so the server still builds and runs on JVMs without it.
+ * When a server stops, it waits up to DSHUTDOWN_TIMEOUT for the requests already running to finish
+ * before it closes its mediator, so that none of them finds the mediator closed.
+ *
+ * Thread Safety:
+ * VIRTUAL_EXECUTOR is set once, when the class is initialized; every executor returned is thread-safe.
+ */
+final class ServerExecutors {
+
+    /* the most time, in seconds, a stopping server waits for the requests already running */
+    static final long DSHUTDOWN_TIMEOUT = 60;
+
+    private static final Method VIRTUAL_EXECUTOR = virtualExecutorFactory();
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * Creates an executor that runs every task on a new thread, virtual if the JVM has virtual threads.
+     * @param name the name of the platform threads, if they are not virtual.
+     *             name != null
+     * @return the executor
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops an executor from taking new tasks, and waits up to DSHUTDOWN_TIMEOUT for the
+     * tasks it has already taken to finish.
+     * @param executor the executor to shut down.
+     *                 executor != null
+     */
+    static void shutdownAndAwait(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DSHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                System.err.println("Requests still running at shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper Methods in private
+
+    private static Method virtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -1,19 +1,37 @@
 package cpen221.mp3.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Class used for testing connections to WikiMediatorServer
+ *
+ * Requests can be sent one at a time, with sendRequest and getReply, or asynchronously, with
+ * sendAsync. The first call to sendAsync asks the server to pipeline the connection, and from
+ * then on a reader thread completes the future of each request as its response arrives, matched
+ * by id, in whatever order the server answers them. getReply cannot be used after sendAsync.
+ *
+ * A client on a slow link can call compress when it connects, after which the server sends every
+ * response in deflate-compressed frames, which in reads through a FrameInputStream; requests are
+ * still sent as plain lines.
  */
 public class WikiMediatorClient {
     private final static Gson jsonConverter = new Gson();
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    private final Map<JsonElement, CompletableFuture<JsonObject>> pending = new HashMap<>();
+    private Thread reader = null;
+    private IOException failure = null;
 
     public WikiMediatorClient(String hostname, int port) throws IOException {
         socket = new Socket(hostname, port);
@@ -22,8 +40,10 @@ public class WikiMediatorClient {
     }
 
     public void sendRequest(JsonObject json) {
-        out.println(jsonConverter.toJson(json));
-        out.flush();
+        synchronized (out) {
+            out.println(jsonConverter.toJson(json));
+            out.flush();
+        }
     }
 
     public String getReply() throws IOException {
@@ -34,9 +54,179 @@ public class WikiMediatorClient {
         return new String(reply);
     }
 
+    /**
+     * Sends a request without waiting for its response. Responses to requests sent this way may
+     * arrive in any order, so every request that is waiting for its response must have a distinct id.
+     * @param json the request.
+     *             json != null, and json has an id that no request still waiting has
+     * @return a future completed with the response to json, or completed exceptionally
+     *         with an IOException if the connection ends before the response arrives
+     * @throws IOException if the connection cannot be pipelined
+     */
+    public CompletableFuture<JsonObject> sendAsync(JsonObject json) throws IOException {
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        synchronized (pending) {
+            if (reader == null) {
+                pipeline();
+            }
+            if (failure != null) {
+                response.completeExceptionally(failure);
+                return response;
+            }
+            if (pending.putIfAbsent(json.get("id"), response) != null) {
+                throw new IllegalArgumentException("A request with id " + json.get("id") + " is already waiting");
+            }
+        }
+        sendRequest(json);
+        return response;
+    }
+
+    /**
+     * Asks the server to compress every later response, at the server's default level.
+     * Must be called before any request is sent with sendAsync, and while no reply is waiting.
+     * @throws IOException if the server does not compress responses
+     */
+    public void compress() throws IOException {
+        compress(-1);
+    }
+
+    /**
+     * Asks the server to compress every later response.
+     * Must be called before any request is sent with sendAsync, and while no reply is waiting.
+     * @param level the deflate level, from 0 (none) to 9 (smallest), or -1 for the server's default.
+     *              -1 <= level <= 9
+     * @throws IOException if the server does not compress responses
+     */
+    public void compress(int level) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", "compress");
+        json.addProperty("type", "compress");
+        if (level >= 0) {
+            json.addProperty("level", level);
+        }
+        sendRequest(json);
+        JsonObject reply = jsonConverter.fromJson(getReply(), JsonObject.class);
+        if (!reply.has("compressed")) {
+            throw new IOException("server does not compress responses: " + reply);
+        }
+        // the server sends nothing more until the next request, so in has nothing buffered past the reply
+        in = new BufferedReader(new InputStreamReader(new FrameInputStream(socket.getInputStream())));
+    }
+
     public void close() throws IOException {
+        // closing the socket first stops the reader thread, which holds in while it waits
+        socket.close();
         in.close();
         out.close();
-        socket.close();
+    }
+
+    // Helper Methods in private
+
+    //asks the server to answer out of order, and starts reading its responses in the background
+    private void pipeline() throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", "pipeline");
+        json.addProperty("type", "pipeline");
+        sendRequest(json);
+        JsonObject reply = jsonConverter.fromJson(getReply(), JsonObject.class);
+        if (!reply.has("pipelined")) {
+            throw new IOException("server does not pipeline requests: " + reply);
+        }
+        reader = new Thread(this::readResponses, "wiki-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //completes the future of every response that arrives, until the connection ends
+    private void readResponses() {
+        IOException ended;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                JsonObject reply = jsonConverter.fromJson(line, JsonObject.class);
+                CompletableFuture<JsonObject> response;
+                synchronized (pending) {
+                    response = pending.remove(reply.get("id"));
+                }
+                if (response != null) {
+                    response.complete(reply);
+                }
+            }
+            ended = new IOException("connection terminated unexpectedly");
+        } catch (IOException e) {
+            ended = e;
+        } catch (RuntimeException e) {
+            ended = new IOException("malformed response", e);
+        }
+        synchronized (pending) {
+            failure = ended;
+            for (CompletableFuture<JsonObject> response : pending.values()) {
+                response.completeExceptionally(ended);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Reads the responses of a compressed connection: frames of a 4-byte big-endian length and
+     * that many bytes, which are the pieces of one deflate stream, flushed at the end of each.
+     */
+    private static final class FrameInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] frame = new byte[8192];
+
+        FrameInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int inflated;
+                while ((inflated = inflater.inflate(b, off, len)) == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        return -1;
+                    }
+                    if (inflater.needsInput() && !nextFrame()) {
+                        return -1;
+                    }
+                }
+                return inflated;
+            } catch (DataFormatException e) {
+                throw new IOException("malformed frame", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        //hands the next frame to inflater, or returns false if the connection has ended
+        private boolean nextFrame() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (length > frame.length) {
+                frame = new byte[Math.max(length, 2 * frame.length)];
+            }
+            in.readFully(frame, 0, length);
+            inflater.setInput(frame, 0, length);
+            return true;
+        }
     }
 }
@@ -3,11 +3,11 @@ package cpen221.mp3.server;
 import cpen221.mp3.wikimediator.WikiMediator;
 
 import com.google.gson.JsonObject;
-import com.google.gson.Gson;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /*
@@ -18,22 +18,44 @@ import java.util.concurrent.*;
  * WikiMediatorServer accepts requests from a network socket and passes them to a WikiMediator. It then sends
  * the responses to the network socket.
  * All clients receive their own thread, and all requests/responses are represented as JSONs.
+ * By default, client threads come from a pool of maxClients threads. With virtualThreads, every
+ * client gets a new thread, virtual where the JVM has virtual threads, so that thousands of clients
+ * can wait on the wiki at once.
+ * Requests with a timeout run on requestThreads, a thread-per-task executor, and are cancelled
+ * once they time out.
+ * A client that sends a request of type "pipeline" has its later requests run concurrently on
+ * requestThreads, and gets each response as soon as it is ready, tagged with the id of its
+ * request, rather than in the order it sent them.
+ * Responses are escaped straight into a ResponseBuffer of the client's connection, reused by all of
+ * its responses, and written from there. A client that sends a request of type "compress" gets
+ * every later response compressed, in frames.
  *
  * Running represents the state of the server, and is changed when the server shuts down and stops
- * accepting connections.
+ * accepting connections. clients holds the sockets of the clients being handled; once the server
+ * stops, each of them is read no further, answered the requests it has already sent, and closed,
+ * and only then are requestThreads and mediator shut down.
  * serverSocket is the ServerSocket through which the server communicates with its clients.
  * maxClients is the maximum numbers of clients the server can respons to at once.
  * mediator is the WikiMediator service through which all the client requests are fed,
- * and from which all the responses come.
+ * and from which all the responses come, through processor.
  */
 
 public class WikiMediatorServer {
-    private static final Gson jsonConverter = new Gson();
 
-    boolean running;
+    /* the number of connections that may wait to be accepted when every client has its own thread */
+    public static final int DBACKLOG = 1024;
+
+    /* the largest number of requests of one pipelined client that run at once */
+    public static final int MAX_PIPELINED = 64;
+
+    volatile boolean running;
     private final ServerSocket serverSocket;
     private final int maxClients;
     private final WikiMediator mediator;
+    private final boolean virtualThreads;
+    private final ExecutorService requestThreads;
+    private final RequestProcessor processor;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
 
 
     /**
@@ -45,49 +67,84 @@ public class WikiMediatorServer {
      * @param wikiMediator the WikiMediator instance to use for the server, {@code wikiMediator} is not {@code null}
      */
     public WikiMediatorServer(int port, int n, WikiMediator wikiMediator) {
+        this(port, n, wikiMediator, false);
+    }
+
+    /**
+     * Start a server at a given port number that either processes up to n requests concurrently,
+     * or runs every client on a thread of its own.
+     *
+     * @param port the port number to bind the server to, 9000 <= {@code port} <= 9999
+     * @param n the number of concurrent requests the server can handle, 0 < {@code n} <= 32.
+     *          Ignored if {@code virtualThreads} is true.
+     * @param wikiMediator the WikiMediator instance to use for the server, {@code wikiMediator} is not {@code null}
+     * @param virtualThreads true to run every client on a new thread, virtual if the JVM has virtual
+     *                       threads, instead of on a pool of n threads
+     */
+    public WikiMediatorServer(int port, int n, WikiMediator wikiMediator, boolean virtualThreads) {
         maxClients = n;
         mediator = wikiMediator;
+        this.virtualThreads = virtualThreads;
+        requestThreads = ServerExecutors.newThreadPerTaskExecutor("wiki-request");
+        processor = new RequestProcessor(wikiMediator, requestThreads);
         running = true;
 
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port, virtualThreads ? DBACKLOG : 0);
         } catch (IOException io) {
             throw new RuntimeException("Server failed to initialize");
         }
     }
 
     /**
-     * Conducts all server business, until the server is told to shut down.
+     * Conducts all server business, until the server is told to shut down, and then stores
+     * the requests of the mediator and closes it.
      */
     public void serve() {
         mediator.readStorage();
-        ExecutorService handler = Executors.newFixedThreadPool(maxClients);
+        ExecutorService handler = virtualThreads
+                ? ServerExecutors.newThreadPerTaskExecutor("wiki-client")
+                : Executors.newFixedThreadPool(maxClients);
         while (running) {
             try {
                 final Socket socket = serverSocket.accept();
-                Thread h = new Thread(() -> {
-                    {
+                clients.add(socket);
+                handler.execute(() -> {
+                    try {
+                        handle(socket);
+                    } finally {
+                        clients.remove(socket);
                         try {
-                            handle(socket);
-                        } finally {
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                throw new RuntimeException("Error in handling connection.");
-                            }
+                            socket.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            throw new RuntimeException("Error in handling connection.");
                         }
                     }
                 });
-                handler.execute(h);
 
             }   catch (IOException io) {
+                if (!running) {
+                    // a stop request closed the socket while accept was waiting on it
+                    break;
+                }
                 io.printStackTrace();
                 throw new RuntimeException("Error in accepting connection.");
             }
         }
+        // every client is answered what it has already sent, and then disconnected, before the
+        // executors its requests run on and the mediator are shut down
+        for (Socket socket : clients) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException io) {
+                // the client is already gone
+            }
+        }
+        ServerExecutors.shutdownAndAwait(handler);
+        requestThreads.shutdown();
         mediator.storeRequests();
-        handler.shutdown();
+        mediator.close();
         if (!serverSocket.isClosed()) {
             try {
                 serverSocket.close();
@@ -100,6 +157,8 @@ public class WikiMediatorServer {
 
     /**
      * Handles a single client, and responds to their requests.
+     * Once the client has asked for pipelining, its requests run concurrently on requestThreads,
+     * up to MAX_PIPELINED at a time, and each response is written as soon as it is ready.
      * @param socket    The socket through which the client will
      *                  communicate.
      */
@@ -107,41 +166,29 @@ public class WikiMediatorServer {
         try {
 
             try (socket; BufferedReader in = new BufferedReader(new InputStreamReader(
-                    socket.getInputStream())); PrintWriter out = new PrintWriter(new OutputStreamWriter(
-                    socket.getOutputStream()), true)) {
+                    socket.getInputStream())); OutputStream out = socket.getOutputStream()) {
+                ResponseBuffer responses = new ResponseBuffer();
+                boolean pipelined = false;
+                Semaphore inFlight = new Semaphore(MAX_PIPELINED);
                 String request;
                 while ((request = in.readLine()) != null) {
-
-                    JsonObject json = jsonConverter.fromJson(request, JsonObject.class);
-                    JsonObject response = new JsonObject();
-
-                    ExecutorService timerExecutor = Executors.newSingleThreadExecutor();
-                    Future<Void> future = timerExecutor.submit(() -> {
-                        createResponse(json, response);
-                        return null;
-                    });
-
-                    response.add("id", json.get("id"));
-
-                    try {
-                        if (json.has("timeout")) {
-                            future.get(json.get("timeout").getAsInt(), TimeUnit.SECONDS);
-                        } else {
-                            future.get();
-                        }
-                    } catch (TimeoutException e) {
-                        addErrorMessage(response);
-                    } catch (ExecutionException | InterruptedException e) {
-                        e.printStackTrace();
-                        throw new RuntimeException("Error in creating response.");
-                    }
-
-                    out.println(jsonConverter.toJson(response));
-                    if (response.has("response") && response.get("response").getAsString().equals("bye")) {
-                        running = false;
-                        serverSocket.close();
+                    if (pipelined) {
+                        inFlight.acquireUninterruptibly();
+                        String pipelinedRequest = request;
+                        requestThreads.execute(() -> {
+                            try {
+                                respond(pipelinedRequest, socket, out, responses);
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                        continue;
                     }
+                    pipelined = RequestProcessor.isPipeline(respond(request, socket, out, responses));
                 }
+                // let the responses still running be written before the socket is closed
+                inFlight.acquireUninterruptibly(MAX_PIPELINED);
+                responses.close();
             }
         } catch (IOException io) {
             io.printStackTrace();
@@ -151,94 +198,56 @@ public class WikiMediatorServer {
     }
 
     /**
-     * Given a request, create the appropriate response by using a
-     * WikiMediator Service
-     * @param json  client request
-     * @param response  response to client
+     * Answers one request of a client, and shuts the server down if it is a stop request.
+     * A request that cannot be answered closes the connection.
+     * @param request   the request.
+     * @param socket    The socket through which the client
+     *                  communicates.
+     * @param out       writes to socket.
+     * @param responses the responses of socket not yet written to out.
+     *                  Responses are appended and written while
+     *                  holding its lock.
+     * @return the response
      */
-    private void createResponse(JsonObject json, JsonObject response) {
-        String result;
-        boolean successful = false;
-
+    private JsonObject respond(String request, Socket socket, OutputStream out, ResponseBuffer responses) {
+        JsonObject response;
         try {
-            switch (json.get("type").getAsString()) {
-                case "search":
-                    result = mediator.search(
-                                    json.get("query").getAsString(),
-                                    json.get("limit").getAsInt()).toString();
-                    successful = true;
-                    break;
-
-                case "getPage":
-                    result = mediator.getPage(
-                            json.get("pageTitle").getAsString()
-                    );
-                    successful = true;
-                    break;
-
-                case "zeitgeist":
-                    result = mediator.zeitgeist(
-                            json.get("limit").getAsInt()
-                    ).toString();
-                    successful = true;
-                    break;
-
-                case "trending":
-                    result = mediator.trending(
-                            json.get("timeLimitInSeconds").getAsInt(),
-                            json.get("maxItems").getAsInt()
-                    ).toString();
-                    successful = true;
-                    break;
-
-                case "windowedPeakLoad":
-                    if (json.has("timeWindowInSeconds")) {
-                        result = Integer.toString(mediator.windowedPeakLoad(
-                                json.get("timeWindowInSeconds").getAsInt()));
-                    } else {
-                        result = Integer.toString(mediator.windowedPeakLoad());
-                    }
-                    successful = true;
-                    break;
-
-                case "shortestPath":
-                    try {
-                        result = mediator.shortestPath(
-                                json.get("pageTitle1").getAsString(),
-                                json.get("pageTitle2").getAsString(),
-                                json.get("timeout").getAsInt()
-                        ).toString();
-                        successful = true;
-                    } catch (TimeoutException e) {
-                        result =  "Operation timed out";
-                        addErrorMessage(response);
-                    }
-                    break;
+            response = processor.respond(request);
+        } catch (RuntimeException e) {
+            closeQuietly(socket);
+            throw e;
+        }
 
-                case "stop":
-                    result = "bye";
-                    break;
-                default:
-                    result = "Operation not recognized.";
-                    response.addProperty("status", "failed");
+        // the server stops even if the client is gone before it can be told
+        if (RequestProcessor.isStop(response)) {
+            running = false;
+            try {
+                serverSocket.close();
+            } catch (IOException io) {
+                io.printStackTrace();
+                throw new RuntimeException("Error in closing connection.");
             }
-        } catch (NullPointerException np) {
-            result = "Error in parsing request";
-            response.addProperty("status", "failed");
         }
-        response.addProperty("response", result);
-        if (successful) {
-            response.addProperty("status", "success");
+        try {
+            synchronized (responses) {
+                responses.append(response);
+                responses.writeTo(out);
+                if (RequestProcessor.isCompress(response)) {
+                    responses.compress(RequestProcessor.compressionLevel(response));
+                }
+            }
+        } catch (IOException io) {
+            closeQuietly(socket);
+            throw new RuntimeException("Error in writing response.");
         }
+        return response;
     }
 
-    /**
-     * Add a timeout error message to response.
-     * @param response  Response to which the error message
-     *                  should be added.
-     */
-    private void addErrorMessage (JsonObject response) {
-        response.addProperty("status", "failed");
-        response.addProperty("response", "Operation timed out.");
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,103 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Representation Invariants (RI):
+ * every value in links is an unmodifiable list
+ *
+ * Abstraction Function (AF):
+ * InMemoryWikiBackend is an offline WikiBackend whose wiki consists of the pages added to it.
+ * pages maps the title of every page to its text, and links maps the title of every page to the
+ * titles it links to. Links may point to titles that have no page. backlinks is the reverse index
+ * of links: it maps every linked title to the titles of the pages that link to it.
+ * A search returns, in title order, the pages whose title contains the query, ignoring case.
+ *
+ * Thread Safety:
+ * pages, links and backlinks are concurrent maps, and the link lists they hold are either never
+ * modified or concurrent sets, so pages can be read while another thread adds one. addPage is
+ * synchronized so that concurrent additions keep backlinks consistent with links.
+ */
+public class InMemoryWikiBackend implements WikiBackend {
+
+    private final Map<String, String> pages = new ConcurrentSkipListMap<>();
+    private final Map<String, List<String>> links = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> backlinks = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a page, replacing any page with the same title.
+     * @param pageTitle the title of the page.
+     *                  pageTitle != null
+     * @param text      the full text of the page.
+     *                  text != null
+     * @param pageLinks the titles of the pages this page links to.
+     *                  pageLinks != null
+     */
+    public synchronized void addPage(String pageTitle, String text, List<String> pageLinks) {
+        List<String> oldLinks = links.put(pageTitle, Collections.unmodifiableList(new ArrayList<>(pageLinks)));
+        if (oldLinks != null) {
+            for (String link : oldLinks) {
+                backlinks.get(link).remove(pageTitle);
+            }
+        }
+        for (String link : pageLinks) {
+            backlinks.computeIfAbsent(link, l -> ConcurrentHashMap.newKeySet()).add(pageTitle);
+        }
+        pages.put(pageTitle, text);
+    }
+
+    /**
+     * @return an unmodifiable view of the text of every page, keyed by title
+     */
+    public Map<String, String> pages() {
+        return Collections.unmodifiableMap(pages);
+    }
+
+    /**
+     * @return an unmodifiable view of the links of every page, keyed by title
+     */
+    public Map<String, List<String>> links() {
+        return Collections.unmodifiableMap(links);
+    }
+
+    @Override
+    public List<String> search(String query, int limit) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<String> results = new ArrayList<>();
+        for (String title : pages.keySet()) {
+            if (limit >= 0 && results.size() >= limit) {
+                break;
+            }
+            if (title.toLowerCase(Locale.ROOT).contains(needle)) {
+                results.add(title);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String getPageText(String pageTitle) {
+        return pages.getOrDefault(pageTitle, "");
+    }
+
+    @Override
+    public List<String> getLinksOnPage(String pageTitle) {
+        return links.getOrDefault(pageTitle, Collections.emptyList());
+    }
+
+    @Override
+    public List<String> getBacklinks(String pageTitle) {
+        Set<String> linkingPages = backlinks.get(pageTitle);
+        if (linkingPages == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(linkingPages);
+    }
+}
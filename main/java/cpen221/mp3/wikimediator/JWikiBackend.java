@@ -0,0 +1,57 @@
+package cpen221.mp3.wikimediator;
+
+import org.fastily.jwiki.core.Wiki;
+
+import java.util.List;
+
+/*
+ * Abstraction Function (AF):
+ * JWikiBackend is a WikiBackend that answers every call by sending a request to a live
+ * wiki through the JWiki API. wiki represents the connection to that wiki.
+ *
+ * Thread Safety:
+ * wiki is never reassigned, and JWiki allows concurrent requests through one Wiki.
+ */
+public class JWikiBackend implements WikiBackend {
+
+    /* the wiki used by default */
+    public static final String DDOMAIN = "en.wikipedia.org";
+
+    private final Wiki wiki;
+
+    /**
+     * Creates a backend connected to the given wiki.
+     * @param domain the domain of the wiki, for example "en.wikipedia.org".
+     *               domain != null
+     */
+    public JWikiBackend(String domain) {
+        wiki = new Wiki.Builder().withDomain(domain).build();
+    }
+
+    /**
+     * Creates a backend connected to the English Wikipedia.
+     */
+    public JWikiBackend() {
+        this(DDOMAIN);
+    }
+
+    @Override
+    public List<String> search(String query, int limit) {
+        return wiki.search(query, limit);
+    }
+
+    @Override
+    public String getPageText(String pageTitle) {
+        return wiki.getPageText(pageTitle);
+    }
+
+    @Override
+    public List<String> getLinksOnPage(String pageTitle) {
+        return wiki.getLinksOnPage(pageTitle);
+    }
+
+    @Override
+    public List<String> getBacklinks(String pageTitle) {
+        return wiki.whatLinksHere(pageTitle);
+    }
+}
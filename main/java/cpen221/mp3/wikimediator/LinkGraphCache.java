@@ -0,0 +1,442 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/*
+ * Representation Invariants (RI):
+ * ids.get(titles.get(i)) == i for every i
+ * rowLength[i] == -1 if the links of title i are not cached
+ * otherwise edges[rowOffset[i] .. rowOffset[i] + rowLength[i]) holds the ids of the titles that i links to
+ * rows never overlap, and every row lies below edgeCount
+ * rowCount is the number of titles i with rowLength[i] >= 0, and ring[0 .. rowCount) holds exactly those i
+ * liveEdges is the sum of rowLength[i] over those i, and liveEdges + rowCount <= capacity
+ * 0 <= frequency[i] <= MAX_FREQUENCY
+ *
+ * Abstraction Function (AF):
+ * LinkGraphCache is a cache of link lists: it maps each cached title to the list of titles it links to.
+ * Titles are interned to int ids, and the link lists are stored as rows of ids in a compressed sparse row
+ * layout: one off-heap int buffer, edges, holds the rows, and rowOffset and rowLength say where the row of
+ * each title starts and how long it is. New rows are appended at edgeCount.
+ * Cached lists never go stale; the cache assumes links change far more slowly than it is used.
+ *
+ * Capacity:
+ * The cache holds at most capacity links, counting each row as its length plus one, so that a few long
+ * lists cannot crowd out many short ones unnoticed. To make room, it evicts by a clock over ring, the ids
+ * of the cached rows: hand moves round ring, and a row it passes has its frequency decreased, or is evicted
+ * if its frequency is already 0. Every get of a row increases its frequency, up to MAX_FREQUENCY, so a hub
+ * page that nearly every path search reads survives many turns of the clock, while a row read once by a
+ * single search is evicted on the next turn that needs room.
+ * An evicted row leaves a hole in edges. Once the holes take up as much of edges as the rows do, the next
+ * row that does not fit makes the cache compact: it copies the rows into a new buffer without holes, and
+ * renumbers the titles, dropping the ones that are neither cached nor linked to by a cached row. Titles
+ * and edges therefore stay within a constant factor of capacity however long the cache is used.
+ *
+ * File format (all integers are big-endian):
+ * int MAGIC, int VERSION, int titleCount, then titleCount titles, each an int byte length followed by the
+ * UTF-8 bytes, then titleCount int row lengths (-1 for uncached titles), then int edgeCount followed by
+ * the rows of every cached title, in title order. Row offsets are implied by the row lengths.
+ *
+ * Thread Safety:
+ * All state is guarded by lock. Lookups hold its read lock, so they proceed in parallel, and adding a row
+ * or loading a file holds its write lock. The one exception is frequency, which lookups increase while
+ * holding only the read lock; two lookups of the same row at once may count as one, which only makes
+ * eviction slightly less exact. Loaders run without holding the lock, so two threads that miss on
+ * the same title at once may both load it; only the first row stored is kept.
+ */
+public class LinkGraphCache {
+
+    public static final int MAGIC = 0x574D4C47;
+    public static final int VERSION = 1;
+
+    /* the default capacity of a cache, in links */
+    public static final int DCAPACITY = 1 << 22;
+
+    /* the most gets a row is credited with, so that a row popular long ago is eventually evicted */
+    private static final int MAX_FREQUENCY = 15;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int capacity;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> titles = new ArrayList<>();
+    private int[] rowOffset = new int[1024];
+    private int[] rowLength = new int[1024];
+    private int[] frequency = new int[1024];
+    private IntBuffer edges = ByteBuffer.allocateDirect(4096 * Integer.BYTES).asIntBuffer();
+    private int edgeCount = 0;
+    private int liveEdges = 0;
+    private int rowCount = 0;
+    private int[] ring = new int[1024];
+    private int hand = 0;
+
+    /**
+     * Creates an empty cache that holds up to DCAPACITY links.
+     */
+    public LinkGraphCache() {
+        this(DCAPACITY);
+    }
+
+    /**
+     * Creates an empty cache.
+     * @param capacity the number of links the cache can hold, counting each cached title
+     *                 as one link more than it has.
+     *                 capacity >= 0
+     */
+    public LinkGraphCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached links of a title, loading and caching them if they are not cached.
+     * @param title  the title whose links are asked for.
+     *               title != null
+     * @param loader fetches the links of a title that is not cached.
+     *               loader != null
+     * @return the titles that title links to
+     */
+    public List<String> getOrLoad(String title, Function<String, List<String>> loader) {
+        List<String> cached = get(title);
+        if (cached != null) {
+            return cached;
+        }
+        List<String> loaded = loader.apply(title);
+        put(title, loaded);
+        return loaded;
+    }
+
+    /**
+     * @param title the title whose links are asked for.
+     *              title != null
+     * @return the cached links of title, or null if they are not cached
+     */
+    public List<String> get(String title) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(title);
+            if (id == null || rowLength[id] < 0) {
+                return null;
+            }
+            if (frequency[id] < MAX_FREQUENCY) {
+                frequency[id]++;
+            }
+            List<String> links = new ArrayList<>(rowLength[id]);
+            for (int i = rowOffset[id]; i < rowOffset[id] + rowLength[id]; i++) {
+                links.add(titles.get(edges.get(i)));
+            }
+            return links;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Caches the links of a title, unless they are already cached, evicting the links of
+     * other titles that are read least often if the cache is full. Links of more than
+     * capacity - 1 titles are not cached.
+     * @param title the title whose links are given.
+     *              title != null
+     * @param links the titles that title links to.
+     *              links != null
+     */
+    public void put(String title, List<String> links) {
+        lock.writeLock().lock();
+        try {
+            Integer cached = ids.get(title);
+            if (cached != null && rowLength[cached] >= 0) {
+                return;
+            }
+            int weight = links.size() + 1;
+            if (weight > capacity) {
+                return;
+            }
+            while (liveEdges + rowCount + weight > capacity) {
+                evictOne();
+            }
+            ensureEdgeCapacity(links.size());
+
+            int id = intern(title);
+            int offset = edgeCount;
+            for (String link : links) {
+                edges.put(edgeCount++, intern(link));
+            }
+            rowOffset[id] = offset;
+            rowLength[id] = links.size();
+            // a new row survives one turn of the clock before it has to have been read
+            frequency[id] = 1;
+            if (rowCount == ring.length) {
+                ring = Arrays.copyOf(ring, rowCount * 2);
+            }
+            ring[rowCount++] = id;
+            liveEdges += links.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of titles whose links are cached
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rowCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the total number of links cached over all titles
+     */
+    public int edgeCount() {
+        lock.readLock().lock();
+        try {
+            return liveEdges;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the cache to a file, with its rows compacted into title order.
+     * Parent directories are created if needed.
+     * @param file the file to write, replacing any existing file.
+     *             file != null
+     * @throws IOException if the file cannot be written
+     */
+    public void store(Path file) throws IOException {
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(titles.size());
+            for (String title : titles) {
+                byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            int liveEdges = 0;
+            for (int i = 0; i < titles.size(); i++) {
+                out.writeInt(rowLength[i]);
+                liveEdges += Math.max(rowLength[i], 0);
+            }
+            out.writeInt(liveEdges);
+            for (int i = 0; i < titles.size(); i++) {
+                for (int e = rowOffset[i]; e < rowOffset[i] + Math.max(rowLength[i], 0); e++) {
+                    out.writeInt(edges.get(e));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the cache with a file written by store.
+     * The file is memory-mapped and its rows are copied off-heap in one bulk transfer.
+     * If the file holds more links than the cache can, rows are evicted until it fits.
+     * @param file the file to read.
+     *             file != null
+     * @throws IOException if the file cannot be read or was not written by store
+     */
+    public void load(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+                throw new IOException("Not a link graph: " + file);
+            }
+            int titleCount = data.getInt();
+            List<String> newTitles = new ArrayList<>(titleCount);
+            for (int i = 0; i < titleCount; i++) {
+                byte[] bytes = new byte[data.getInt()];
+                data.get(bytes);
+                newTitles.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            int[] newRowOffset = new int[Math.max(titleCount, 1024)];
+            int[] newRowLength = new int[Math.max(titleCount, 1024)];
+            int[] newFrequency = new int[Math.max(titleCount, 1024)];
+            int[] newRing = new int[Math.max(titleCount, 1024)];
+            int offset = 0;
+            int newRowCount = 0;
+            for (int i = 0; i < titleCount; i++) {
+                newRowLength[i] = data.getInt();
+                newRowOffset[i] = offset;
+                offset += Math.max(newRowLength[i], 0);
+                if (newRowLength[i] >= 0) {
+                    newFrequency[i] = 1;
+                    newRing[newRowCount++] = i;
+                }
+            }
+            int newEdgeCount = data.getInt();
+            if (newEdgeCount != offset) {
+                throw new IOException("Corrupt link graph: " + file);
+            }
+            IntBuffer newEdges = ByteBuffer.allocateDirect(Math.max(newEdgeCount, 4096) * Integer.BYTES)
+                    .asIntBuffer();
+            IntBuffer stored = data.asIntBuffer();
+            stored.limit(newEdgeCount);
+            newEdges.put(stored);
+
+            ids.clear();
+            titles.clear();
+            titles.addAll(newTitles);
+            for (int i = 0; i < titleCount; i++) {
+                ids.put(titles.get(i), i);
+            }
+            rowOffset = newRowOffset;
+            rowLength = newRowLength;
+            frequency = newFrequency;
+            edges = newEdges;
+            edgeCount = newEdgeCount;
+            liveEdges = newEdgeCount;
+            rowCount = newRowCount;
+            ring = newRing;
+            hand = 0;
+            while (liveEdges + rowCount > capacity) {
+                evictOne();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Truncated or corrupt link graph: " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Helper Methods in private
+
+    //interns a title, giving it an empty row if it is new; requires the write lock
+    private int intern(String title) {
+        Integer id = ids.get(title);
+        if (id != null) {
+            return id;
+        }
+        int newId = titles.size();
+        ids.put(title, newId);
+        titles.add(title);
+        if (newId == rowLength.length) {
+            rowOffset = Arrays.copyOf(rowOffset, newId * 2);
+            rowLength = Arrays.copyOf(rowLength, newId * 2);
+            frequency = Arrays.copyOf(frequency, newId * 2);
+        }
+        rowLength[newId] = -1;
+        frequency[newId] = 0;
+        return newId;
+    }
+
+    //evicts the first row the clock hand finds with a frequency of 0; requires the write lock and a cached row
+    private void evictOne() {
+        while (true) {
+            if (hand >= rowCount) {
+                hand = 0;
+            }
+            int id = ring[hand];
+            if (frequency[id] > 0) {
+                frequency[id]--;
+                hand++;
+                continue;
+            }
+            liveEdges -= rowLength[id];
+            rowLength[id] = -1;
+            // the last row takes the place of the evicted one, and the hand looks at it next
+            ring[hand] = ring[--rowCount];
+            return;
+        }
+    }
+
+    //makes room in the off-heap edge buffer for extra more ids, compacting it if half of it is holes;
+    //requires the write lock
+    private void ensureEdgeCapacity(int extra) {
+        if (edgeCount + extra <= edges.capacity()) {
+            return;
+        }
+        if (edgeCount - liveEdges > 0 && edgeCount - liveEdges >= liveEdges) {
+            compact(Math.max(edges.capacity(), liveEdges + extra));
+            return;
+        }
+        int newCapacity = Math.max(edgeCount + extra, edges.capacity() * 2);
+        IntBuffer grown = ByteBuffer.allocateDirect(newCapacity * Integer.BYTES).asIntBuffer();
+        IntBuffer used = edges.duplicate();
+        used.position(0).limit(edgeCount);
+        grown.put(used);
+        edges = grown;
+    }
+
+    //copies the cached rows into a new edge buffer without holes, renumbering the titles and dropping
+    //the ones no cached row needs; requires the write lock
+    private void compact(int newCapacity) {
+        boolean[] needed = new boolean[titles.size()];
+        for (int r = 0; r < rowCount; r++) {
+            int id = ring[r];
+            needed[id] = true;
+            for (int e = rowOffset[id]; e < rowOffset[id] + rowLength[id]; e++) {
+                needed[edges.get(e)] = true;
+            }
+        }
+        int[] newId = new int[titles.size()];
+        List<String> newTitles = new ArrayList<>();
+        for (int i = 0; i < titles.size(); i++) {
+            if (needed[i]) {
+                newId[i] = newTitles.size();
+                newTitles.add(titles.get(i));
+            }
+        }
+
+        int size = Math.max(newTitles.size(), 1024);
+        int[] newRowOffset = new int[size];
+        int[] newRowLength = new int[size];
+        int[] newFrequency = new int[size];
+        Arrays.fill(newRowLength, -1);
+        IntBuffer newEdges = ByteBuffer.allocateDirect(newCapacity * Integer.BYTES).asIntBuffer();
+        int offset = 0;
+        for (int r = 0; r < rowCount; r++) {
+            int id = ring[r];
+            int renumbered = newId[id];
+            newRowOffset[renumbered] = offset;
+            newRowLength[renumbered] = rowLength[id];
+            newFrequency[renumbered] = frequency[id];
+            for (int e = rowOffset[id]; e < rowOffset[id] + rowLength[id]; e++) {
+                newEdges.put(offset++, newId[edges.get(e)]);
+            }
+            ring[r] = renumbered;
+        }
+
+        ids.clear();
+        for (int i = 0; i < newTitles.size(); i++) {
+            ids.put(newTitles.get(i), i);
+        }
+        titles.clear();
+        titles.addAll(newTitles);
+        rowOffset = newRowOffset;
+        rowLength = newRowLength;
+        frequency = newFrequency;
+        edges = newEdges;
+        edgeCount = offset;
+    }
+}
@@ -0,0 +1,268 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * Representation Invariants (RI):
+ * titles is sorted, and ids.get(titles[i]) == i for every i
+ * titles, lowerTitles, textOffsets, textLengths, linkOffsets and linkCounts all have the same length
+ * textOffsets[i] == -1 if title i has no page, otherwise data holds textLengths[i] bytes of UTF-8 text at textOffsets[i]
+ * data holds linkCounts[i] title ids at linkOffsets[i], each a valid index into titles
+ * once built, backlinkIds[backlinkOffsets[i] .. backlinkOffsets[i + 1]) holds the ids of the titles linking to i
+ *
+ * Abstraction Function (AF):
+ * MappedWikiBackend is an offline WikiBackend whose wiki is read from a page dump on disk.
+ * data is the memory-mapped dump. Title i of the dump is titles[i], and its page text and link list
+ * are read straight out of data, at the offsets recorded for i, only when they are asked for.
+ * A search returns, in title order, the pages whose title contains the query, ignoring case.
+ * Backlinks come from a reverse index, in compressed sparse row form, that is built from the link
+ * lists the first time any backlinks are asked for.
+ *
+ * Dump format (all integers are big-endian):
+ * int MAGIC, int VERSION, int titleCount,
+ * then titleCount titles, each an int byte length followed by the UTF-8 bytes, in sorted order,
+ * then, for each title in the same order, an int text length (-1 if the title has no page) followed by
+ * the UTF-8 text, and an int link count followed by that many int title ids.
+ * A dump must be smaller than 2 GB.
+ *
+ * Thread Safety:
+ * Nothing but the reverse index is modified after load returns, and data is only read with absolute
+ * gets, which do not touch the position of the shared buffer. The reverse index is built while holding
+ * the lock of the backend and published through the volatile field backlinkOffsets.
+ */
+public class MappedWikiBackend implements WikiBackend {
+
+    public static final int MAGIC = 0x574D4450;
+    public static final int VERSION = 1;
+
+    private final MappedByteBuffer data;
+    private final Map<String, Integer> ids;
+    private final String[] titles;
+    private final String[] lowerTitles;
+    private final int[] textOffsets;
+    private final int[] textLengths;
+    private final int[] linkOffsets;
+    private final int[] linkCounts;
+    private volatile int[] backlinkOffsets;
+    private int[] backlinkIds;
+
+    private MappedWikiBackend(MappedByteBuffer data, String[] titles) {
+        this.data = data;
+        this.titles = titles;
+        int count = titles.length;
+        ids = new HashMap<>(count * 2);
+        lowerTitles = new String[count];
+        textOffsets = new int[count];
+        textLengths = new int[count];
+        linkOffsets = new int[count];
+        linkCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids.put(titles[i], i);
+            lowerTitles[i] = titles[i].toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Maps a page dump into memory. Only the titles are decoded up front; page texts and
+     * link lists stay in the mapped file until they are asked for.
+     * @param file the dump to load, as written by write.
+     *             file != null
+     * @return a backend serving the pages of the dump
+     * @throws IOException if the file cannot be read or is not a valid dump
+     */
+    public static MappedWikiBackend load(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+                throw new IOException("Not a page dump: " + file);
+            }
+            String[] titles = new String[data.getInt()];
+            for (int i = 0; i < titles.length; i++) {
+                byte[] bytes = new byte[data.getInt()];
+                data.get(bytes);
+                titles[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            MappedWikiBackend backend = new MappedWikiBackend(data, titles);
+            for (int i = 0; i < titles.length; i++) {
+                int textLength = data.getInt();
+                backend.textLengths[i] = Math.max(textLength, 0);
+                backend.textOffsets[i] = textLength < 0 ? -1 : data.position();
+                data.position(data.position() + backend.textLengths[i]);
+
+                backend.linkCounts[i] = data.getInt();
+                backend.linkOffsets[i] = data.position();
+                data.position(data.position() + backend.linkCounts[i] * Integer.BYTES);
+            }
+            return backend;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Truncated or corrupt page dump: " + file, e);
+        }
+    }
+
+    /**
+     * Writes a page dump that can be loaded with load.
+     * @param file  the file to write, replacing any existing file.
+     *              file != null
+     * @param pages the text of every page, keyed by title.
+     *              pages != null
+     * @param links the titles each page links to, keyed by title.
+     *              links != null
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, Map<String, String> pages, Map<String, List<String>> links)
+            throws IOException {
+        TreeSet<String> allTitles = new TreeSet<>(pages.keySet());
+        allTitles.addAll(links.keySet());
+        links.values().forEach(allTitles::addAll);
+
+        Map<String, Integer> titleIds = new HashMap<>(allTitles.size() * 2);
+        for (String title : allTitles) {
+            titleIds.put(title, titleIds.size());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(allTitles.size());
+            for (String title : allTitles) {
+                byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (String title : allTitles) {
+                String text = pages.get(title);
+                if (text == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                List<String> pageLinks = links.getOrDefault(title, Collections.emptyList());
+                out.writeInt(pageLinks.size());
+                for (String link : pageLinks) {
+                    out.writeInt(titleIds.get(link));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of titles in the dump, including titles that are
+     *         only linked to and have no page
+     */
+    public int titleCount() {
+        return titles.length;
+    }
+
+    @Override
+    public List<String> search(String query, int limit) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < titles.length; i++) {
+            if (limit >= 0 && results.size() >= limit) {
+                break;
+            }
+            if (textOffsets[i] >= 0 && lowerTitles[i].contains(needle)) {
+                results.add(titles[i]);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String getPageText(String pageTitle) {
+        Integer id = ids.get(pageTitle);
+        if (id == null || textOffsets[id] < 0) {
+            return "";
+        }
+        byte[] bytes = new byte[textLengths[id]];
+        data.get(textOffsets[id], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public List<String> getLinksOnPage(String pageTitle) {
+        Integer id = ids.get(pageTitle);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<String> pageLinks = new ArrayList<>(linkCounts[id]);
+        int offset = linkOffsets[id];
+        for (int i = 0; i < linkCounts[id]; i++) {
+            pageLinks.add(titles[data.getInt(offset + i * Integer.BYTES)]);
+        }
+        return pageLinks;
+    }
+
+    @Override
+    public List<String> getBacklinks(String pageTitle) {
+        Integer id = ids.get(pageTitle);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        int[] offsets = backlinkOffsets;
+        if (offsets == null) {
+            offsets = buildBacklinkIndex();
+        }
+        List<String> linkingPages = new ArrayList<>(offsets[id + 1] - offsets[id]);
+        for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+            linkingPages.add(titles[backlinkIds[i]]);
+        }
+        return linkingPages;
+    }
+
+    // Helper Methods in private
+
+    //builds the reverse index of the link lists by counting sort, returning its offsets
+    private synchronized int[] buildBacklinkIndex() {
+        if (backlinkOffsets != null) {
+            return backlinkOffsets;
+        }
+        int[] offsets = new int[titles.length + 1];
+        for (int i = 0; i < titles.length; i++) {
+            for (int j = 0; j < linkCounts[i]; j++) {
+                offsets[data.getInt(linkOffsets[i] + j * Integer.BYTES) + 1]++;
+            }
+        }
+        for (int i = 0; i < titles.length; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] next = new int[titles.length];
+        System.arraycopy(offsets, 0, next, 0, titles.length);
+        int[] reverse = new int[offsets[titles.length]];
+        for (int i = 0; i < titles.length; i++) {
+            for (int j = 0; j < linkCounts[i]; j++) {
+                reverse[next[data.getInt(linkOffsets[i] + j * Integer.BYTES)]++] = i;
+            }
+        }
+
+        backlinkIds = reverse;
+        backlinkOffsets = offsets;
+        return offsets;
+    }
+}
@@ -0,0 +1,334 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/*
+ * Abstraction Function (AF):
+ * PathFinder finds shortest paths between pages of a wiki. links gives the pages that a page
+ * links to, and backlinks the pages that link to a page.
+ *
+ * Each search runs a breadth-first search from both ends at once, always expanding the smaller
+ * of the two frontiers by one full layer, until the two searches meet. Titles are interned to int
+ * ids for the duration of a search, and instead of copying a path for every page it reaches, the
+ * search remembers for each page the edges that reached it from the previous layer. Once the
+ * searches meet, those edges form every shortest path, and the lexicographically smallest path is
+ * read off them by always stepping to the smallest title that still lies on a shortest path.
+ *
+ * The lists of a layer are fetched in parallel on scheduler, as one query per search, so that a
+ * search that runs out of time can cancel the fetches it still has running or waiting. Without a
+ * scheduler, the lists are fetched one at a time on the thread running the search.
+ *
+ * Thread Safety:
+ * PathFinder has no mutable state of its own; every search keeps its state in its own Search
+ * object, which only the thread running the search modifies. links and backlinks must be safe to
+ * call from several threads at once.
+ */
+public class PathFinder {
+
+    private final Function<String, List<String>> links;
+    private final Function<String, List<String>> backlinks;
+    private final PathSearchScheduler scheduler;
+
+    /**
+     * Creates a PathFinder that follows the links of a backend, fetching them on the
+     * thread running each search.
+     * @param backend the wiki to search.
+     *                backend != null
+     */
+    public PathFinder(WikiBackend backend) {
+        this(backend::getLinksOnPage, backend::getBacklinks, null);
+    }
+
+    /**
+     * Creates a PathFinder that follows the given link functions.
+     * @param links     gives the titles a page links to.
+     *                  links != null
+     * @param backlinks gives the titles of the pages linking to a page, and must agree with links.
+     *                  backlinks != null
+     * @param scheduler runs the fetches of each layer in parallel, or null to fetch them one at a
+     *                  time on the thread running the search.
+     */
+    public PathFinder(Function<String, List<String>> links, Function<String, List<String>> backlinks,
+                      PathSearchScheduler scheduler) {
+        this.links = links;
+        this.backlinks = backlinks;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Finds the shortest path of links from one page to another.
+     * If there are two or more, the lexicographically smallest one is returned.
+     * @param from    the title of the page the path starts on.
+     *                from != null
+     * @param to      the title of the page the path ends on.
+     *                to != null
+     * @param timeout the longest the search may take.
+     *                timeout >= 0
+     * @param unit    the unit of timeout.
+     *                unit != null
+     * @return the titles on the path, from first to last, a list holding only from if from equals
+     *         to, or an empty list if there is no path.
+     * @throws TimeoutException if the search took longer than timeout. All of its fetches
+     *                          are cancelled before this is thrown.
+     */
+    public List<String> find(String from, String to, long timeout, TimeUnit unit) throws TimeoutException {
+        if (from.equals(to)) {
+            return new ArrayList<>(Collections.singletonList(from));
+        }
+        Search search = new Search(System.nanoTime() + unit.toNanos(timeout));
+        try {
+            return search.run(from, to);
+        } finally {
+            if (search.query != null) {
+                search.query.cancel();
+            }
+        }
+    }
+
+    /**
+     * The state of one search.
+     *
+     * Page ids index distFrom, distTo, parentHead and nextHead. parentHead[v] starts a list,
+     * chained through edgeTarget and edgeNext, of the pages one layer closer to the start that
+     * link to v. nextHead[v] likewise lists the pages one layer closer to the end that v links to.
+     * A distance of -1 means that side of the search has not reached the page.
+     */
+    private final class Search {
+        private final long deadline;
+        private final PathSearchScheduler.Query query;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> titles = new ArrayList<>();
+
+        private int[] distFrom = new int[64];
+        private int[] distTo = new int[64];
+        private int[] parentHead = new int[64];
+        private int[] nextHead = new int[64];
+
+        private int[] edgeTarget = new int[256];
+        private int[] edgeNext = new int[256];
+        private int edgeCount = 0;
+
+        Search(long deadline) {
+            this.deadline = deadline;
+            this.query = scheduler == null ? null : scheduler.newQuery();
+        }
+
+        List<String> run(String from, String to) throws TimeoutException {
+            int start = intern(from);
+            int end = intern(to);
+            distFrom[start] = 0;
+            distTo[end] = 0;
+
+            int[] forward = {start};
+            int[] backward = {end};
+            int forwardDepth = 0;
+            int backwardDepth = 0;
+
+            while (forward.length > 0 && backward.length > 0) {
+                List<Integer> meetings = new ArrayList<>();
+                if (forward.length <= backward.length) {
+                    forward = expand(forward, forwardDepth, true, meetings);
+                    forwardDepth++;
+                } else {
+                    backward = expand(backward, backwardDepth, false, meetings);
+                    backwardDepth++;
+                }
+                if (!meetings.isEmpty()) {
+                    return path(start, meetings);
+                }
+            }
+
+            return new ArrayList<>();
+        }
+
+        /**
+         * Expands one layer of one side of the search.
+         * @param layer    the pages at distance depth from this side's end
+         * @param depth    the distance of layer from this side's end
+         * @param forward  true to follow links from the start, false to follow backlinks from the end
+         * @param meetings receives every newly reached page that the other side has already reached
+         * @return the pages at distance depth + 1 from this side's end
+         * @throws TimeoutException if the deadline passes before every list is fetched
+         */
+        private int[] expand(int[] layer, int depth, boolean forward, List<Integer> meetings)
+                throws TimeoutException {
+            List<List<String>> fetched = fetch(layer, forward ? links : backlinks);
+
+            int[] next = new int[16];
+            int size = 0;
+            for (int i = 0; i < layer.length; i++) {
+                int page = layer[i];
+                for (String title : fetched.get(i)) {
+                    int other = intern(title);
+                    int[] dist = forward ? distFrom : distTo;
+                    if (dist[other] == -1) {
+                        dist[other] = depth + 1;
+                        if (size == next.length) {
+                            next = Arrays.copyOf(next, size * 2);
+                        }
+                        next[size++] = other;
+                        if ((forward ? distTo : distFrom)[other] != -1) {
+                            meetings.add(other);
+                        }
+                    }
+                    if (dist[other] == depth + 1) {
+                        if (forward) {
+                            parentHead[other] = addEdge(page, parentHead[other]);
+                        } else {
+                            nextHead[other] = addEdge(page, nextHead[other]);
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(next, size);
+        }
+
+        /**
+         * Fetches the link lists of a layer, in parallel if there is a scheduler.
+         * @param layer  the pages whose lists are wanted
+         * @param source fetches the list of one page
+         * @return the list of layer[i] at index i
+         * @throws TimeoutException if the deadline passes before every list is fetched
+         */
+        private List<List<String>> fetch(int[] layer, Function<String, List<String>> source)
+                throws TimeoutException {
+            List<List<String>> fetched = new ArrayList<>(layer.length);
+            if (query == null) {
+                for (int page : layer) {
+                    if (System.nanoTime() - deadline > 0) {
+                        throw new TimeoutException();
+                    }
+                    fetched.add(source.apply(titles.get(page)));
+                }
+                return fetched;
+            }
+
+            List<Future<List<String>>> futures = new ArrayList<>(layer.length);
+            for (int page : layer) {
+                String title = titles.get(page);
+                futures.add(query.submit(() -> source.apply(title)));
+            }
+            try {
+                for (Future<List<String>> future : futures) {
+                    fetched.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException();
+            } catch (CancellationException e) {
+                throw new TimeoutException();
+            }
+            return fetched;
+        }
+
+        /**
+         * Reads the lexicographically smallest shortest path off the recorded edges.
+         * @param start    the id of the first page of the path
+         * @param meetings pages reached by both sides of the search in its last expansion
+         * @return the titles on the path
+         */
+        private List<String> path(int start, List<Integer> meetings) {
+            int length = Integer.MAX_VALUE;
+            for (int page : meetings) {
+                length = Math.min(length, distFrom[page] + distTo[page]);
+            }
+
+            // every page with a recorded edge into a page on a shortest path is itself on one
+            boolean[] onPath = new boolean[titles.size()];
+            List<Integer> pending = new ArrayList<>();
+            for (int page : meetings) {
+                if (distFrom[page] + distTo[page] == length) {
+                    onPath[page] = true;
+                    pending.add(page);
+                }
+            }
+            int meetingDepth = distFrom[pending.get(0)];
+            Map<Integer, List<Integer>> children = new HashMap<>();
+            while (!pending.isEmpty()) {
+                int page = pending.remove(pending.size() - 1);
+                for (int e = parentHead[page]; e != -1; e = edgeNext[e]) {
+                    int parent = edgeTarget[e];
+                    children.computeIfAbsent(parent, p -> new ArrayList<>()).add(page);
+                    if (!onPath[parent]) {
+                        onPath[parent] = true;
+                        pending.add(parent);
+                    }
+                }
+            }
+
+            List<String> path = new ArrayList<>(length + 1);
+            int page = start;
+            path.add(titles.get(page));
+            for (int step = 1; step <= length; step++) {
+                int best = -1;
+                if (step <= meetingDepth) {
+                    for (int child : children.get(page)) {
+                        best = smaller(best, child);
+                    }
+                } else {
+                    for (int e = nextHead[page]; e != -1; e = edgeNext[e]) {
+                        best = smaller(best, edgeTarget[e]);
+                    }
+                }
+                page = best;
+                path.add(titles.get(page));
+            }
+            return path;
+        }
+
+        private int smaller(int best, int candidate) {
+            if (best == -1 || titles.get(candidate).compareTo(titles.get(best)) < 0) {
+                return candidate;
+            }
+            return best;
+        }
+
+        private int intern(String title) {
+            Integer id = ids.get(title);
+            if (id != null) {
+                return id;
+            }
+            int newId = titles.size();
+            ids.put(title, newId);
+            titles.add(title);
+            if (newId == distFrom.length) {
+                int capacity = newId * 2;
+                distFrom = Arrays.copyOf(distFrom, capacity);
+                distTo = Arrays.copyOf(distTo, capacity);
+                parentHead = Arrays.copyOf(parentHead, capacity);
+                nextHead = Arrays.copyOf(nextHead, capacity);
+            }
+            distFrom[newId] = -1;
+            distTo[newId] = -1;
+            parentHead[newId] = -1;
+            nextHead[newId] = -1;
+            return newId;
+        }
+
+        private int addEdge(int target, int next) {
+            if (edgeCount == edgeTarget.length) {
+                edgeTarget = Arrays.copyOf(edgeTarget, edgeCount * 2);
+                edgeNext = Arrays.copyOf(edgeNext, edgeCount * 2);
+            }
+            edgeTarget[edgeCount] = target;
+            edgeNext[edgeCount] = next;
+            return edgeCount++;
+        }
+    }
+}
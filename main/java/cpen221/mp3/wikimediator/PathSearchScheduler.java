@@ -0,0 +1,184 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Representation Invariants (RI):
+ * workers.length == parallelism >= 1
+ * a query is in ready iff it is not cancelled and has at least one pending task
+ * no query appears in ready more than once
+ *
+ * Abstraction Function (AF):
+ * PathSearchScheduler runs the link fetches of shortest path searches on a fixed set of worker
+ * threads, so path searches never use more than parallelism threads however many are running,
+ * and never take threads from anything else, such as getPage and search requests.
+ * Each search submits its fetches through its own Query. ready lists the queries that have
+ * fetches waiting, in round-robin order: a worker takes one fetch from the query at the front and
+ * moves that query to the back, so a search with thousands of pending fetches cannot hold up a
+ * search with a few.
+ * Cancelling a query drops its waiting fetches and interrupts the ones running, so a search that
+ * has timed out stops using the workers right away.
+ *
+ * Thread Safety:
+ * All scheduling state (ready, shutdown, and the pending, running and cancelled state of every
+ * query) is guarded by the lock of the scheduler. Tasks run without holding it.
+ */
+public class PathSearchScheduler {
+
+    /* the default number of worker threads */
+    public static final int DPARALLELISM = 4;
+
+    private final Thread[] workers;
+    private final Deque<Query> ready = new ArrayDeque<>();
+    private boolean shutdown = false;
+
+    /**
+     * Creates a scheduler and starts its worker threads. Workers are daemon threads,
+     * so an idle scheduler does not keep the JVM alive.
+     * @param parallelism the number of worker threads.
+     *                    parallelism >= 1
+     */
+    public PathSearchScheduler(int parallelism) {
+        workers = new Thread[Math.max(1, parallelism)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "path-search-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Creates a scheduler with the default number of worker threads.
+     */
+    public PathSearchScheduler() {
+        this(DPARALLELISM);
+    }
+
+    /**
+     * @return a new query, through which one search submits its tasks
+     */
+    public Query newQuery() {
+        return new Query();
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int parallelism() {
+        return workers.length;
+    }
+
+    /**
+     * Stops the worker threads once they finish their current tasks.
+     * Tasks that have not started are never run.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (Query query : ready) {
+            query.cancelPending();
+        }
+        ready.clear();
+        notifyAll();
+    }
+
+    /**
+     * The tasks of one search.
+     */
+    public final class Query {
+        private final Deque<FutureTask<?>> pending = new ArrayDeque<>();
+        private final Set<FutureTask<?>> running = new HashSet<>();
+        private boolean cancelled = false;
+
+        private Query() {
+        }
+
+        /**
+         * Queues a task to run on one of the workers.
+         * @param task the task to run.
+         *             task != null
+         * @return a future for the result of the task, which is already cancelled if this
+         *         query has been cancelled or the scheduler has been shut down
+         */
+        public <V> Future<V> submit(Callable<V> task) {
+            FutureTask<V> future = new FutureTask<>(task);
+            synchronized (PathSearchScheduler.this) {
+                if (cancelled || shutdown) {
+                    future.cancel(false);
+                    return future;
+                }
+                if (pending.isEmpty()) {
+                    ready.addLast(this);
+                }
+                pending.addLast(future);
+                PathSearchScheduler.this.notify();
+            }
+            return future;
+        }
+
+        /**
+         * Cancels every task of this query: tasks that have not started never will, and the
+         * workers running the others are interrupted. Tasks submitted afterwards are cancelled
+         * straight away.
+         */
+        public void cancel() {
+            synchronized (PathSearchScheduler.this) {
+                cancelled = true;
+                ready.remove(this);
+                cancelPending();
+                for (FutureTask<?> task : running) {
+                    task.cancel(true);
+                }
+            }
+        }
+
+        // requires the lock of the scheduler
+        private void cancelPending() {
+            for (FutureTask<?> task : pending) {
+                task.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+
+    // Helper Methods in private
+
+    //the loop run by every worker thread
+    private void work() {
+        while (true) {
+            Query query;
+            FutureTask<?> task;
+            synchronized (this) {
+                while (ready.isEmpty() && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // interrupts are only used to cancel tasks; keep waiting
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                query = ready.pollFirst();
+                task = query.pending.pollFirst();
+                if (!query.pending.isEmpty()) {
+                    ready.addLast(query);
+                }
+                query.running.add(task);
+            }
+
+            task.run();
+
+            synchronized (this) {
+                query.running.remove(task);
+            }
+            // clear an interrupt aimed at the finished task before taking the next one
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Representation Invariants (RI):
+ * totals holds one Count per query ever recorded, with count >= 1, and byTotal holds exactly the Counts of totals
+ * ring.length == horizon, and ring[i] is null or a bucket whose second s has Math.floorMod(s, horizon) == i
+ * for every window w in windows, w.counts holds, for each query with a nonzero count, the sum of its counts
+ * in the buckets of every second >= w.oldest, and w.ranked holds exactly the Counts of w.counts
+ * no window counts a second whose bucket has been overwritten: w.oldest > s for every overwritten second s
+ * windows.size() <= DWINDOWS
+ *
+ * Abstraction Function (AF):
+ * QueryRanking ranks queries by how often they have been recorded, over all time or over a recent window of
+ * time. Queries are ranked from the most recorded to the least, and queries recorded equally often are ranked
+ * in lexicographic order.
+ * totals holds the all-time count of every query, and byTotal keeps them in rank order, so the all-time top k
+ * is read off the front of byTotal.
+ * ring holds the counts of the last horizon seconds, one bucket per second, reused as time moves on.
+ * Every window length that has been asked for recently has a Window, keyed by its length in milliseconds,
+ * which holds the counts of the seconds that window covers, in rank order. A window is kept up to date as queries are recorded and as its oldest
+ * seconds fall out of it, so asking for the top k of a recent window does not rescan the history.
+ * Windows are counted in whole seconds: a window counts every query recorded in the second in which it starts.
+ *
+ * Thread Safety:
+ * All methods are synchronized on the QueryRanking.
+ */
+public class QueryRanking {
+
+    /* the default number of seconds of history kept in buckets: one day */
+    public static final int DHORIZON = 24 * 60 * 60;
+
+    /* the number of window lengths kept up to date at once */
+    public static final int DWINDOWS = 8;
+
+    private static final long SECONDS_TO_MILLIS = 1000;
+
+    private static final Comparator<Count> RANK_ORDER =
+            Comparator.comparingLong((Count c) -> -c.count).thenComparing(c -> c.query);
+
+    private final int horizon;
+    private final Map<String, Count> totals = new TreeMap<>();
+    private final TreeSet<Count> byTotal = new TreeSet<>(RANK_ORDER);
+    private final Bucket[] ring;
+    private final Map<Long, Window> windows = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+            return size() > DWINDOWS;
+        }
+    };
+    private long firstTime = Long.MAX_VALUE;
+
+    /**
+     * Creates an empty ranking that keeps per-second counts for the given number of seconds.
+     * @param horizon the longest window, in seconds, that is counted exactly.
+     *                horizon >= 1
+     */
+    public QueryRanking(int horizon) {
+        this.horizon = Math.max(1, horizon);
+        ring = new Bucket[this.horizon];
+    }
+
+    /**
+     * Creates an empty ranking that keeps per-second counts for the default horizon.
+     */
+    public QueryRanking() {
+        this(DHORIZON);
+    }
+
+    /**
+     * Records one occurrence of a query.
+     * @param query the query that was made.
+     *              query != null
+     * @param time  the time it was made at, in milliseconds since the epoch.
+     */
+    public synchronized void record(String query, long time) {
+        firstTime = Math.min(firstTime, time);
+        Count total = totals.get(query);
+        if (total == null) {
+            total = new Count(query);
+            totals.put(query, total);
+        } else {
+            byTotal.remove(total);
+        }
+        total.count++;
+        byTotal.add(total);
+
+        long second = Math.floorDiv(time, SECONDS_TO_MILLIS);
+        int index = (int) Math.floorMod(second, (long) horizon);
+        Bucket bucket = ring[index];
+        if (bucket != null && bucket.second > second) {
+            // too old to fall in any window that is still counted
+            return;
+        }
+        if (bucket == null || bucket.second < second) {
+            if (bucket != null) {
+                for (Window window : windows.values()) {
+                    advance(window, bucket.second + 1);
+                }
+            }
+            bucket = new Bucket(second);
+            ring[index] = bucket;
+        }
+        bucket.counts.merge(query, 1, Integer::sum);
+
+        for (Window window : windows.values()) {
+            if (second >= window.oldest) {
+                window.add(query, 1);
+            }
+        }
+    }
+
+    /**
+     * Records occurrences of a query made too long ago to fall in any window shorter than the horizon,
+     * such as requests whose times were rolled up by a RequestHistory.
+     * @param query     the query that was made.
+     *                  query != null
+     * @param count     the number of times it was made.
+     *                  count >= 0
+     * @param firstTime the time of the earliest of them, or of any earlier request,
+     *                  in milliseconds since the epoch.
+     */
+    public synchronized void recordRolledUp(String query, long count, long firstTime) {
+        this.firstTime = Math.min(this.firstTime, firstTime);
+        if (count <= 0) {
+            return;
+        }
+        Count total = totals.get(query);
+        if (total == null) {
+            total = new Count(query);
+            totals.put(query, total);
+        } else {
+            byTotal.remove(total);
+        }
+        total.count += count;
+        byTotal.add(total);
+    }
+
+    /**
+     * @param limit the largest number of queries to return.
+     *              limit >= 0
+     * @return up to limit queries, ranked by their count over all time
+     */
+    public synchronized List<String> top(int limit) {
+        List<String> ranked = new ArrayList<>(Math.min(limit, byTotal.size()));
+        for (Count count : byTotal) {
+            if (ranked.size() >= limit) {
+                break;
+            }
+            ranked.add(count.query);
+        }
+        return ranked;
+    }
+
+    /**
+     * Ranks queries by their count over a recent window of time.
+     * Queries that were recorded, but not within the window, rank after every query recorded within it.
+     * A window longer than the horizon is counted exactly if every query was recorded within it,
+     * and otherwise counts only the last horizon seconds.
+     * @param windowMillis the length of the window, in milliseconds. A query counts if it was
+     *                     recorded in the same second as now - windowMillis, or later.
+     *                     windowMillis >= 0
+     * @param now          the time the window ends at, in milliseconds since the epoch.
+     * @param limit        the largest number of queries to return.
+     *                     limit >= 0
+     * @return up to limit queries, ranked by their count within the window
+     */
+    public synchronized List<String> topSince(long windowMillis, long now, int limit) {
+        long nowSecond = Math.floorDiv(now, SECONDS_TO_MILLIS);
+        long oldest = Math.floorDiv(now - windowMillis, SECONDS_TO_MILLIS);
+        if (oldest <= nowSecond - horizon) {
+            if (firstTime >= now - windowMillis) {
+                return top(limit);
+            }
+            oldest = nowSecond - horizon + 1;
+        }
+
+        Window window = windows.get(windowMillis);
+        if (window == null) {
+            window = new Window(oldest);
+            windows.put(windowMillis, window);
+            for (Bucket bucket : ring) {
+                if (bucket != null && bucket.second >= oldest) {
+                    bucket.counts.forEach(window::add);
+                }
+            }
+        } else {
+            advance(window, oldest);
+        }
+
+        List<String> ranked = new ArrayList<>(Math.min(limit, totals.size()));
+        for (Count count : window.ranked) {
+            if (ranked.size() >= limit) {
+                return ranked;
+            }
+            ranked.add(count.query);
+        }
+        for (String query : totals.keySet()) {
+            if (ranked.size() >= limit) {
+                break;
+            }
+            if (!window.counts.containsKey(query)) {
+                ranked.add(query);
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * @return the number of distinct queries recorded
+     */
+    public synchronized int size() {
+        return totals.size();
+    }
+
+    // Helper Methods in private
+
+    //drops the buckets of every second before oldest from a window
+    private void advance(Window window, long oldest) {
+        if (oldest <= window.oldest) {
+            return;
+        }
+        if (oldest - window.oldest >= horizon) {
+            window.counts.clear();
+            window.ranked.clear();
+        } else {
+            for (long second = window.oldest; second < oldest; second++) {
+                Bucket bucket = ring[(int) Math.floorMod(second, (long) horizon)];
+                if (bucket != null && bucket.second == second) {
+                    bucket.counts.forEach((query, count) -> window.add(query, -count));
+                }
+            }
+        }
+        window.oldest = oldest;
+    }
+
+    /**
+     * The number of times one query was recorded.
+     */
+    private static final class Count {
+        private final String query;
+        private long count = 0;
+
+        Count(String query) {
+            this.query = query;
+        }
+    }
+
+    /**
+     * The counts of the queries recorded in one second.
+     */
+    private static final class Bucket {
+        private final long second;
+        private final Map<String, Integer> counts = new HashMap<>();
+
+        Bucket(long second) {
+            this.second = second;
+        }
+    }
+
+    /**
+     * The counts of the queries recorded in every second from oldest on, in rank order.
+     */
+    private static final class Window {
+        private long oldest;
+        private final Map<String, Count> counts = new HashMap<>();
+        private final TreeSet<Count> ranked = new TreeSet<>(RANK_ORDER);
+
+        Window(long oldest) {
+            this.oldest = oldest;
+        }
+
+        void add(String query, int delta) {
+            Count count = counts.get(query);
+            if (count == null) {
+                count = new Count(query);
+                counts.put(query, count);
+            } else {
+                ranked.remove(count);
+            }
+            count.count += delta;
+            if (count.count > 0) {
+                ranked.add(count);
+            } else {
+                counts.remove(query);
+            }
+        }
+    }
+}
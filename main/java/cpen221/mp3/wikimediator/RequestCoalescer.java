@@ -0,0 +1,104 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/*
+ * Representation Invariants (RI):
+ * every future in inFlight belongs to a load that has started and has not yet returned
+ *
+ * Abstraction Function (AF):
+ * RequestCoalescer makes concurrent callers asking for the same key share a single load.
+ * inFlight maps each key that is currently being loaded to the future through which the
+ * result of that load is handed to every caller that arrives while it is running.
+ * Each load runs on loaders rather than on the thread of the caller that started it, so a
+ * caller that is interrupted, say because its request timed out, only stops waiting, and the
+ * load still finishes for the callers that share it.
+ *
+ * Thread Safety:
+ * inFlight is a ConcurrentHashMap, and a caller only becomes the one to load a key by
+ * atomically inserting its own future with putIfAbsent. Its future is removed, again
+ * atomically and only if it is still the mapped value, once the load has finished.
+ */
+public class RequestCoalescer<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Executor loaders;
+
+    /**
+     * Creates a coalescer with no loads in progress.
+     * @param loaders runs the loads. The owner bounds how many run at once, and
+     *                shuts it down once the coalescer is no longer used.
+     *                loaders != null
+     */
+    public RequestCoalescer(Executor loaders) {
+        this.loaders = loaders;
+    }
+
+    /**
+     * Loads the value for a key, sharing the load with every other caller that asks
+     * for the same key while it is in progress.
+     * The first caller for a key starts loader on loaders; it and the callers
+     * that arrive before loader finishes wait for and receive the same result, or the same
+     * exception. A caller interrupted while it waits gets an exception, but the load goes on.
+     * Callers that arrive after it finishes start a new load, so loader should store
+     * its result wherever later callers are expected to look first.
+     *
+     * @param key    the key to load
+     *               key != null
+     * @param loader computes the value for key
+     *               loader != null
+     * @return the value loaded for key
+     */
+    public V load(K key, Function<K, V> loader) {
+        CompletableFuture<V> pending = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, pending);
+
+        if (existing == null) {
+            existing = pending;
+            try {
+                loaders.execute(() -> {
+                    try {
+                        V value = loader.apply(key);
+                        inFlight.remove(key, pending);
+                        pending.complete(value);
+                    } catch (RuntimeException | Error e) {
+                        inFlight.remove(key, pending);
+                        pending.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(key, pending);
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a coalesced load.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException("Error in coalesced load.");
+        }
+    }
+
+    /**
+     * @return the number of keys that are being loaded right now
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,495 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Representation Invariants (RI):
+ * retention >= 0
+ * every History h in histories has h.rolledUp >= 0, h.rawCount >= 0, h.rolledUp + h.rawCount >= 1,
+ *   and h.data[0 .. h.used) holds exactly h.rawCount varints
+ * stored is null and storedCount == 0, or stored holds storedCount index entries of ENTRY_BYTES bytes,
+ *   sorted by the unsigned bytes of their names, followed by the names and chains they point to
+ * size is the sum of h.rolledUp + h.rawCount over every history in histories, and over every stored
+ *   entry whose query is not in histories
+ * firstTime is the earliest time ever recorded, or Long.MAX_VALUE if nothing has been recorded
+ *
+ * Abstraction Function (AF):
+ * RequestHistory is the history of the search/getPage requests received, by query.
+ * Each query has a History holding the times of its recent requests, and a count of its older ones.
+ * The times are held as a chain of differences: the first time is stored as its difference from
+ * h.base and every later time as its difference from the one before it, each written as a zigzag
+ * varint, so that a query asked for every few seconds costs one or two bytes per request.
+ *
+ * Times more than retention milliseconds older than the latest time of their query are rolled up:
+ * they are dropped from the chain and only counted in h.rolledUp. Roll-ups happen when a chain is
+ * about to grow its array, and whenever rollUp is called, so the history of a long-running mediator
+ * holds a bounded number of times per query however many requests it receives.
+ *
+ * A history read from a statistics file by read leaves its queries in the file, in stored, and only
+ * copies a query into histories when it is next recorded: until then, its times are decoded straight
+ * out of the file. The History in histories, if there is one, supersedes the stored entry.
+ *
+ * Serialized form: long retention, long firstTime, int number of queries, then for each query its
+ * UTF string, long rolledUp, long base, int rawCount, int used, and the used bytes of its chain.
+ * Statistics file form, written by writeTo (all integers are big-endian): long retention,
+ * long firstTime, long size, int number of queries, int length of the data region, then one index
+ * entry per query in the unsigned order of the UTF-8 bytes of its name, then the data region.
+ * An index entry is int name offset, int name length, long rolledUp, long base, int rawCount,
+ * int chain offset and int chain length, where the offsets are into the data region.
+ *
+ * Thread Safety:
+ * All methods are synchronized on the RequestHistory; forEachStored holds the lock only while it
+ * copies each query out, not while the visitor runs.
+ */
+public class RequestHistory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* the default length of time, in milliseconds, for which the times of requests are kept: one day */
+    public static final long DRETENTION = QueryRanking.DHORIZON * 1000L;
+
+    private static final int INITIAL_BYTES = 16;
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int ENTRY_BYTES = 36;
+
+    private long retention;
+    private transient Map<String, History> histories = new HashMap<>();
+    private transient long size = 0;
+    private long firstTime = Long.MAX_VALUE;
+    private transient ByteBuffer stored = null;
+    private transient int storedCount = 0;
+
+    /**
+     * Creates an empty history.
+     * @param retention how long, in milliseconds, the time of each request is kept before
+     *                  it is only counted.
+     *                  retention >= 0
+     */
+    public RequestHistory(long retention) {
+        this.retention = Math.max(0, retention);
+    }
+
+    /**
+     * Creates an empty history that keeps the times of requests for the default retention.
+     */
+    public RequestHistory() {
+        this(DRETENTION);
+    }
+
+    /**
+     * Records a request.
+     * @param query the query, or page title, that was asked for.
+     *              query != null
+     * @param time  the time it was received, in milliseconds since the epoch.
+     */
+    public synchronized void record(String query, long time) {
+        History history = histories.get(query);
+        if (history == null) {
+            int entry = find(query);
+            history = entry < 0 ? new History(time) : load(entry);
+            histories.put(query, history);
+        }
+        if (history.used + MAX_VARINT_BYTES > history.data.length) {
+            rollUp(history, time - retention);
+            if (history.used + MAX_VARINT_BYTES > history.data.length) {
+                history.data = Arrays.copyOf(history.data, history.data.length * 2);
+            }
+        }
+        history.used = writeVarint(history.data, history.used, zigzag(time - history.last));
+        history.last = time;
+        history.rawCount++;
+        size++;
+        firstTime = Math.min(firstTime, time);
+    }
+
+    /**
+     * Rolls up the times of every query that are more than the retention older than the given time.
+     * Queries left in a statistics file since read are rolled up when they are next written.
+     * @param now the time to measure the retention back from, in milliseconds since the epoch.
+     */
+    public synchronized void rollUp(long now) {
+        for (History history : histories.values()) {
+            rollUp(history, now - retention);
+            if (history.data.length > INITIAL_BYTES && history.used < history.data.length / 4) {
+                history.data = Arrays.copyOf(history.data, Math.max(INITIAL_BYTES, history.used * 2));
+            }
+        }
+    }
+
+    /**
+     * @return every query that has been recorded, in lexicographic order
+     */
+    public synchronized Set<String> queries() {
+        Set<String> queries = new TreeSet<>(histories.keySet());
+        for (int entry = 0; entry < storedCount; entry++) {
+            queries.add(storedName(entry));
+        }
+        return queries;
+    }
+
+    /**
+     * @param query a query.
+     *              query != null
+     * @return the number of requests for query that have been rolled up
+     */
+    public synchronized long rolledUp(String query) {
+        History history = lookup(query);
+        return history == null ? 0 : history.rolledUp;
+    }
+
+    /**
+     * @param query a query.
+     *              query != null
+     * @return the times of the requests for query that have not been rolled up, in the
+     *         order they were recorded
+     */
+    public synchronized List<Long> times(String query) {
+        History history = lookup(query);
+        return history == null ? new ArrayList<>() : times(history);
+    }
+
+    /**
+     * @return the total number of requests recorded, rolled up or not
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the earliest time ever recorded, or Long.MAX_VALUE if nothing has been recorded
+     */
+    public synchronized long firstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return how long, in milliseconds, the time of each request is kept before it is only counted
+     */
+    public long retention() {
+        return retention;
+    }
+
+    /**
+     * Visits every query as it was when this history was read from a statistics file, ignoring
+     * every request recorded since. Visits nothing if this history was not read by read.
+     * @param visitor receives each query, the number of its requests that were rolled up,
+     *                and the times of the others.
+     *                visitor != null
+     */
+    public void forEachStored(Visitor visitor) {
+        int count;
+        synchronized (this) {
+            count = storedCount;
+        }
+        for (int entry = 0; entry < count; entry++) {
+            String query;
+            History history;
+            synchronized (this) {
+                query = storedName(entry);
+                history = load(entry);
+            }
+            visitor.visit(query, history.rolledUp, times(history));
+        }
+    }
+
+    /**
+     * Writes the history in its statistics file form, which read maps back without copying.
+     * Times more than the retention before now are rolled up as they are written.
+     * @param out where to write the history.
+     *            out != null
+     * @param now the time to measure the retention back from, in milliseconds since the epoch.
+     * @throws IOException if out cannot be written
+     */
+    public synchronized void writeTo(DataOutput out, long now) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        Map<byte[], History> byName = new HashMap<>();
+        for (String query : queries()) {
+            History history = lookup(query);
+            rollUp(history, now - retention);
+            byte[] name = query.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            byName.put(name, history);
+        }
+        names.sort(Arrays::compareUnsigned);
+
+        long dataLength = 0;
+        for (byte[] name : names) {
+            dataLength += name.length + byName.get(name).used;
+        }
+        if (dataLength > Integer.MAX_VALUE) {
+            throw new IOException("Request history too large to write");
+        }
+        out.writeLong(retention);
+        out.writeLong(firstTime);
+        out.writeLong(size);
+        out.writeInt(names.size());
+        out.writeInt((int) dataLength);
+        int offset = 0;
+        for (byte[] name : names) {
+            History history = byName.get(name);
+            out.writeInt(offset);
+            out.writeInt(name.length);
+            out.writeLong(history.rolledUp);
+            out.writeLong(history.base);
+            out.writeInt(history.rawCount);
+            out.writeInt(offset + name.length);
+            out.writeInt(history.used);
+            offset += name.length + history.used;
+        }
+        for (byte[] name : names) {
+            History history = byName.get(name);
+            out.write(name);
+            out.write(history.data, 0, history.used);
+        }
+    }
+
+    /**
+     * Reads a history written by writeTo, leaving its queries where they are: the returned history
+     * decodes them straight out of data whenever they are needed, and copies a query onto the heap
+     * only when it is recorded again.
+     * @param data holds the history from its position on, which is moved past the history. Its
+     *             contents must not change while the returned history is in use.
+     *             data != null
+     * @return the history
+     * @throws IOException if data does not hold a history written by writeTo
+     */
+    public static RequestHistory read(ByteBuffer data) throws IOException {
+        try {
+            RequestHistory history = new RequestHistory(data.getLong());
+            history.firstTime = data.getLong();
+            history.size = data.getLong();
+            int count = data.getInt();
+            int dataLength = data.getInt();
+            long length = (long) count * ENTRY_BYTES + dataLength;
+            if (count < 0 || dataLength < 0 || length > data.remaining()) {
+                throw new IOException("Truncated or corrupt request history");
+            }
+            history.stored = data.slice();
+            history.stored.limit((int) length);
+            history.storedCount = count;
+            data.position(data.position() + (int) length);
+            return history;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated request history", e);
+        }
+    }
+
+    /**
+     * Receives the queries of a history.
+     */
+    public interface Visitor {
+        /**
+         * @param query    a query.
+         * @param rolledUp the number of its requests that were rolled up.
+         * @param times    the times of its other requests, in the order they were recorded.
+         */
+        void visit(String query, long rolledUp, List<Long> times);
+    }
+
+    // Helper Methods in private
+
+    //the History of query, copied out of stored if it is only there, or null if there is none
+    private History lookup(String query) {
+        History history = histories.get(query);
+        if (history == null) {
+            int entry = find(query);
+            if (entry >= 0) {
+                history = load(entry);
+            }
+        }
+        return history;
+    }
+
+    //the index of the stored entry for query, or -1 if there is none
+    private int find(String query) {
+        if (storedCount == 0) {
+            return -1;
+        }
+        byte[] name = query.getBytes(StandardCharsets.UTF_8);
+        int dataStart = storedCount * ENTRY_BYTES;
+        int low = 0;
+        int high = storedCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int nameOffset = dataStart + stored.getInt(middle * ENTRY_BYTES);
+            int nameLength = stored.getInt(middle * ENTRY_BYTES + 4);
+            int comparison = 0;
+            for (int i = 0; i < Math.min(nameLength, name.length) && comparison == 0; i++) {
+                comparison = Integer.compare(stored.get(nameOffset + i) & 0xFF, name[i] & 0xFF);
+            }
+            if (comparison == 0) {
+                comparison = Integer.compare(nameLength, name.length);
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private String storedName(int entry) {
+        byte[] name = new byte[stored.getInt(entry * ENTRY_BYTES + 4)];
+        stored.get(storedCount * ENTRY_BYTES + stored.getInt(entry * ENTRY_BYTES), name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    //copies a stored entry onto the heap
+    private History load(int entry) {
+        int at = entry * ENTRY_BYTES;
+        History history = new History(stored.getLong(at + 16));
+        history.rolledUp = stored.getLong(at + 8);
+        history.rawCount = stored.getInt(at + 24);
+        history.used = stored.getInt(at + 32);
+        history.data = new byte[Math.max(INITIAL_BYTES, history.used + MAX_VARINT_BYTES)];
+        stored.get(storedCount * ENTRY_BYTES + stored.getInt(at + 28), history.data, 0, history.used);
+        history.last = history.base;
+        int[] position = {0};
+        for (int i = 0; i < history.rawCount; i++) {
+            history.last += unzigzag(readVarint(history.data, position));
+        }
+        return history;
+    }
+
+    private static List<Long> times(History history) {
+        List<Long> times = new ArrayList<>(history.rawCount);
+        long time = history.base;
+        int[] position = {0};
+        for (int i = 0; i < history.rawCount; i++) {
+            time += unzigzag(readVarint(history.data, position));
+            times.add(time);
+        }
+        return times;
+    }
+
+    //drops the leading times of a history that are before cutoff, counting them in rolledUp
+    private void rollUp(History history, long cutoff) {
+        int[] position = {0};
+        long time = history.base;
+        int dropped = 0;
+        int droppedBytes = 0;
+        long droppedTime = history.base;
+        while (dropped < history.rawCount) {
+            time += unzigzag(readVarint(history.data, position));
+            if (time >= cutoff) {
+                break;
+            }
+            dropped++;
+            droppedBytes = position[0];
+            droppedTime = time;
+        }
+        if (dropped == 0) {
+            return;
+        }
+        System.arraycopy(history.data, droppedBytes, history.data, 0, history.used - droppedBytes);
+        history.used -= droppedBytes;
+        history.base = droppedTime;
+        history.rawCount -= dropped;
+        history.rolledUp += dropped;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //writes value as a varint at offset, returning the offset after it
+    private static int writeVarint(byte[] data, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+
+    //reads a varint at position[0], advancing position[0] past it
+    private static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Set<String> queries = queries();
+        out.writeInt(queries.size());
+        for (String query : queries) {
+            History history = lookup(query);
+            out.writeUTF(query);
+            out.writeLong(history.rolledUp);
+            out.writeLong(history.base);
+            out.writeInt(history.rawCount);
+            out.writeInt(history.used);
+            out.write(history.data, 0, history.used);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        histories = new HashMap<>();
+        size = 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String query = in.readUTF();
+            History history = new History(0);
+            history.rolledUp = in.readLong();
+            history.base = in.readLong();
+            history.rawCount = in.readInt();
+            history.used = in.readInt();
+            history.data = new byte[Math.max(INITIAL_BYTES, history.used + MAX_VARINT_BYTES)];
+            in.readFully(history.data, 0, history.used);
+
+            history.last = history.base;
+            int[] position = {0};
+            for (int j = 0; j < history.rawCount; j++) {
+                history.last += unzigzag(readVarint(history.data, position));
+            }
+            histories.put(query, history);
+            size += history.rolledUp + history.rawCount;
+        }
+    }
+
+    /**
+     * The requests for one query.
+     */
+    private static final class History {
+        private long rolledUp = 0;
+        private long base;
+        private long last;
+        private int rawCount = 0;
+        private byte[] data = new byte[INITIAL_BYTES];
+        private int used = 0;
+
+        History(long base) {
+            this.base = base;
+            this.last = base;
+        }
+    }
+}
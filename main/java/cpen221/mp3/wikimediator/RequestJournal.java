@@ -0,0 +1,425 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Representation Invariants (RI):
+ * pending[0 .. pendingLength) holds whole records, all of generation
+ * writtenBytes <= appendedBytes, and appendedBytes - writtenBytes is the length of the records that have
+ *   been appended but not yet written, counting the batch the writer is writing
+ * lastTime is the time of the last record appended to generation, or 0 if there is none
+ * channel is open, positioned at the end of the file of generation, unless closed
+ *
+ * Abstraction Function (AF):
+ * RequestJournal is a write-ahead log of the requests received by a WikiMediator. Requests are appended
+ * as compact binary records to the file of the current generation, and rotate starts a new generation,
+ * so the generations up to a snapshot can be deleted once the snapshot is written.
+ *
+ * Appending only copies the record into pending. A single writer thread commits records in groups:
+ * it takes everything appended since its last write, writes it as one frame through channel, and
+ * forces it to disk if force is set, so a burst of requests costs one write and one sync however large
+ * it is, and request threads never wait for the disk. A crash loses at most the records appended
+ * since the last frame was written.
+ *
+ * File format (all fixed-size integers are big-endian):
+ * int MAGIC, int VERSION, then frames. A frame is an int payload length, an int CRC-32 of the payload,
+ * and the payload, which is a sequence of records. A record is a byte kind, a zigzag varint holding
+ * the difference between its time and the time of the record before it in the file (or 0 for the
+ * first), and, if kind is QUERY, a varint byte length followed by the UTF-8 bytes of the query.
+ * Replay stops at the first frame that is cut short or fails its checksum, as the last frame written
+ * before a crash may be.
+ *
+ * Thread Safety:
+ * All state is guarded by the lock of the journal, except channel and the frame buffer, which only
+ * the writer thread uses while it writes. rotate and close only touch channel once the writer is idle.
+ */
+public class RequestJournal {
+
+    public static final int MAGIC = 0x574D4A4C;
+    public static final int VERSION = 1;
+
+    /* the most bytes of records that may wait to be written before appending blocks */
+    public static final int DMAX_PENDING = 1 << 22;
+
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final byte REQUEST = 0;
+    private static final byte QUERY = 1;
+    private static final String PREFIX = "requests-";
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final boolean force;
+    private final Thread writer;
+    private FileChannel channel;
+    private long generation;
+    private long generationRecords = 0;
+    private long lastTime = 0;
+    private byte[] pending = new byte[1 << 16];
+    private byte[] spare = new byte[1 << 16];
+    private int pendingLength = 0;
+    private long appendedBytes = 0;
+    private long writtenBytes = 0;
+    private boolean writing = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    /**
+     * Opens a new journal, creating the directory if needed, and starts its writer thread.
+     * The writer is a daemon thread, so an open journal does not keep the JVM alive.
+     * @param directory  the directory of the journal files.
+     *                   directory != null
+     * @param generation the generation to start appending to. Its file must not exist yet.
+     *                   generation >= 0
+     * @param force      true to force every group of records to disk before the next is written.
+     * @throws IOException if the file of generation cannot be created
+     */
+    public RequestJournal(Path directory, long generation, boolean force) throws IOException {
+        this.directory = directory;
+        this.force = force;
+        this.generation = generation;
+        Files.createDirectories(directory);
+        channel = create(file(directory, generation));
+        writer = new Thread(this::work, "request-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param directory  a directory of journal files.
+     *                   directory != null
+     * @param generation a generation.
+     *                   generation >= 0
+     * @return the file that holds generation
+     */
+    public static Path file(Path directory, long generation) {
+        return directory.resolve(PREFIX + generation + SUFFIX);
+    }
+
+    /**
+     * @param directory a directory of journal files.
+     *                  directory != null
+     * @return the generations that have a file in directory, in increasing order,
+     *         or an empty list if directory does not exist
+     * @throws IOException if directory cannot be listed
+     */
+    public static List<Long> generations(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(PREFIX.length(),
+                            name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a journal file
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Reads back the records of a journal file, in the order they were appended.
+     * @param file    the journal file to read.
+     *                file != null
+     * @param visitor receives each record: its query, or null for a request without one, and its time.
+     *                visitor != null
+     * @return the number of records read
+     * @throws IOException if the file cannot be read or is not a journal file
+     */
+    public static long replay(Path file, Visitor visitor) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = input.map(FileChannel.MapMode.READ_ONLY, 0, input.size());
+        }
+        if (data.remaining() < 2 * Integer.BYTES) {
+            // created, but cut off before its header was written
+            return 0;
+        }
+        if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+            throw new IOException("Not a request journal: " + file);
+        }
+
+        long records = 0;
+        long time = 0;
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 2 * Integer.BYTES) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            data.position(data.position() + length);
+
+            try {
+                while (payload.hasRemaining()) {
+                    byte kind = payload.get();
+                    time += unzigzag(readVarint(payload));
+                    String query = null;
+                    if (kind == QUERY) {
+                        byte[] bytes = new byte[(int) readVarint(payload)];
+                        payload.get(bytes);
+                        query = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    visitor.request(query, time);
+                    records++;
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException("Corrupt request journal: " + file, e);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends a request to the journal. It is written to disk by the writer thread, together with
+     * every other request appended since the last write.
+     * If the journal has failed to write, the request is dropped, and flush reports the failure.
+     * @param query the query, or page title, asked for, or null for a request without one.
+     * @param time  the time the request was received, in milliseconds since the epoch.
+     */
+    public synchronized void append(String query, long time) {
+        if (closed || failure != null) {
+            return;
+        }
+        byte[] bytes = query == null ? null : query.getBytes(StandardCharsets.UTF_8);
+        int maxLength = 1 + 2 * MAX_VARINT_BYTES + (bytes == null ? 0 : bytes.length);
+        while (pendingLength > 0 && pendingLength + maxLength > DMAX_PENDING && failure == null) {
+            waitForWriter();
+        }
+        if (pendingLength + maxLength > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + maxLength));
+        }
+
+        int start = pendingLength;
+        pending[pendingLength++] = bytes == null ? REQUEST : QUERY;
+        pendingLength = writeVarint(pending, pendingLength, zigzag(time - lastTime));
+        if (bytes != null) {
+            pendingLength = writeVarint(pending, pendingLength, bytes.length);
+            System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+            pendingLength += bytes.length;
+        }
+        lastTime = time;
+        appendedBytes += pendingLength - start;
+        generationRecords++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until every request appended before the call has been written, and forced to disk
+     * if the journal forces its writes.
+     * @throws IOException if the journal has failed to write
+     */
+    public synchronized void flush() throws IOException {
+        long target = appendedBytes;
+        while (writtenBytes < target && failure == null) {
+            waitForWriter();
+        }
+        if (failure != null) {
+            throw new IOException("Request journal failed", failure);
+        }
+    }
+
+    /**
+     * Ends the current generation and starts appending to the next one. Every request appended
+     * before the call is in the file of the ended generation, which is complete when this returns.
+     * @return the new generation
+     * @throws IOException if the journal has failed to write, or the new file cannot be created
+     */
+    public synchronized long rotate() throws IOException {
+        flush();
+        while ((writing || pendingLength > 0) && failure == null) {
+            waitForWriter();
+        }
+        flush();
+        FileChannel next = create(file(directory, generation + 1));
+        channel.close();
+        channel = next;
+        generation++;
+        generationRecords = 0;
+        lastTime = 0;
+        return generation;
+    }
+
+    /**
+     * @return the generation requests are being appended to
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return the number of requests appended to the current generation
+     */
+    public synchronized long generationRecords() {
+        return generationRecords;
+    }
+
+    /**
+     * Writes every request appended so far, stops the writer thread and closes the file.
+     * Requests appended afterwards are dropped.
+     * @throws IOException if the journal has failed to write
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                closed = true;
+                notifyAll();
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Receives the records of a journal as it is replayed.
+     */
+    public interface Visitor {
+        /**
+         * @param query the query of the request, or null if it had none
+         * @param time  the time of the request, in milliseconds since the epoch
+         */
+        void request(String query, long time);
+    }
+
+    // Helper Methods in private
+
+    //creates a journal file and writes its header
+    private static FileChannel create(Path file) throws IOException {
+        FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            created.write(header);
+        }
+        return created;
+    }
+
+    //the loop run by the writer thread: takes all pending records and writes them as one frame
+    private void work() {
+        ByteBuffer frameHeader = ByteBuffer.allocate(2 * Integer.BYTES);
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] batch;
+            int length;
+            FileChannel target;
+            synchronized (this) {
+                while (pendingLength == 0 && !closed) {
+                    waitForWriter();
+                }
+                if (pendingLength == 0) {
+                    return;
+                }
+                batch = pending;
+                length = pendingLength;
+                pending = spare != null && spare.length >= batch.length ? spare : new byte[batch.length];
+                spare = null;
+                pendingLength = 0;
+                target = channel;
+                writing = true;
+            }
+
+            IOException error = null;
+            try {
+                crc.reset();
+                crc.update(batch, 0, length);
+                frameHeader.clear();
+                frameHeader.putInt(length).putInt((int) crc.getValue()).flip();
+                ByteBuffer payload = ByteBuffer.wrap(batch, 0, length);
+                while (frameHeader.hasRemaining() || payload.hasRemaining()) {
+                    target.write(new ByteBuffer[] {frameHeader, payload});
+                }
+                if (force) {
+                    target.force(false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = e;
+            }
+
+            synchronized (this) {
+                spare = batch;
+                writing = false;
+                writtenBytes += length;
+                if (error != null) {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    //waits for the writer or an appender to make progress; requires the lock
+    private void waitForWriter() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the request journal.");
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //writes value as a varint at offset, returning the offset after it
+    private static int writeVarint(byte[] data, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static long readVarint(ByteBuffer data) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
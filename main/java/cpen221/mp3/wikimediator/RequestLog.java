@@ -0,0 +1,389 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Representation Invariants (RI):
+ * the size times held in chunks are in non-decreasing order
+ * chunkCount chunks are in use; chunks[c] holds chunkSize[c] varints in its first chunkUsed[c] bytes,
+ *   and the first varint of every chunk is 0
+ * 0 <= sealedChunks <= chunkCount, and the chunks from sealedChunks on are CHUNK_BYTES long and writable
+ * size is the sum of chunkSize[c] over the chunks in use, and last is the latest time, if size > 0
+ * for every peak p in peaks: 0 <= p.left.index <= p.right.index <= size, and
+ *   p.max is the largest j - i over all i <= j < p.right.index with time j - time i <= the window of p
+ *   if p.right.index > 0, p.left.index - 1 is the smallest i with time (p.right.index - 1) - time i <= the
+ *   window of p, and p.leftTime is time i
+ * peaks.size() <= DPEAKS
+ *
+ * Abstraction Function (AF):
+ * RequestLog is the time-ordered list of the times at which requests were received.
+ * Times are held as the differences between consecutive times, written as varints into fixed-size
+ * byte chunks. chunkBase[c] is the time the differences of chunk c start from. Requests a few
+ * milliseconds apart cost a single byte each, and the chunks are appended as the log grows and
+ * never copied, so appending never stalls to resize the log.
+ * A log read from a statistics file by read keeps its chunks in the file: chunks[0 .. sealedChunks)
+ * are slices of the mapped file, decoded in place, and new times go into chunks on the heap.
+ * A time appended out of order, because the thread that read the clock took the lock late, is
+ * recorded as the latest time in the log instead, so the log stays sorted without being re-sorted.
+ *
+ * The peak load over a window length is the largest j - i such that time j - time i is at most the
+ * window length. Every window length asked for recently has a Peak, which sweeps a right cursor
+ * over the log and drags a left cursor behind it, so each time in the log is decoded at most twice
+ * per window length, however often the peak is asked for, and only the times appended since the
+ * last call are decoded again.
+ *
+ * Serialized form: int chunkCount, then for each chunk in use its long base, int size, int used,
+ * and its used bytes.
+ * Statistics file form, written by writeTo (all integers are big-endian): int chunkCount, then for
+ * each chunk its long base, int size and int used, then the used bytes of every chunk, back to back.
+ *
+ * Thread Safety:
+ * All methods are synchronized on the RequestLog.
+ */
+public class RequestLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* the number of window lengths whose peaks are kept up to date at once */
+    public static final int DPEAKS = 8;
+
+    private static final int CHUNK_BYTES = 1 << 12;
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private transient ByteBuffer[] chunks;
+    private transient long[] chunkBase;
+    private transient int[] chunkSize;
+    private transient int[] chunkUsed;
+    private transient int chunkCount;
+    private transient int sealedChunks;
+    private transient int size;
+    private transient long last;
+    private transient Map<Long, Peak> peaks;
+
+    /**
+     * Creates an empty log.
+     */
+    public RequestLog() {
+        clear();
+    }
+
+    /**
+     * Appends the time of a request to the log.
+     * @param time the time the request was received, in milliseconds since the epoch.
+     * @return the time recorded, which is time unless a later time has already been
+     *         appended, in which case it is that later time
+     */
+    public synchronized long append(long time) {
+        if (size > 0) {
+            time = Math.max(time, last);
+        }
+        if (chunkCount == sealedChunks || chunkUsed[chunkCount - 1] + MAX_VARINT_BYTES > CHUNK_BYTES) {
+            addChunk(ByteBuffer.wrap(new byte[CHUNK_BYTES]), time, 0, 0);
+        }
+        int chunk = chunkCount - 1;
+        long delta = chunkSize[chunk] == 0 ? 0 : time - last;
+        chunkUsed[chunk] = writeVarint(chunks[chunk], chunkUsed[chunk], delta);
+        chunkSize[chunk]++;
+        size++;
+        last = time;
+        return time;
+    }
+
+    /**
+     * @return the number of times in the log
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the times of the log take up
+     */
+    public synchronized long bytesUsed() {
+        return (long) chunkCount * (CHUNK_BYTES + Long.BYTES + 2 * Integer.BYTES);
+    }
+
+    /**
+     * @param time a time, in milliseconds since the epoch.
+     * @return true if time is in the log
+     */
+    public synchronized boolean contains(long time) {
+        // the last chunk that starts at or before time is the only one that can hold it
+        int low = 0;
+        int high = chunkCount - 1;
+        int chunk = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (chunkBase[middle] <= time) {
+                chunk = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (chunk == -1) {
+            return false;
+        }
+        Cursor cursor = new Cursor();
+        cursor.seek(chunk);
+        for (int i = 0; i < chunkSize[chunk]; i++) {
+            long found = cursor.next();
+            if (found >= time) {
+                return found == time;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return every time in the log, in order
+     */
+    public synchronized List<Long> toList() {
+        List<Long> times = new ArrayList<>(size);
+        Cursor cursor = new Cursor();
+        for (int i = 0; i < size; i++) {
+            times.add(cursor.next());
+        }
+        return times;
+    }
+
+    /**
+     * Finds the largest j - i over all pairs of requests i <= j in the log, in time order,
+     * whose times are at most windowMillis apart. This is one less than the largest number
+     * of requests that fall in any window of windowMillis milliseconds that starts at a request.
+     * @param windowMillis the length of the window, in milliseconds.
+     *                     windowMillis >= 0
+     * @return the peak, or 0 if the log is empty
+     */
+    public synchronized int peak(long windowMillis) {
+        Peak peak = peaks.get(windowMillis);
+        if (peak == null) {
+            peak = new Peak();
+            peaks.put(windowMillis, peak);
+        }
+        while (peak.right.index < size) {
+            long time = peak.right.next();
+            if (peak.left.index == 0) {
+                peak.leftTime = peak.left.next();
+            }
+            while (time - peak.leftTime > windowMillis) {
+                peak.leftTime = peak.left.next();
+            }
+            peak.max = Math.max(peak.max, peak.right.index - peak.left.index);
+        }
+        return peak.max;
+    }
+
+    /**
+     * Writes the log in its statistics file form, which read maps back without copying.
+     * @param out where to write the log.
+     *            out != null
+     * @throws IOException if out cannot be written
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            out.writeLong(chunkBase[c]);
+            out.writeInt(chunkSize[c]);
+            out.writeInt(chunkUsed[c]);
+        }
+        byte[] bytes = new byte[CHUNK_BYTES];
+        for (int c = 0; c < chunkCount; c++) {
+            chunks[c].get(0, bytes, 0, chunkUsed[c]);
+            out.write(bytes, 0, chunkUsed[c]);
+        }
+    }
+
+    /**
+     * Reads a log written by writeTo, leaving its times where they are: the returned log decodes
+     * them straight out of data whenever they are needed, and appends new times on the heap.
+     * @param data holds the log from its position on, which is moved past the log. Its contents
+     *             must not change while the returned log is in use.
+     *             data != null
+     * @return the log
+     * @throws IOException if data does not hold a log written by writeTo
+     */
+    public static RequestLog read(ByteBuffer data) throws IOException {
+        RequestLog log = new RequestLog();
+        try {
+            int count = data.getInt();
+            long[] bases = new long[count];
+            int[] sizes = new int[count];
+            int[] used = new int[count];
+            for (int c = 0; c < count; c++) {
+                bases[c] = data.getLong();
+                sizes[c] = data.getInt();
+                used[c] = data.getInt();
+                if (sizes[c] <= 0 || used[c] <= 0 || used[c] > CHUNK_BYTES) {
+                    throw new IOException("Corrupt request log");
+                }
+            }
+            for (int c = 0; c < count; c++) {
+                ByteBuffer chunk = data.slice();
+                chunk.limit(used[c]);
+                data.position(data.position() + used[c]);
+                log.addChunk(chunk, bases[c], sizes[c], used[c]);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Truncated or corrupt request log", e);
+        }
+        log.seal();
+        return log;
+    }
+
+    // Helper Methods in private
+
+    //empties the log
+    private void clear() {
+        chunks = new ByteBuffer[16];
+        chunkBase = new long[16];
+        chunkSize = new int[16];
+        chunkUsed = new int[16];
+        chunkCount = 0;
+        sealedChunks = 0;
+        size = 0;
+        last = 0;
+        peaks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Peak> eldest) {
+                return size() > DPEAKS;
+            }
+        };
+    }
+
+    //adds a chunk after the last one in use, holding size times in its first used bytes
+    private void addChunk(ByteBuffer chunk, long base, int size, int used) {
+        if (chunkCount == chunks.length) {
+            int capacity = chunkCount * 2;
+            chunks = Arrays.copyOf(chunks, capacity);
+            chunkBase = Arrays.copyOf(chunkBase, capacity);
+            chunkSize = Arrays.copyOf(chunkSize, capacity);
+            chunkUsed = Arrays.copyOf(chunkUsed, capacity);
+        }
+        chunks[chunkCount] = chunk;
+        chunkBase[chunkCount] = base;
+        chunkSize[chunkCount] = size;
+        chunkUsed[chunkCount] = used;
+        chunkCount++;
+        this.size += size;
+    }
+
+    //marks every chunk in use as read-only, and finds the latest time
+    private void seal() {
+        sealedChunks = chunkCount;
+        if (size > 0) {
+            Cursor cursor = new Cursor();
+            cursor.seek(chunkCount - 1);
+            for (int i = 0; i < chunkSize[chunkCount - 1]; i++) {
+                last = cursor.next();
+            }
+        }
+    }
+
+    //writes value as a varint at offset, returning the offset after it
+    private static int writeVarint(ByteBuffer data, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data.put(offset++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        data.put(offset++, (byte) value);
+        return offset;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            out.writeLong(chunkBase[c]);
+            out.writeInt(chunkSize[c]);
+            out.writeInt(chunkUsed[c]);
+            byte[] bytes = new byte[chunkUsed[c]];
+            chunks[c].get(0, bytes);
+            out.write(bytes);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        clear();
+        int count = in.readInt();
+        for (int c = 0; c < count; c++) {
+            long base = in.readLong();
+            int chunkTimes = in.readInt();
+            int used = in.readInt();
+            if (chunkTimes <= 0 || used <= 0 || used > CHUNK_BYTES) {
+                throw new IOException("Corrupt request log");
+            }
+            byte[] bytes = new byte[used];
+            in.readFully(bytes);
+            addChunk(ByteBuffer.wrap(bytes), base, chunkTimes, used);
+        }
+        seal();
+    }
+
+    /**
+     * Decodes the log in order, from the start or from the start of a chunk.
+     * index is the number of times decoded so far, counting from the start of the log.
+     * Cursors must only be used while holding the lock of the log.
+     */
+    private final class Cursor {
+        private int index = 0;
+        private int chunk = 0;
+        private int offset = 0;
+        private long time = 0;
+
+        //moves to the first time of chunk c
+        void seek(int c) {
+            index = 0;
+            for (int i = 0; i < c; i++) {
+                index += chunkSize[i];
+            }
+            chunk = c;
+            offset = 0;
+        }
+
+        //decodes the time at index, and moves past it; requires index < size
+        long next() {
+            if (offset == chunkUsed[chunk]) {
+                chunk++;
+                offset = 0;
+            }
+            if (offset == 0) {
+                time = chunkBase[chunk];
+            }
+            ByteBuffer data = chunks[chunk];
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(offset++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            time += delta;
+            index++;
+            return time;
+        }
+    }
+
+    /**
+     * The state of the sweep that finds the peak for one window length.
+     */
+    private final class Peak {
+        private final Cursor left = new Cursor();
+        private final Cursor right = new Cursor();
+        private long leftTime = 0;
+        private int max = 0;
+    }
+}
@@ -0,0 +1,44 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+
+/**
+ * A source of Wikipedia content for a WikiMediator.
+ * Implementations must be safe to call from many threads at once.
+ */
+public interface WikiBackend {
+
+    /**
+     * Searches for pages matching a query.
+     * @param query the query that should be searched.
+     *              query != null
+     * @param limit number of results to return. Input -1 for unlimited results
+     *              limit >= -1
+     * @return the titles of the pages found, in the order given by the backend. Searches
+     *         ignore the case of query, and a search with a smaller limit returns the first
+     *         results of the same search with a larger one, since WikiMediator caches them.
+     */
+    List<String> search(String query, int limit);
+
+    /**
+     * @param pageTitle the title of the page that is asked for.
+     *                  pageTitle != null
+     * @return the full text of the page, or an empty string if there is no such page.
+     */
+    String getPageText(String pageTitle);
+
+    /**
+     * @param pageTitle the title of the page whose links are asked for.
+     *                  pageTitle != null
+     * @return the titles of the pages that pageTitle links to, or an empty list if
+     *         there is no such page.
+     */
+    List<String> getLinksOnPage(String pageTitle);
+
+    /**
+     * @param pageTitle the title of the page whose backlinks are asked for.
+     *                  pageTitle != null
+     * @return the titles of the pages that link to pageTitle, in no particular order.
+     */
+    List<String> getBacklinks(String pageTitle);
+}
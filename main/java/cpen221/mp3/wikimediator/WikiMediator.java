@@ -1,40 +1,125 @@
 package cpen221.mp3.wikimediator;
 
+import cpen221.mp3.fsftbuffer.BufferableSearchResult;
 import cpen221.mp3.fsftbuffer.BufferableWikiPage;
 import cpen221.mp3.fsftbuffer.FSFTBuffer;
 import cpen221.mp3.fsftbuffer.ObjectNotFoundException;
-import org.fastily.jwiki.core.Wiki;
+import cpen221.mp3.fsftbuffer.OffHeapPageStore;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /*
  * Representation Invariants (RI):
- * Times added to pastSearchGetRequests are a subset of times added to requestTimes.
+ * Times held in pastSearchGetRequests are a subset of times added to requestTimes.
+ * Once rankingLoaded is complete, ranking has recorded exactly the requests held in
+ * pastSearchGetRequests, rolled up or not.
  *
  * Abstraction Function (AF):
- * WikiMediator gets information from Wikipedia using the JWiki API and responds to
+ * WikiMediator gets information from Wikipedia through a WikiBackend and responds to
  * requests from user with information from Wikipedia.
  * 
  * pageBuffer represents a cache of pages that have been requested, to minimize
- * internet requests.
+ * internet requests. pageBuffer and searchBuffer sweep in the background, so that the
+ * text of pages that time out is freed even while the mediator is idle. pageBuffer is a single
+ * segment, evicting in exact LRU order, unless it is created with a higher concurrency level.
+ * pageStore, if there is one, is a second, larger cache outside the Java heap that keeps the
+ * pages pageBuffer evicts when it is full, until they would have timed out in pageBuffer. A
+ * page found there is moved back into pageBuffer instead of being fetched again.
+ * searchBuffer caches the results of searches under their normalized query, with a capacity
+ * and staleness of its own. The results of a search with one limit also answer searches for
+ * the same query with any smaller limit. A result is only used for searchStaleness after the
+ * wiki was searched, even if it is asked for often enough to stay in searchBuffer longer.
+ * pageLoads shares a single Wikipedia fetch between all concurrent getPage requests
+ * for the same page that is not in pageBuffer. The fetches run on pageLoaders, at most
+ * DPAGE_LOADS at once, so that a request that times out cannot abort a fetch other requests
+ * are waiting for; fetches beyond that wait for a thread to free up.
+ * pathFinder searches for shortest paths over the links and backlinks of wiki, which it
+ * reads through linkGraph and backlinkGraph. Those cache the link lists fetched by every
+ * path search, up to LinkGraphCache.DCAPACITY links each, keeping the lists read most often,
+ * such as those of hub pages, and are stored to disk together with the request history.
+ * pathFinder runs its fetches on pathSearches, a bounded scheduler of its own, fairly between
+ * searches, and cancels the fetches of a search as soon as it times out. Its threads, those of
+ * pageLoaders, and the writer thread of journal, run until close is called.
  * wiki represents a connection to Wikipedia, and allows WikiMediator to access
- * information from Wikipedia.
- * requestTimes holds all the times at which WikiMediator has received a request.
- * pastSearchGetRequests holds a list of all past search/getPage requests, and the times
- * each was received.
+ * information from Wikipedia. By default it is the live English Wikipedia reached
+ * through the JWiki API, but any WikiBackend, such as an offline page dump, can be used.
+ * requestTimes holds all the times at which WikiMediator has received a request, in
+ * order, and keeps the peaks asked for by windowedPeakLoad up to date as requests arrive.
+ * pastSearchGetRequests holds all past search/getPage requests, and the times each was
+ * received, compressed. Times older than its retention are rolled up into a count per
+ * request, so it stays bounded on a long-running server.
+ * ranking keeps the same requests counted by query, over all time and in per-second
+ * buckets, so that zeitgeist and trending read their rankings off it instead of
+ * counting pastSearchGetRequests again on every call.
+ *
+ * Once readStorage has been called, every request is also appended to journal, a
+ * write-ahead log in the storage directory, so that the request statistics survive a
+ * crash. storeRequests, and a background thread every SNAPSHOT_RECORDS requests, write
+ * pastSearchGetRequests and requestTimes to a snapshot and delete the journal files the
+ * snapshot covers. readStorage loads the snapshot and replays the journal files after it.
+ * The snapshot is laid out to be memory-mapped and read in place: readStorage only maps
+ * it, so that the mediator can serve requests straight away however large the history is,
+ * and pastSearchGetRequests and requestTimes decode what they need out of the mapping.
+ * ranking is rebuilt from the snapshot on a background thread, and rankingLoaded completes
+ * once it has been; only zeitgeist and trending wait for it.
+ * statsLock keeps snapshots consistent: requests are recorded under its read lock, and a
+ * snapshot is taken, and the journal moved to its next generation, under its write lock.
  */
 public class WikiMediator {
 
+    //variable to checkRep
+    private static final boolean CHECK_RI = false;
+
     public static final long SECONDS_TO_MILLIS = 1000;
 
+    private static final String LINK_GRAPH_FILE = "./local/linkGraph.bin";
+    private static final String BACKLINK_GRAPH_FILE = "./local/backlinkGraph.bin";
+    private static final Path STORAGE_DIRECTORY = Paths.get("./local");
+    private static final Path SNAPSHOT_FILE = STORAGE_DIRECTORY.resolve("requests.snapshot");
+    private static final int SNAPSHOT_MAGIC = 0x574D5353;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SERIALIZED_SNAPSHOT_VERSION = 1;
+    private static final long SNAPSHOT_RECORDS = 250_000;
+
+    /* the default number of queries whose search results are cached */
+    public static final int DSEARCH_CAPACITY = 256;
+
+    /* the default time, in seconds, for which cached search results are used */
+    public static final int DSEARCH_STALENESS = 300;
+
+    /* the most pages missing from the cache that are fetched at once */
+    public static final int DPAGE_LOADS = 16;
+
     private final FSFTBuffer<BufferableWikiPage> pageBuffer;
-    Wiki wiki;
-    Map<String, List<Long>> pastSearchGetRequests;
-    List<Long> requestTimes;
+    private final OffHeapPageStore pageStore;
+    private final FSFTBuffer<BufferableSearchResult> searchBuffer;
+    private final long searchStaleness;
+    private final RequestCoalescer<String, String> pageLoads;
+    private final ThreadPoolExecutor pageLoaders;
+    private final PathFinder pathFinder;
+    private final PathSearchScheduler pathSearches;
+    private final LinkGraphCache linkGraph;
+    private final LinkGraphCache backlinkGraph;
+    WikiBackend wiki;
+    RequestHistory pastSearchGetRequests;
+    RequestLog requestTimes;
+    private volatile QueryRanking ranking;
+    private volatile CompletableFuture<Void> rankingLoaded = CompletableFuture.completedFuture(null);
+    private RequestJournal journal;
+    private final ReadWriteLock statsLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
 
     /**
      * Creates a WikiMediator that accesses Wikipedia through an APY, and stores
@@ -47,10 +132,155 @@ public class WikiMediator {
      *                          stalenessInterval >= 0
      */
     public WikiMediator(int capacity, int stalenessInterval) {
-        pageBuffer = new FSFTBuffer(capacity, stalenessInterval);
-        wiki = new Wiki.Builder().withDomain("en.wikipedia.org").build();
-        pastSearchGetRequests = Collections.synchronizedMap(new HashMap<>());
-        requestTimes = Collections.synchronizedList(new ArrayList<>());
+        this(capacity, stalenessInterval, new JWikiBackend());
+    }
+
+    /**
+     * Creates a WikiMediator that accesses a wiki through the given backend, and stores
+     * pages in a local cache.
+     * @param capacity     maximum number of pages that can be stored in
+     *                     local buffer.
+     *                     capacity >= 0
+     * @param stalenessInterval amount of time, in seconds, that pages are
+     *                          stored in buffer before being erased.
+     *                          stalenessInterval >= 0
+     * @param backend      the source of all pages, searches and links.
+     *                     backend != null
+     */
+    public WikiMediator(int capacity, int stalenessInterval, WikiBackend backend) {
+        this(capacity, stalenessInterval, backend, new Options());
+    }
+
+    /**
+     * Creates a WikiMediator that accesses a wiki through the given backend, stores
+     * pages in a local cache, and is tuned by the given options.
+     * @param capacity     maximum number of pages that can be stored in
+     *                     local buffer.
+     *                     capacity >= 0
+     * @param stalenessInterval amount of time, in seconds, that pages are
+     *                          stored in buffer before being erased.
+     *                          stalenessInterval >= 0
+     * @param backend      the source of all pages, searches and links.
+     *                     backend != null
+     * @param options      the settings of the caches and threads of the WikiMediator. It is
+     *                     read once, so changing it afterwards has no effect.
+     *                     options != null
+     */
+    public WikiMediator(int capacity, int stalenessInterval, WikiBackend backend, Options options) {
+        this.pageStore = options.pageStore;
+        searchBuffer = new FSFTBuffer<>(options.searchCapacity, options.searchStaleness);
+        searchBuffer.sweepInBackground();
+        this.searchStaleness = options.searchStaleness * SECONDS_TO_MILLIS;
+        pageBuffer = new FSFTBuffer<>(capacity, stalenessInterval, options.pageConcurrency, pageStore);
+        pageBuffer.sweepInBackground();
+        pageLoaders = new ThreadPoolExecutor(DPAGE_LOADS, DPAGE_LOADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread loader = new Thread(task, "page-load");
+                    loader.setDaemon(true);
+                    return loader;
+                });
+        pageLoaders.allowCoreThreadTimeOut(true);
+        pageLoads = new RequestCoalescer<>(pageLoaders);
+        wiki = backend;
+        linkGraph = new LinkGraphCache();
+        backlinkGraph = new LinkGraphCache();
+        pathSearches = new PathSearchScheduler(options.pathSearchThreads);
+        pathFinder = new PathFinder(
+                title -> linkGraph.getOrLoad(title, wiki::getLinksOnPage),
+                title -> backlinkGraph.getOrLoad(title, wiki::getBacklinks),
+                pathSearches);
+        pastSearchGetRequests = new RequestHistory(options.historyRetention * SECONDS_TO_MILLIS);
+        requestTimes = new RequestLog();
+        ranking = new QueryRanking();
+    }
+
+    /**
+     * The settings of a WikiMediator beyond the capacity and staleness of its page cache.
+     * Every setting starts at its default, and each setter returns the same Options, so
+     * only the settings that differ need be named:
+     * {@code new WikiMediator(20, 10, backend, new WikiMediator.Options().pathSearchThreads(2))}.
+     */
+    public static final class Options {
+        private int pathSearchThreads = PathSearchScheduler.DPARALLELISM;
+        private int historyRetention = (int) (RequestHistory.DRETENTION / SECONDS_TO_MILLIS);
+        private OffHeapPageStore pageStore = null;
+        private int searchCapacity = DSEARCH_CAPACITY;
+        private int searchStaleness = DSEARCH_STALENESS;
+        private int pageConcurrency = FSFTBuffer.DCONCURRENCY;
+
+        /**
+         * @param pathSearchThreads maximum number of link fetches that all shortestPath
+         *                          calls together may run at once. PathSearchScheduler.DPARALLELISM
+         *                          by default.
+         *                          pathSearchThreads >= 1
+         * @return these options
+         */
+        public Options pathSearchThreads(int pathSearchThreads) {
+            this.pathSearchThreads = pathSearchThreads;
+            return this;
+        }
+
+        /**
+         * @param historyRetention amount of time, in seconds, that the time of each
+         *                         search/getPage request is kept before it is only counted.
+         *                         Once reloaded by readStorage, trending no longer counts
+         *                         requests older than this in any window. RequestHistory.DRETENTION
+         *                         by default.
+         *                         historyRetention >= 0
+         * @return these options
+         */
+        public Options historyRetention(int historyRetention) {
+            this.historyRetention = historyRetention;
+            return this;
+        }
+
+        /**
+         * @param pageStore keeps the pages evicted from the local buffer, outside the Java heap,
+         *                  or null, the default, to drop them.
+         *                  It must not be shared with another WikiMediator.
+         * @return these options
+         */
+        public Options pageStore(OffHeapPageStore pageStore) {
+            this.pageStore = pageStore;
+            return this;
+        }
+
+        /**
+         * @param searchCapacity maximum number of queries whose search results are cached.
+         *                       0 turns the search cache off. DSEARCH_CAPACITY by default.
+         *                       searchCapacity >= 0
+         * @return these options
+         */
+        public Options searchCapacity(int searchCapacity) {
+            this.searchCapacity = searchCapacity;
+            return this;
+        }
+
+        /**
+         * @param searchStaleness amount of time, in seconds, after a search that its
+         *                        results are used to answer later searches.
+         *                        DSEARCH_STALENESS by default.
+         *                        searchStaleness >= 0
+         * @return these options
+         */
+        public Options searchStaleness(int searchStaleness) {
+            this.searchStaleness = searchStaleness;
+            return this;
+        }
+
+        /**
+         * @param pageConcurrency the number of segments the local buffer is split into, so that
+         *                        getPage requests for pages in different segments do not wait for
+         *                        each other. Above 1, pages are evicted in LRU order within their
+         *                        segment only, as FSFTBuffer describes. FSFTBuffer.DCONCURRENCY,
+         *                        a single segment, by default.
+         *                        pageConcurrency >= 1
+         * @return these options
+         */
+        public Options pageConcurrency(int pageConcurrency) {
+            this.pageConcurrency = pageConcurrency;
+            return this;
+        }
     }
 
     /**
@@ -58,11 +288,13 @@ public class WikiMediator {
      */
     private void checkRep() {
         Set<Long> searchGetTimeSet = new HashSet<>();
-        pastSearchGetRequests.forEach((s, tl) -> {
-            searchGetTimeSet.addAll(tl);
-        });
+        for (String query : pastSearchGetRequests.queries()) {
+            searchGetTimeSet.addAll(pastSearchGetRequests.times(query));
+        }
 
-        assert requestTimes.containsAll(searchGetTimeSet);
+        for (long time : searchGetTimeSet) {
+            assert requestTimes.contains(time);
+        }
     }
 
     /**
@@ -72,19 +304,33 @@ public class WikiMediator {
      * @param limit number of results to return. Input -1 for unlimited results
      *              limt >= -1
      * @return  a list of the results received from Wikipedia when the query
-     *          is searched.
+     *          is searched, or when it was last searched, if that was less than the
+     *          search staleness interval ago.
      */
     public List<String> search(String query, int limit) {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
+        recordRequest(query);
 
-        if (!pastSearchGetRequests.containsKey(query)) {
-            pastSearchGetRequests.put(query, new ArrayList<Long>());
+        if (CHECK_RI) {
+            checkRep();
         }
-        pastSearchGetRequests.get(query).add(time);
 
-        checkRep();
-        return wiki.search(query, limit);
+        String key = BufferableSearchResult.normalize(query);
+        long now = System.currentTimeMillis();
+        try {
+            BufferableSearchResult cached = searchBuffer.get(key);
+            if (now - cached.fetched() <= searchStaleness && cached.answers(limit)) {
+                return cached.results(limit);
+            }
+        } catch (ObjectNotFoundException e) {
+            // not cached, or timed out
+        }
+
+        List<String> results = wiki.search(query, limit);
+        BufferableSearchResult fetched = new BufferableSearchResult(key, limit, results, now);
+        if (!searchBuffer.update(fetched)) {
+            searchBuffer.put(fetched);
+        }
+        return results;
     }
 
     /**
@@ -94,13 +340,7 @@ public class WikiMediator {
      * @return  The full text of the Wikipedia page corresponding to the input.
      */
     public String getPage(String pageTitle) {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
-
-        if (!pastSearchGetRequests.containsKey(pageTitle)) {
-            pastSearchGetRequests.put(pageTitle, new ArrayList<Long>());
-        }
-        pastSearchGetRequests.get(pageTitle).add(time);
+        recordRequest(pageTitle);
 
         try {
             if (pageBuffer.touch(pageTitle)) {
@@ -110,11 +350,70 @@ public class WikiMediator {
             e.printStackTrace();
         }
 
+        String pageText = pageLoads.load(pageTitle, this::fetchPage);
+
+        if (CHECK_RI) {
+            checkRep();
+        }
+        return pageText;
+    }
+
+    /**
+     * Records a request in the request statistics, and in the journal if there is one.
+     * Starts a snapshot in the background once the journal has grown by SNAPSHOT_RECORDS
+     * requests since the last one.
+     * @param query the query or page title of a search/getPage request, or null for
+     *              any other request.
+     * @return  the time the request was recorded at.
+     */
+    private long recordRequest(String query) {
+        statsLock.readLock().lock();
+        try {
+            long time = requestTimes.append(System.currentTimeMillis());
+            if (query != null) {
+                pastSearchGetRequests.record(query, time);
+                ranking.record(query, time);
+            }
+            if (journal != null) {
+                journal.append(query, time);
+                if (journal.generationRecords() >= SNAPSHOT_RECORDS && snapshotting.compareAndSet(false, true)) {
+                    Thread snapshotter = new Thread(() -> {
+                        try {
+                            writeSnapshot();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            snapshotting.set(false);
+                        }
+                    }, "request-snapshot");
+                    snapshotter.setDaemon(true);
+                    snapshotter.start();
+                }
+            }
+            return time;
+        } finally {
+            statsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fetches a page from Wikipedia, unless pageStore still holds it, and stores it in
+     * pageBuffer, so that requests arriving after the fetch finishes are served from the cache.
+     * @param pageTitle the title of the page to fetch.
+     *                  pageTitle != null
+     * @return  The full text of the Wikipedia page corresponding to the input.
+     */
+    private String fetchPage(String pageTitle) {
+        OffHeapPageStore.StoredPage stored = pageStore == null ? null : pageStore.take(pageTitle);
+        if (stored != null) {
+            // it keeps the expiry it had, so moving between the tiers never makes it less stale
+            pageBuffer.put(stored.page(), stored.expiry());
+            return stored.page().getPageText();
+        }
+
         String pageText = wiki.getPageText(pageTitle);
         BufferableWikiPage newPage = new BufferableWikiPage(pageTitle, pageText);
         pageBuffer.put(newPage);
-
-        checkRep();
         return pageText;
     }
 
@@ -125,32 +424,12 @@ public class WikiMediator {
      *              limit > 0
      * @return  A list of the most popular search/getPage requests sent
      *             to this WikiMediator, ranked in order from most popular to least.
+     *             Requests made equally often are ranked in lexicographic order.
      */
     public List<String> zeitgeist(int limit) {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
-        ArrayList<String> rankedSearches = new ArrayList<>();
-        for (Map.Entry<String, List<Long>> search : pastSearchGetRequests.entrySet()) {
-            if (rankedSearches.size() == 0) {
-                rankedSearches.add(search.getKey());
-            } else {
-                for (int i = 0; i < rankedSearches.size(); i++) {
-                    if (search.getValue().size() > pastSearchGetRequests.get(rankedSearches.get(i)).size()) {
-                        rankedSearches.add(i, search.getKey());
-                        break;
-                    }
-                }
-                if (!rankedSearches.contains(search.getKey())) {
-                    rankedSearches.add(search.getKey());
-                }
-            }
-        }
-
-        if (limit > rankedSearches.size()) {
-            return rankedSearches;
-        } else  {
-            return rankedSearches.subList(0, limit - 1);
-        }
+        recordRequest(null);
+        QueryRanking ranking = loadedRanking();
+        return ranking.top(rankingLength(limit, ranking.size()));
     }
 
     /**
@@ -164,41 +443,15 @@ public class WikiMediator {
      *                              maxItems > 0
      * @return  A list of the most popular search/getPage requests, in time window
      *          current time - timeLimitInSeconds to current time. Ranked in order
-     *          from most popular to least popular.
+     *          from most popular to least popular, with requests made only before
+     *          the window ranked last. Requests are counted in whole seconds, so a
+     *          request made in the second the window starts in is counted.
      */
     public List<String> trending(int timeLimitInSeconds, int maxItems) {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
+        long time = recordRequest(null);
         Long timeLimitInMS = timeLimitInSeconds * SECONDS_TO_MILLIS;
-        ArrayList<String> rankedSearches = new ArrayList<>();
-        Map<String, List<Long>> recentSearches = new HashMap<>(pastSearchGetRequests);
-
-        recentSearches.replaceAll(
-                (s, v) -> recentSearches.get(s).stream()
-                        .filter(_time -> time - _time <= timeLimitInMS)
-                        .collect(Collectors.toList()));
-
-        for (Map.Entry<String, List<Long>> search : recentSearches.entrySet()) {
-            if (rankedSearches.size() == 0) {
-                rankedSearches.add(search.getKey());
-            } else {
-                for (int i = 0; i < rankedSearches.size(); i++) {
-                    if (search.getValue().size() > recentSearches.get(rankedSearches.get(i)).size()) {
-                        rankedSearches.add(i, search.getKey());
-                        break;
-                    }
-                }
-                if (!rankedSearches.contains(search.getKey())) {
-                    rankedSearches.add(search.getKey());
-                }
-            }
-        }
-
-        if (maxItems > rankedSearches.size()) {
-            return rankedSearches;
-        } else {
-            return rankedSearches.subList(0, maxItems - 1);
-        }
+        QueryRanking ranking = loadedRanking();
+        return ranking.topSince(timeLimitInMS, time, rankingLength(maxItems, ranking.size()));
     }
 
     /**
@@ -212,31 +465,10 @@ public class WikiMediator {
      * @return the maximum number received in any time window of given length timeWindowInSeconds
      */
     public int windowedPeakLoad(int timeWindowInSeconds) {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
-
-        requestTimes.sort(Comparator.naturalOrder());
+        recordRequest(null);
 
         Long timeIntervalInMS = timeWindowInSeconds * SECONDS_TO_MILLIS;
-        int endOfInterval = 0;
-        int maxCount = 0;
-        int tempCount;
-
-        for (int i = 0; i < requestTimes.size(); i++) {
-            for (int j = endOfInterval + 1; j < requestTimes.size(); j++) {
-                if (requestTimes.get(j) - requestTimes.get(i) <= timeIntervalInMS) {
-                    endOfInterval = j;
-                } else {
-                    break;
-                }
-            }
-            tempCount = endOfInterval - i;
-            if (tempCount >  maxCount) {
-                maxCount = tempCount;
-            }
-        }
-
-        return maxCount;
+        return requestTimes.peak(timeIntervalInMS);
     }
 
     /**
@@ -268,166 +500,276 @@ public class WikiMediator {
      *                      timeout >= 0
      * @return              The shortest path between two given wikipedia pages.
      *                      If there's a tie, the lexicographically smallest one is
-     *                      chosen.
+     *                      chosen. The path from a page to itself holds only that page,
+     *                      and an empty list is returned if there is no path.
      * @throws TimeoutException Thrown if searching takes more than timout seconds.
      */
     public List<String> shortestPath(String pageTitle1, String pageTitle2, int timeout) throws TimeoutException {
-        Long time = System.currentTimeMillis();
-        requestTimes.add(time);
-        ExecutorService timer = Executors.newSingleThreadExecutor();
-        AtomicBoolean exit = new AtomicBoolean(false);
-        Future<ArrayList<String>> future = timer.submit(() -> {
-            final boolean[] found = {false};
-            Set<ArrayList<String>> pathList = new HashSet<>();
-            Set<String> previousNodes = Collections.synchronizedSet(new HashSet<>());
-            previousNodes.add(pageTitle1);
-
-            List<String> linkListTemp = wiki.getLinksOnPage(pageTitle1);
-            for (String link : linkListTemp) {
-                if (link.equals(pageTitle2)) {
-                    found[0] = true;
-                }
-                pathList.add(new ArrayList<>(Arrays.asList(pageTitle1, link)));
-            }
-            Set<String> tempPreviousNodes = Collections.synchronizedSet(new HashSet<>());
-            Set<ArrayList<String>> tempPathList = new HashSet<>(pathList);
-            int endLayer = 1;
-
-            while(!found[0]) {
-                endLayer++;
-                previousNodes.addAll(tempPreviousNodes);
-                tempPreviousNodes.clear();
-                pathList = new HashSet<>(tempPathList);
-                tempPathList.clear();
-                List<ArrayList<String>> tempPathListLocal = Collections.synchronizedList(new ArrayList<>());
-
-                pathList.parallelStream().takeWhile(list -> !exit.get()).forEach(list -> {
-                    ArrayList<String> linkList = wiki.getLinksOnPage(list.get(list.size()-1));
-                    linkList.parallelStream().takeWhile(link -> !exit.get()).forEach(link -> {
-                        if (link.equals(pageTitle2)) {
-                            found[0] = true;
-                            ArrayList<String> temp = new ArrayList<>(list);
-                            temp.add(link);
-                            tempPathListLocal.add(temp);
-                        }
-                        if (!previousNodes.contains(link)) {
-                            tempPreviousNodes.add(link);
-                            ArrayList<String> temp = new ArrayList<>(list);
-                            temp.add(link);
-                            tempPathListLocal.add(temp);
-                        }
-                    });
-                });
+        recordRequest(null);
+        return pathFinder.find(pageTitle1, pageTitle2, timeout, TimeUnit.SECONDS);
+    }
 
-                tempPathList.addAll(tempPathListLocal);
-            }
+    /**
+     * Finds how many requests zeitgeist and trending return for a limit.
+     * A limit larger than the number of distinct requests returns all of them,
+     * and any other limit returns limit - 1, as these methods always have.
+     * @param limit     the limit asked for.
+     *                  limit > 0
+     * @param available the number of distinct search/getPage requests received.
+     * @return the number of requests to return
+     */
+    private static int rankingLength(int limit, int available) {
+        return limit > available ? available : limit - 1;
+    }
 
-            pathList = new HashSet<>(tempPathList);
+    /**
+     * Waits until ranking has been rebuilt from the snapshot read by readStorage, if it is still being rebuilt.
+     * @return ranking
+     */
+    private QueryRanking loadedRanking() {
+        rankingLoaded.join();
+        return ranking;
+    }
 
-            for (ArrayList<String> path : pathList) {
-                if (!path.get(path.size() - 1).equals(pageTitle2)) {
-                    tempPathList.remove(path);
-                }
+    /**
+     * Stores all search/getPage requests and their corresponding times, as well as
+     * times of all requests and the link lists cached by shortestPath, into local files.
+     * The requests are stored as a snapshot, which replaces the journal files written so far.
+     */
+    public void storeRequests() {
+        try {
+            writeSnapshot();
+            linkGraph.store(Paths.get(LINK_GRAPH_FILE));
+            backlinkGraph.store(Paths.get(BACKLINK_GRAPH_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Can't access filesystem.");
+        }
+    }
+
+    /**
+     * Stops the threads this WikiMediator runs path searches and page fetches on, once their
+     * current fetches finish, and closes the request journal, if there is one, after writing every request
+     * recorded so far. The WikiMediator must not be used afterwards; storeRequests should be
+     * called first if its requests are to be kept.
+     */
+    public void close() {
+        pathSearches.shutdown();
+        pageLoaders.shutdown();
+        statsLock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error in closing the request journal.");
+        } finally {
+            statsLock.writeLock().unlock();
+        }
+    }
 
-            pathList = new HashSet<>(tempPathList);
-            String tempWord;
-            int layerCount = 1;
-            while (layerCount < endLayer) {
-                String smallestWord = null;
-                for (ArrayList<String> path : pathList) {
-                    tempWord = path.get(layerCount);
-                    if (smallestWord == null) {
-                        smallestWord = tempWord;
-                    } else {
-                        if (smallestWord.compareTo(tempWord) < 0) {
-                            tempPathList.remove(path);
-                        } else {
-                            smallestWord = tempWord;
-                        }
-                    }
-                }
+    /**
+     * Reads files containing all search/getPage requests and their corresponding times, as well as
+     * times of all requests received and the link lists cached by shortestPath, and loads them into
+     * the corresponding values of the WikiMediator object.
+     * The requests are read from the latest snapshot and the journal files written after it, or,
+     * if there is no snapshot, from the files written by earlier versions of storeRequests.
+     * The snapshot is memory-mapped rather than copied, and zeitgeist and trending wait for the
+     * rankings to be rebuilt from it in the background; every other request can be served as
+     * soon as this returns. From then on, every request is appended to a new journal file.
+     */
+    public void readStorage() {
+        statsLock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
 
-                pathList = new HashSet<>(tempPathList);
-                for (ArrayList<String> path : pathList) {
-                    if (smallestWord.compareTo(path.get(layerCount)) < 0) {
-                        tempPathList.remove(path);
+            long generation = 0;
+            RequestHistory loadedHistory = new RequestHistory(pastSearchGetRequests.retention());
+            RequestLog loadedLog = new RequestLog();
+            boolean mapped = false;
+            if (Files.isRegularFile(SNAPSHOT_FILE)) {
+                ByteBuffer snapshot;
+                try (FileChannel channel = FileChannel.open(SNAPSHOT_FILE, StandardOpenOption.READ)) {
+                    snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                int magic = snapshot.getInt();
+                int version = snapshot.getInt();
+                generation = snapshot.getLong();
+                if (magic != SNAPSHOT_MAGIC
+                        || (version != SNAPSHOT_VERSION && version != SERIALIZED_SNAPSHOT_VERSION)) {
+                    throw new IOException("Not a request snapshot: " + SNAPSHOT_FILE);
+                }
+                if (version == SNAPSHOT_VERSION) {
+                    loadedHistory = RequestHistory.read(snapshot);
+                    loadedLog = RequestLog.read(snapshot);
+                    mapped = true;
+                } else {
+                    // snapshots written before the mappable layout hold both as serialized objects
+                    byte[] objects = new byte[snapshot.remaining()];
+                    snapshot.get(objects);
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(objects))) {
+                        loadedHistory = (RequestHistory) in.readObject();
+                        loadedLog = (RequestLog) in.readObject();
                     }
                 }
+            } else {
+                loadedHistory = readLegacyHistory(loadedHistory);
+                loadedLog = readLegacyLog(loadedLog);
+            }
 
-                pathList = new HashSet<>(tempPathList);
-                layerCount++;
+            // the ranking is order-independent, so the journals are replayed into it while it is loaded
+            QueryRanking loadedRanking = new QueryRanking();
+            CompletableFuture<Void> loaded = CompletableFuture.completedFuture(null);
+            if (mapped) {
+                RequestHistory storedHistory = loadedHistory;
+                loaded = CompletableFuture.runAsync(() ->
+                        storedHistory.forEachStored((query, rolledUp, times) -> {
+                            loadedRanking.recordRolledUp(query, rolledUp, storedHistory.firstTime());
+                            times.forEach(t -> loadedRanking.record(query, t));
+                        }), runnable -> {
+                            Thread loader = new Thread(runnable, "ranking-loader");
+                            loader.setDaemon(true);
+                            loader.start();
+                        });
+            } else {
+                for (String query : loadedHistory.queries()) {
+                    loadedRanking.recordRolledUp(query, loadedHistory.rolledUp(query), loadedHistory.firstTime());
+                    loadedHistory.times(query).forEach(t -> loadedRanking.record(query, t));
+                }
             }
 
-            for (ArrayList<String> path : pathList) {
-                return path;
+            List<Long> generations = RequestJournal.generations(STORAGE_DIRECTORY);
+            for (long journalGeneration : generations) {
+                if (journalGeneration >= generation) {
+                    RequestHistory history = loadedHistory;
+                    RequestLog log = loadedLog;
+                    RequestJournal.replay(RequestJournal.file(STORAGE_DIRECTORY, journalGeneration),
+                            (query, t) -> {
+                                long time = log.append(t);
+                                if (query != null) {
+                                    history.record(query, time);
+                                    loadedRanking.record(query, time);
+                                }
+                            });
+                }
             }
 
-            return new ArrayList<>();
-        });
+            pastSearchGetRequests = loadedHistory;
+            requestTimes = loadedLog;
+            ranking = loadedRanking;
+            rankingLoaded = loaded;
 
-        try {
-            return future.get(timeout, TimeUnit.SECONDS);
-        } catch (ExecutionException | InterruptedException e) {
+            long nextGeneration = generations.isEmpty()
+                    ? generation : Math.max(generation, generations.get(generations.size() - 1) + 1);
+            journal = new RequestJournal(STORAGE_DIRECTORY, nextGeneration, true);
+
+            if (Files.isRegularFile(Paths.get(LINK_GRAPH_FILE))) {
+                linkGraph.load(Paths.get(LINK_GRAPH_FILE));
+            }
+            if (Files.isRegularFile(Paths.get(BACKLINK_GRAPH_FILE))) {
+                backlinkGraph.load(Paths.get(BACKLINK_GRAPH_FILE));
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
             e.printStackTrace();
-            throw new RuntimeException("Error in finding shortest path.");
-        } catch (TimeoutException te) {
-            exit.set(true);
-            throw new TimeoutException();
+        } finally {
+            statsLock.writeLock().unlock();
         }
     }
 
     /**
-     * Stores all search/getPage requests and their corresponding times, as well as
-     * times of all requests, into local files.
+     * Writes pastSearchGetRequests and requestTimes to the snapshot file, then deletes the
+     * journal files it covers. If there is a journal, it is moved to its next generation
+     * first, so that the snapshot covers exactly the generations before that one.
+     * @throws IOException if the snapshot cannot be written
      */
-    public void storeRequests() {
+    private void writeSnapshot() throws IOException {
+        long generation;
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        statsLock.writeLock().lock();
         try {
-            File searchGetFile = new File("./local/pastSearchGetRequests.ser");
-            searchGetFile.delete();
-            searchGetFile.createNewFile();
+            if (journal != null) {
+                generation = journal.rotate();
+            } else {
+                List<Long> generations = RequestJournal.generations(STORAGE_DIRECTORY);
+                generation = generations.isEmpty() ? 0 : generations.get(generations.size() - 1) + 1;
+            }
+            DataOutputStream out = new DataOutputStream(state);
+            pastSearchGetRequests.writeTo(out, System.currentTimeMillis());
+            requestTimes.writeTo(out);
+            out.close();
+        } finally {
+            statsLock.writeLock().unlock();
+        }
 
-            File reqTimesFile = new File("./local/requestTimes.ser");
-            reqTimesFile.delete();
-            reqTimesFile.createNewFile();
+        Files.createDirectories(STORAGE_DIRECTORY);
+        Path temporary = SNAPSHOT_FILE.resolveSibling(SNAPSHOT_FILE.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(generation);
+            state.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, SNAPSHOT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(searchGetFile));
-            out.writeObject(pastSearchGetRequests);
+        for (long covered : RequestJournal.generations(STORAGE_DIRECTORY)) {
+            if (covered < generation) {
+                Files.deleteIfExists(RequestJournal.file(STORAGE_DIRECTORY, covered));
+            }
+        }
+    }
 
-            out = new ObjectOutputStream(new FileOutputStream(reqTimesFile));
-            out.writeObject(requestTimes);
+    /**
+     * Reads the search/getPage requests stored by earlier versions of storeRequests, if there are any.
+     * @param empty the history to return if there are none.
+     * @return the stored history, or empty.
+     */
+    private RequestHistory readLegacyHistory(RequestHistory empty) throws IOException, ClassNotFoundException {
+        File searchGetFile = new File("./local/pastSearchGetRequests.ser");
+        if (!searchGetFile.isFile()) {
+            return empty;
+        }
+        Object stored;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(searchGetFile))) {
+            stored = in.readObject();
+        }
 
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Can't access filesystem.");
+        // files written before the history was compressed hold a map of boxed times
+        if (stored instanceof RequestHistory) {
+            return (RequestHistory) stored;
         }
+        ((Map<String, List<Long>>) stored).forEach((query, times) -> times.forEach(t -> empty.record(query, t)));
+        return empty;
     }
 
     /**
-     * Reads files containing all search/getPage requests and their corresponding times, as well as
-     * times of all requests received, and loads them into the corresponding values of the WikiMediator
-     * object.
+     * Reads the times of all requests stored by earlier versions of storeRequests, if there are any.
+     * @param empty the log to return if there are none.
+     * @return the stored log, or empty.
      */
-    public void readStorage() {
-        File searchGetFile = new File("./local/pastSearchGetRequests.ser");
+    private RequestLog readLegacyLog(RequestLog empty) throws IOException, ClassNotFoundException {
         File reqTimesFile = new File("./local/requestTimes.ser");
-        ObjectInputStream in;
-
-        try {
-            if (searchGetFile.isFile()) {
-                in = new ObjectInputStream(new FileInputStream(searchGetFile));
-                pastSearchGetRequests = (Map<String, List<Long>>) in.readObject();
-                in.close();
-            }
-            if (reqTimesFile.isFile()) {
-                in = new ObjectInputStream(new FileInputStream(reqTimesFile));
-                requestTimes = (List<Long>) in.readObject();
-                in.close();
-            }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        if (!reqTimesFile.isFile()) {
+            return empty;
+        }
+        Object stored;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(reqTimesFile))) {
+            stored = in.readObject();
         }
 
+        if (stored instanceof RequestLog) {
+            return (RequestLog) stored;
+        }
+        List<Long> loadedTimes = (List<Long>) stored;
+        loadedTimes.sort(Comparator.naturalOrder());
+        loadedTimes.forEach(empty::append);
+        return empty;
     }
 }
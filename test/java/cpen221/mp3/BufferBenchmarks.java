@@ -0,0 +1,492 @@
+package cpen221.mp3;
+
+import cpen221.mp3.fsftbuffer.Bufferable;
+import cpen221.mp3.fsftbuffer.BufferableWikiPage;
+import cpen221.mp3.fsftbuffer.EvictionListener;
+import cpen221.mp3.fsftbuffer.FSFTBuffer;
+import cpen221.mp3.fsftbuffer.ObjectNotFoundException;
+import cpen221.mp3.wikimediator.RequestJournal;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Throughput comparisons for FSFTBuffer. Each benchmark warms up before it is timed
+ * and prints its results, like the timing output in Task3Tests.
+ */
+public class BufferBenchmarks {
+
+    private static final int WARMUP_ROUNDS = 1;
+    private static final int[] CAPACITIES = {32, 256, 2_048};
+
+    // BUFFER ENGINE
+
+    @Test
+    public void benchmarkPutMissHeavy() {
+        for (int capacity : CAPACITIES) {
+            int ops = capacity + 5_000;
+            List<BufferableWikiPage> pages = pages(ops * 2);
+
+            long scanning = 0;
+            long queued = 0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                ScanningBuffer<BufferableWikiPage> old = new ScanningBuffer<>(capacity, 3600);
+                long time = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    old.put(pages.get(i));
+                }
+                scanning = System.nanoTime() - time;
+
+                FSFTBuffer<BufferableWikiPage> buffer = new FSFTBuffer<>(capacity, 3600);
+                time = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    buffer.put(pages.get(i));
+                }
+                queued = System.nanoTime() - time;
+            }
+
+            System.out.println("put, capacity " + capacity + ": scanning " + nsPerOp(scanning, ops)
+                    + " ns/op, expiry queue " + nsPerOp(queued, ops) + " ns/op");
+        }
+    }
+
+    @Test
+    public void benchmarkMixedGetPut() {
+        for (int capacity : CAPACITIES) {
+            int ops = capacity + 5_000;
+            List<BufferableWikiPage> pages = pages(capacity * 2);
+
+            long scanning = 0;
+            long queued = 0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                ScanningBuffer<BufferableWikiPage> old = new ScanningBuffer<>(capacity, 3600);
+                long time = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    BufferableWikiPage page = pages.get((i * 31) % pages.size());
+                    if (!old.touch(page.id())) {
+                        old.put(page);
+                    }
+                }
+                scanning = System.nanoTime() - time;
+
+                FSFTBuffer<BufferableWikiPage> buffer = new FSFTBuffer<>(capacity, 3600);
+                time = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    BufferableWikiPage page = pages.get((i * 31) % pages.size());
+                    if (!buffer.touch(page.id())) {
+                        buffer.put(page);
+                    }
+                }
+                queued = System.nanoTime() - time;
+            }
+
+            System.out.println("touch/put, capacity " + capacity + ": scanning " + nsPerOp(scanning, ops)
+                    + " ns/op, expiry queue " + nsPerOp(queued, ops) + " ns/op");
+        }
+    }
+
+    // STRIPED BUFFER
+
+    @Test
+    public void benchmarkConcurrentHits() throws InterruptedException {
+        int capacity = 4_096;
+        int opsPerThread = 200_000;
+        List<BufferableWikiPage> pages = pages(capacity);
+
+        for (int concurrencyLevel : new int[] {1, 16, 64}) {
+            FSFTBuffer<BufferableWikiPage> buffer = new FSFTBuffer<>(capacity, 3600, concurrencyLevel);
+            for (BufferableWikiPage page : pages) {
+                buffer.put(page);
+            }
+            hitThroughput(buffer, pages, 4, opsPerThread);
+
+            StringBuilder line = new StringBuilder("hits, concurrency level " + concurrencyLevel + ":");
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                long opsPerSecond = hitThroughput(buffer, pages, threads, opsPerThread);
+                line.append(" ").append(threads).append("t=").append(opsPerSecond / 1000).append("k/s");
+            }
+            System.out.println(line);
+        }
+    }
+
+    // PAGE STORAGE
+
+    @Test
+    public void benchmarkPageStorage() throws ObjectNotFoundException {
+        int count = 1_000;
+        int pageLength = 32 * 1024;
+        List<String> texts = articles(count, pageLength);
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add("Article " + i);
+        }
+
+        for (boolean compressed : new boolean[] {false, true}) {
+            long before = usedHeap();
+            FSFTBuffer<Bufferable> buffer = new FSFTBuffer<>(count, 3600);
+            for (int i = 0; i < count; i++) {
+                buffer.put(compressed ? new BufferableWikiPage(ids.get(i), texts.get(i))
+                        : new StringPage(ids.get(i), new StringBuilder(texts.get(i)).toString()));
+            }
+            long stored = usedHeap() - before;
+
+            long hits = 0;
+            long chars = 0;
+            for (int round = 0; round <= WARMUP_ROUNDS + 2; round++) {
+                chars = 0;
+                long time = System.nanoTime();
+                for (String id : ids) {
+                    Bufferable page = buffer.get(id);
+                    chars += compressed ? ((BufferableWikiPage) page).getPageText().length()
+                            : ((StringPage) page).getPageText().length();
+                }
+                hits = System.nanoTime() - time;
+            }
+            System.out.println((compressed ? "deflated UTF-8" : "String") + ", " + pageLength / 1024
+                    + " KB pages: " + stored / count + " bytes per page, "
+                    + (1L << 30) / Math.max(1, stored / count) + " pages per GB, "
+                    + nsPerOp(hits, count) / 1_000 + " us per hit (" + chars / count + " chars each)");
+            buffer = null;
+        }
+    }
+
+    @Test
+    public void benchmarkWeightedCapacity() {
+        // page text lengths spread log-normally round a median of 4,000 characters, from stubs to 500 KB articles
+        int distinct = 10_000;
+        Random random = new Random(23);
+        List<SizedPage> pages = new ArrayList<>(distinct);
+        long totalWeight = 0;
+        for (int i = 0; i < distinct; i++) {
+            double length = Math.exp(Math.log(4_000) + 1.3 * random.nextGaussian());
+            SizedPage page = new SizedPage("Page " + i, 2 * (long) Math.min(500_000, Math.max(200, length)));
+            pages.add(page);
+            totalWeight += page.weight();
+        }
+
+        for (long budget : new long[] {8L << 20, 64L << 20}) {
+            for (boolean weighted : new boolean[] {false, true}) {
+                int countCapacity = (int) (budget / (totalWeight / distinct));
+                long[] held = {0};
+                EvictionListener<Bufferable> listener = (page, expiry) -> held[0] -= page.weight();
+                FSFTBuffer<Bufferable> buffer = weighted ? FSFTBuffer.weighted(budget, 3600, 1, listener)
+                        : new FSFTBuffer<>(countCapacity, 3600, 1, listener);
+                Random requests = new Random(29);
+                int ops = 500_000;
+                int hits = 0;
+                long maxHeld = 0;
+                long minHeld = Long.MAX_VALUE;
+                long sumHeld = 0;
+                for (int i = 0; i < ops; i++) {
+                    // skewed, so that a few pages are far more popular than the rest
+                    SizedPage page = pages.get((int) (distinct * Math.pow(requests.nextDouble(), 2)));
+                    if (buffer.touch(page.id())) {
+                        hits++;
+                    } else if (buffer.put(page)) {
+                        held[0] += page.weight();
+                    }
+                    maxHeld = Math.max(maxHeld, held[0]);
+                    // the buffer is full long before the first tenth of the requests
+                    if (i >= ops / 10) {
+                        minHeld = Math.min(minHeld, held[0]);
+                    }
+                    sumHeld += held[0];
+                }
+                System.out.println((weighted ? "weighted, " + (budget >> 20) + " MB budget"
+                        : "counted, " + countCapacity + " pages") + ": text held mean "
+                        + sumHeld / ops / (1 << 20) + " MB, min " + minHeld / (1 << 20) + " MB, max "
+                        + maxHeld / (1 << 20) + " MB, hit rate " + hits * 100L / ops + "%");
+            }
+        }
+    }
+
+    // ADMISSION
+
+    @Test
+    public void benchmarkAdmissionHitRate() throws IOException {
+        int capacity = 1_000;
+        int popular = 50_000;
+        int requests = 1_000_000;
+        Map<String, List<String>> traces = new LinkedHashMap<>();
+
+        Random random = new Random(31);
+        List<String> skewed = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            skewed.add(skewedTitle(random, popular, 0));
+        }
+        traces.put("skewed", skewed);
+
+        // as above, but a crawler asks for a title no one else does in every third request
+        random = new Random(31);
+        List<String> crawled = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            crawled.add(i % 3 == 0 ? "Crawled " + i : skewedTitle(random, popular, 0));
+        }
+        traces.put("skewed + crawler", crawled);
+
+        // the popular titles change completely halfway through
+        random = new Random(31);
+        List<String> shifting = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            shifting.add(skewedTitle(random, popular, i < requests / 2 ? 0 : popular));
+        }
+        traces.put("shifting popularity", shifting);
+
+        // a journal recorded by a running mediator, if one is given
+        String journal = System.getProperty("trace");
+        if (journal != null) {
+            List<String> recorded = new ArrayList<>();
+            RequestJournal.replay(Paths.get(journal), (query, time) -> {
+                if (query != null) {
+                    recorded.add(query);
+                }
+            });
+            traces.put(journal, recorded);
+        }
+
+        for (Map.Entry<String, List<String>> trace : traces.entrySet()) {
+            StringBuilder line = new StringBuilder(trace.getKey() + ", capacity " + capacity + ":");
+            for (boolean admission : new boolean[] {false, true}) {
+                FSFTBuffer<Bufferable> buffer = new FSFTBuffer<>(capacity, 3600, 1, null, admission);
+                long hits = 0;
+                long time = System.nanoTime();
+                for (String title : trace.getValue()) {
+                    if (buffer.touch(title)) {
+                        hits++;
+                    } else {
+                        buffer.put(() -> title);
+                    }
+                }
+                long elapsed = System.nanoTime() - time;
+                line.append(admission ? " admission " : " LRU ").append(hits * 1000 / trace.getValue().size() / 10.0)
+                        .append("% hits, ").append(nsPerOp(elapsed, trace.getValue().size())).append(" ns/op;");
+            }
+            System.out.println(line);
+        }
+    }
+
+    // EXPIRY
+
+    @Test
+    public void benchmarkExpiryPause() throws InterruptedException {
+        int count = 500_000;
+        List<BufferableWikiPage> pages = pages(count);
+        for (boolean background : new boolean[] {false, true}) {
+            FSFTBuffer<BufferableWikiPage> buffer = new FSFTBuffer<>(count + 1, 1);
+            for (BufferableWikiPage page : pages) {
+                buffer.put(page);
+            }
+            if (background) {
+                buffer.sweepInBackground();
+            }
+
+            // a reader keeps asking for a page that is not there while every page times out
+            long[] slowest = {0};
+            long deadline = System.currentTimeMillis() + 3_000;
+            Thread reader = new Thread(() -> {
+                while (System.currentTimeMillis() < deadline) {
+                    long time = System.nanoTime();
+                    buffer.touch("Missing");
+                    slowest[0] = Math.max(slowest[0], System.nanoTime() - time);
+                }
+            });
+            reader.start();
+            Thread.sleep(2_500);
+            long time = System.nanoTime();
+            buffer.put(new BufferableWikiPage("New", "new"));
+            long put = System.nanoTime() - time;
+            reader.join();
+            System.out.println((background ? "background sweep" : "sweep on put") + ", " + count
+                    + " pages timed out: put " + put / 1_000 + " us, slowest touch " + slowest[0] / 1_000 + " us");
+        }
+    }
+
+    // Helper Methods in private
+
+    private static long hitThroughput(FSFTBuffer<BufferableWikiPage> buffer, List<BufferableWikiPage> pages,
+                                      int threadCount, int opsPerThread) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t * 7919;
+            threads[t] = new Thread(() -> {
+                int index = seed;
+                for (int i = 0; i < opsPerThread; i++) {
+                    index = (index * 1_103_515_245 + 12_345) & Integer.MAX_VALUE;
+                    buffer.touch(pages.get(index % pages.size()).id());
+                }
+            });
+        }
+
+        long time = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - time;
+        return (long) threadCount * opsPerThread * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    private static List<BufferableWikiPage> pages(int count) {
+        List<BufferableWikiPage> pages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            pages.add(new BufferableWikiPage("Page " + i, "Text of page " + i));
+        }
+        return pages;
+    }
+
+    //count texts with roughly the word frequencies, and so the compression ratio, of encyclopedia articles
+    private static List<String> articles(int count, int length) {
+        Random random = new Random(221);
+        String[] words = new String[2_000];
+        for (int i = 0; i < words.length; i++) {
+            char[] letters = new char[2 + random.nextInt(9)];
+            for (int j = 0; j < letters.length; j++) {
+                letters[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(letters);
+        }
+        List<String> articles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder(length);
+            while (text.length() < length) {
+                // common words much more often than rare ones
+                text.append(words[random.nextInt(random.nextInt(words.length) + 1)]);
+                text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+            }
+            articles.add(text.toString());
+        }
+        return articles;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //a title from the popular ones numbered from first, skewed so that a few are far more popular than the rest
+    private static String skewedTitle(Random random, int popular, int first) {
+        return "Page " + (first + (int) (popular * Math.pow(random.nextDouble(), 3)));
+    }
+
+    private static long nsPerOp(long nanos, int ops) {
+        return nanos / ops;
+    }
+
+    /**
+     * BufferableWikiPage before it stored its text compressed, kept here as the baseline for
+     * benchmarkPageStorage.
+     */
+    private static class StringPage implements Bufferable {
+        private final String page;
+        private final String title;
+
+        StringPage(String title, String page) {
+            this.page = page;
+            this.title = title;
+        }
+
+        public String id() {
+            return new String(this.title);
+        }
+
+        String getPageText() {
+            return new String(this.page);
+        }
+    }
+
+    /**
+     * A page that only reports the bytes of text it would hold, for benchmarkWeightedCapacity.
+     */
+    private static class SizedPage implements Bufferable {
+        private final String title;
+        private final long weight;
+
+        SizedPage(String title, long weight) {
+            this.title = title;
+            this.weight = weight;
+        }
+
+        public String id() {
+            return title;
+        }
+
+        @Override
+        public long weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * The put/touch path of FSFTBuffer before it was backed by an ExpiryQueue,
+     * kept here as the baseline for the benchmarks above.
+     */
+    private static class ScanningBuffer<T extends Bufferable> {
+        private final int fixedCapacity;
+        private final long timeout;
+        private final Map<String, T> buffer = Collections.synchronizedMap(new HashMap<>());
+        private final Map<String, Long> timeMap = Collections.synchronizedMap(new HashMap<>());
+
+        ScanningBuffer(int capacity, int timeout) {
+            this.fixedCapacity = capacity;
+            this.timeout = timeout * FSFTBuffer.SECONDS_TO_MILLIS;
+        }
+
+        synchronized boolean put(T t) {
+            if (buffer.containsKey(t.id()) && !isTimedOut(t.id())) {
+                return false;
+            }
+            if (buffer.keySet().size() == fixedCapacity) {
+                updateBuffer();
+            }
+            if (buffer.keySet().size() == fixedCapacity) {
+                List<String> list = new ArrayList<>(timeMap.keySet());
+                String id = timeMap.keySet().parallelStream()
+                        .reduce(list.get(0), (x, y) -> (timeMap.get(x) < timeMap.get(y)) ? x : y);
+                timeMap.remove(id);
+                buffer.remove(id);
+            }
+            buffer.put(t.id(), t);
+            timeMap.put(t.id(), System.currentTimeMillis() + timeout);
+            return true;
+        }
+
+        synchronized boolean touch(String id) {
+            if (!buffer.containsKey(id) || isTimedOut(id)) {
+                buffer.remove(id);
+                timeMap.remove(id);
+                return false;
+            }
+            timeMap.replace(id, System.currentTimeMillis() + timeout);
+            return true;
+        }
+
+        private boolean isTimedOut(String id) {
+            Long expiry = timeMap.get(id);
+            return expiry != null && expiry < System.currentTimeMillis();
+        }
+
+        private void updateBuffer() {
+            long currentTime = System.currentTimeMillis();
+            Set<String> validKeys = timeMap.keySet().parallelStream()
+                    .filter(x -> timeMap.get(x) > currentTime)
+                    .collect(Collectors.toSet());
+            timeMap.keySet().removeIf(x -> !validKeys.contains(x));
+            buffer.keySet().removeIf(x -> !validKeys.contains(x));
+        }
+    }
+}
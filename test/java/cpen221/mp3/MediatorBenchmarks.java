@@ -0,0 +1,623 @@
+package cpen221.mp3;
+
+import cpen221.mp3.fsftbuffer.OffHeapPageStore;
+import cpen221.mp3.wikimediator.InMemoryWikiBackend;
+import cpen221.mp3.wikimediator.LinkGraphCache;
+import cpen221.mp3.wikimediator.MappedWikiBackend;
+import cpen221.mp3.wikimediator.PathFinder;
+import cpen221.mp3.wikimediator.RequestHistory;
+import cpen221.mp3.wikimediator.RequestJournal;
+import cpen221.mp3.wikimediator.RequestLog;
+import cpen221.mp3.wikimediator.WikiBackend;
+import cpen221.mp3.wikimediator.WikiMediator;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline benchmarks for WikiMediator. They run against a synthetic wiki held in a
+ * memory-mapped page dump, so their results do not depend on the network.
+ */
+public class MediatorBenchmarks {
+
+    private static final int PAGES = 20_000;
+    private static final int LINKS_PER_PAGE = 20;
+    private static final int TEXT_LENGTH = 2_000;
+
+    // OFFLINE BACKEND
+
+    @Test
+    public void benchmarkMappedGetPage() throws IOException {
+        Path dump = Files.createTempFile("synthetic", ".dump");
+        try {
+            long time = System.nanoTime();
+            InMemoryWikiBackend synthetic = syntheticWiki(PAGES, LINKS_PER_PAGE, TEXT_LENGTH, 1);
+            MappedWikiBackend.write(dump, synthetic.pages(), synthetic.links());
+            System.out.println("wrote " + PAGES + " pages (" + Files.size(dump) / (1 << 20) + " MB) in "
+                    + (System.nanoTime() - time) / 1_000_000 + " ms");
+
+            time = System.nanoTime();
+            MappedWikiBackend backend = MappedWikiBackend.load(dump);
+            System.out.println("loaded dump in " + (System.nanoTime() - time) / 1_000_000 + " ms");
+
+            for (int capacity : new int[] {0, 1_000, PAGES}) {
+                WikiMediator mediator = new WikiMediator(capacity, 3600, backend);
+                int ops = 200_000;
+                Random random = new Random(42);
+                time = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    mediator.getPage(title(random.nextInt(PAGES)));
+                }
+                long elapsed = System.nanoTime() - time;
+                System.out.println("getPage, cache capacity " + capacity + ": " + elapsed / ops + " ns/op");
+            }
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void benchmarkOffHeapPageTier() {
+        InMemoryWikiBackend synthetic = syntheticWiki(PAGES, 0, TEXT_LENGTH, 1);
+        AtomicLong fetches = new AtomicLong();
+        WikiBackend counting = new WikiBackend() {
+            @Override
+            public List<String> search(String query, int limit) {
+                return synthetic.search(query, limit);
+            }
+
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                return synthetic.getPageText(pageTitle);
+            }
+
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                return synthetic.getLinksOnPage(pageTitle);
+            }
+
+            @Override
+            public List<String> getBacklinks(String pageTitle) {
+                return synthetic.getBacklinks(pageTitle);
+            }
+        };
+
+        // a local buffer of a tenth of the pages, with and without a store large enough for the rest
+        for (OffHeapPageStore store : new OffHeapPageStore[] {null, new OffHeapPageStore(PAGES * TEXT_LENGTH * 2)}) {
+            WikiMediator mediator = new WikiMediator(PAGES / 10, 3600, counting, new WikiMediator.Options()
+                    .pathSearchThreads(1).historyRetention(3600).pageStore(store));
+            for (int i = 0; i < PAGES; i++) {
+                mediator.getPage(title(i));
+            }
+            fetches.set(0);
+            int ops = 200_000;
+            Random random = new Random(42);
+            long time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                mediator.getPage(title(random.nextInt(PAGES)));
+            }
+            long elapsed = System.nanoTime() - time;
+            System.out.println((store == null ? "no page store" : "off-heap page store") + ": "
+                    + elapsed / ops + " ns/op, " + fetches.get() * 100 / ops + "% of requests fetched upstream");
+        }
+    }
+
+    // PATH FINDING
+
+    @Test
+    public void benchmarkPathFinder() throws TimeoutException {
+        int pages = 100_000;
+        int linksPerPage = 20;
+        long time = System.nanoTime();
+        InMemoryWikiBackend graph = syntheticWiki(pages, linksPerPage, 0, 7);
+        System.out.println("built graph of " + pages + " pages and " + (long) pages * linksPerPage
+                + " links in " + (System.nanoTime() - time) / 1_000_000 + " ms");
+
+        PathFinder finder = new PathFinder(graph);
+        Random random = new Random(11);
+        int queries = 200;
+        long totalLength = 0;
+        time = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            List<String> path = finder.find(title(random.nextInt(pages)), title(random.nextInt(pages)),
+                    1, TimeUnit.HOURS);
+            totalLength += path.size();
+        }
+        long elapsed = System.nanoTime() - time;
+        System.out.println("bidirectional shortest path: " + elapsed / queries / 1_000 + " us/query, mean path "
+                + (double) totalLength / queries + " pages");
+    }
+
+    @Test
+    public void benchmarkLinkGraphCache() throws TimeoutException, IOException {
+        int pages = 100_000;
+        InMemoryWikiBackend graph = syntheticWiki(pages, 20, 0, 7);
+        AtomicLong fetches = new AtomicLong();
+        WikiBackend counting = new WikiBackend() {
+            @Override
+            public List<String> search(String query, int limit) {
+                return graph.search(query, limit);
+            }
+
+            @Override
+            public String getPageText(String pageTitle) {
+                return graph.getPageText(pageTitle);
+            }
+
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                fetches.incrementAndGet();
+                return graph.getLinksOnPage(pageTitle);
+            }
+
+            @Override
+            public List<String> getBacklinks(String pageTitle) {
+                fetches.incrementAndGet();
+                return graph.getBacklinks(pageTitle);
+            }
+        };
+        WikiMediator mediator = new WikiMediator(0, 3600, counting);
+
+        Random random = new Random(3);
+        String hub = title(random.nextInt(pages));
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            targets.add(title(random.nextInt(pages)));
+        }
+        for (int round = 0; round < 2; round++) {
+            fetches.set(0);
+            long time = System.nanoTime();
+            for (String target : targets) {
+                mediator.shortestPath(hub, target, 3600);
+            }
+            System.out.println((round == 0 ? "cold" : "warm") + " link graph: "
+                    + (System.nanoTime() - time) / targets.size() / 1_000 + " us/query, "
+                    + fetches.get() / targets.size() + " backend fetches/query");
+        }
+
+        Path file = Files.createTempFile("links", ".bin");
+        try {
+            LinkGraphCache cache = new LinkGraphCache();
+            for (int i = 0; i < pages; i++) {
+                cache.put(title(i), graph.getLinksOnPage(title(i)));
+            }
+            long time = System.nanoTime();
+            cache.store(file);
+            long stored = System.nanoTime() - time;
+            time = System.nanoTime();
+            new LinkGraphCache().load(file);
+            System.out.println("link graph of " + cache.edgeCount() + " links: store "
+                    + stored / 1_000_000 + " ms, load " + (System.nanoTime() - time) / 1_000_000 + " ms, "
+                    + Files.size(file) / (1 << 20) + " MB");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void benchmarkBoundedLinkGraphCache() throws TimeoutException {
+        // links skewed towards a few hub pages, as on Wikipedia
+        int pages = 20_000;
+        Random random = new Random(17);
+        InMemoryWikiBackend graph = new InMemoryWikiBackend();
+        long totalLinks = 0;
+        for (int i = 0; i < pages; i++) {
+            List<String> links = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                links.add(title((int) (pages * Math.pow(random.nextDouble(), 3))));
+            }
+            graph.addPage(title(i), "", links);
+            totalLinks += links.size();
+        }
+        // every page's links, counted as the cache counts them, in both directions
+        long weight = 2 * (totalLinks + pages);
+
+        for (long capacity : new long[] {weight, weight / 4, weight / 16}) {
+            AtomicLong fetches = new AtomicLong();
+            LinkGraphCache links = new LinkGraphCache((int) capacity);
+            LinkGraphCache backlinks = new LinkGraphCache((int) capacity);
+            PathFinder finder = new PathFinder(
+                    title -> links.getOrLoad(title, t -> {
+                        fetches.incrementAndGet();
+                        return graph.getLinksOnPage(t);
+                    }),
+                    title -> backlinks.getOrLoad(title, t -> {
+                        fetches.incrementAndGet();
+                        return graph.getBacklinks(t);
+                    }),
+                    null);
+            Random queries = new Random(19);
+            int ops = 500;
+            long time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                finder.find(title(queries.nextInt(pages)), title(queries.nextInt(pages)), 1, TimeUnit.HOURS);
+            }
+            long elapsed = System.nanoTime() - time;
+            System.out.println("link graph cache of " + capacity * 100 / weight + "% of the graph: "
+                    + elapsed / ops / 1_000 + " us/query, " + fetches.get() / ops + " backend fetches/query, "
+                    + (links.size() + backlinks.size()) + " lists cached");
+        }
+    }
+
+    // REQUEST STATISTICS
+
+    @Test
+    public void benchmarkZeitgeistTrending() {
+        for (int distinct : new int[] {1_000, 10_000, 100_000}) {
+            WikiMediator mediator = new WikiMediator(0, 3600, new InMemoryWikiBackend());
+            Random random = new Random(5);
+            int requests = 200_000;
+            long time = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                // skewed, so that a few queries are far more popular than the rest
+                mediator.search(title((int) (distinct * Math.pow(random.nextDouble(), 3))), 1);
+            }
+            long recorded = System.nanoTime() - time;
+
+            int ops = 2_000;
+            time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                mediator.zeitgeist(10);
+            }
+            long zeitgeist = System.nanoTime() - time;
+            time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                mediator.trending(30, 10);
+            }
+            long trending = System.nanoTime() - time;
+            System.out.println(distinct + " distinct queries: record " + recorded / requests + " ns/request, zeitgeist "
+                    + zeitgeist / ops / 1_000 + " us/op, trending " + trending / ops / 1_000 + " us/op");
+        }
+    }
+
+    @Test
+    public void benchmarkSearchCache() {
+        InMemoryWikiBackend synthetic = syntheticWiki(PAGES, 0, 0, 1);
+        AtomicLong searches = new AtomicLong();
+        WikiBackend counting = new WikiBackend() {
+            @Override
+            public List<String> search(String query, int limit) {
+                searches.incrementAndGet();
+                return synthetic.search(query, limit);
+            }
+
+            @Override
+            public String getPageText(String pageTitle) {
+                return synthetic.getPageText(pageTitle);
+            }
+
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                return synthetic.getLinksOnPage(pageTitle);
+            }
+
+            @Override
+            public List<String> getBacklinks(String pageTitle) {
+                return synthetic.getBacklinks(pageTitle);
+            }
+        };
+
+        for (int searchCapacity : new int[] {0, WikiMediator.DSEARCH_CAPACITY}) {
+            WikiMediator mediator = new WikiMediator(0, 3600, counting, new WikiMediator.Options()
+                    .pathSearchThreads(1).historyRetention(3600).searchCapacity(searchCapacity));
+            searches.set(0);
+            Random random = new Random(5);
+            int ops = 2_000;
+            long time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                // 1,000 queries, skewed as zeitgeist shows real ones are, with limits of 1 to 20
+                mediator.search(title((int) (1_000 * Math.pow(random.nextDouble(), 3))), 1 + random.nextInt(20));
+            }
+            long elapsed = System.nanoTime() - time;
+            System.out.println("search cache capacity " + searchCapacity + ": " + elapsed / ops / 1_000
+                    + " us/op, " + searches.get() * 100 / ops + "% of searches sent to the backend");
+        }
+    }
+
+    @Test
+    public void benchmarkWindowedPeakLoad() {
+        for (int requests : new int[] {100_000, 1_000_000}) {
+            RequestLog log = new RequestLog();
+            Random random = new Random(3);
+            long now = 0;
+            long time = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                now += random.nextInt(5);
+                log.append(now);
+            }
+            long appended = System.nanoTime() - time;
+
+            // one peak query after every 100 new requests, as a steady server would see them
+            int ops = 10_000;
+            time = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                for (int j = 0; j < 100; j++) {
+                    now += random.nextInt(5);
+                    log.append(now);
+                }
+                log.peak(30_000);
+            }
+            long peaks = System.nanoTime() - time;
+
+            List<Long> boxed = log.toList();
+            time = System.nanoTime();
+            boxed.sort(Long::compare);
+            int endOfInterval = 0;
+            int maxCount = 0;
+            for (int i = 0; i < boxed.size(); i++) {
+                for (int j = endOfInterval + 1; j < boxed.size(); j++) {
+                    if (boxed.get(j) - boxed.get(i) <= 30_000) {
+                        endOfInterval = j;
+                    } else {
+                        break;
+                    }
+                }
+                maxCount = Math.max(maxCount, endOfInterval - i);
+            }
+            long rescan = System.nanoTime() - time;
+            System.out.println(requests + " requests: append " + appended / requests + " ns, incremental peak "
+                    + peaks / ops / 1_000 + " us/op (100 appends each), full sort and rescan "
+                    + rescan / 1_000 + " us (peak " + maxCount + " vs " + log.peak(30_000) + ")");
+        }
+    }
+
+    @Test
+    public void benchmarkRequestHistoryHeap() {
+        int requests = 1_000_000;
+        int queries = 10_000;
+        // requests every 0 to 9 ms, so a million of them span under three hours
+        Random random = new Random(9);
+        long[] times = new long[requests];
+        int[] queryIds = new int[requests];
+        long now = 1_600_000_000_000L;
+        for (int i = 0; i < requests; i++) {
+            now += random.nextInt(10);
+            times[i] = now;
+            queryIds[i] = (int) (queries * Math.pow(random.nextDouble(), 2));
+        }
+        String[] names = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            names[i] = title(i);
+        }
+
+        long before = usedHeap();
+        Map<String, List<Long>> boxedHistory = new HashMap<>();
+        List<Long> boxedTimes = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            boxedHistory.computeIfAbsent(names[queryIds[i]], q -> new ArrayList<>()).add(times[i]);
+            boxedTimes.add(times[i]);
+        }
+        long boxed = usedHeap() - before;
+        System.out.println("boxed maps: " + boxed / (requests / 1_000_000) / (1 << 20) + " MB per million requests ("
+                + boxedHistory.size() + " queries, " + boxedTimes.size() + " times)");
+        boxedHistory = null;
+        boxedTimes = null;
+
+        for (long retention : new long[] {RequestHistory.DRETENTION, 60 * 60 * 1000L}) {
+            before = usedHeap();
+            RequestHistory history = new RequestHistory(retention);
+            RequestLog log = new RequestLog();
+            for (int i = 0; i < requests; i++) {
+                history.record(names[queryIds[i]], times[i]);
+                log.append(times[i]);
+            }
+            history.rollUp(now);
+            long compact = usedHeap() - before;
+            System.out.println("compact history, retention " + retention / 60_000 + " min: "
+                    + compact / (requests / 1_000_000) / 1024 + " KB per million requests, of which the "
+                    + "request log is " + log.bytesUsed() / 1024 + " KB (" + history.size() + " requests)");
+        }
+    }
+
+    @Test
+    public void benchmarkRequestStorage() throws IOException, ClassNotFoundException {
+        int requests = 1_000_000;
+        int queries = 10_000;
+        Random random = new Random(13);
+        long[] times = new long[requests];
+        String[] queryOf = new String[requests];
+        long now = 1_600_000_000_000L;
+        for (int i = 0; i < requests; i++) {
+            now += random.nextInt(10);
+            times[i] = now;
+            queryOf[i] = title((int) (queries * Math.pow(random.nextDouble(), 2)));
+        }
+
+        Path directory = Files.createTempDirectory("storage");
+        Path legacy = directory.resolve("legacy.ser");
+        Path snapshot = directory.resolve("snapshot.ser");
+        try {
+            Map<String, List<Long>> boxedHistory = new HashMap<>();
+            List<Long> boxedTimes = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                boxedHistory.computeIfAbsent(queryOf[i], q -> new ArrayList<>()).add(times[i]);
+                boxedTimes.add(times[i]);
+            }
+            long time = System.nanoTime();
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(legacy)))) {
+                out.writeObject(boxedHistory);
+                out.writeObject(boxedTimes);
+            }
+            long legacyWrite = System.nanoTime() - time;
+            time = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(legacy)))) {
+                in.readObject();
+                in.readObject();
+            }
+            long legacyRead = System.nanoTime() - time;
+            System.out.println("serialized maps: write " + legacyWrite / 1_000_000 + " ms, read "
+                    + legacyRead / 1_000_000 + " ms, " + Files.size(legacy) / (1 << 20) + " MB");
+
+            RequestJournal journal = new RequestJournal(directory, 0, true);
+            time = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                journal.append(queryOf[i], times[i]);
+            }
+            journal.flush();
+            long appended = System.nanoTime() - time;
+            journal.close();
+            Path journalFile = RequestJournal.file(directory, 0);
+            time = System.nanoTime();
+            RequestHistory history = new RequestHistory();
+            RequestLog log = new RequestLog();
+            RequestJournal.replay(journalFile, (query, t) -> {
+                log.append(t);
+                history.record(query, t);
+            });
+            long replayed = System.nanoTime() - time;
+            System.out.println("journal: append " + (long) requests * 1_000_000_000L / appended + " requests/s, replay "
+                    + replayed / 1_000_000 + " ms, " + Files.size(journalFile) / (1 << 20) + " MB");
+
+            time = System.nanoTime();
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(snapshot)))) {
+                out.writeObject(history);
+                out.writeObject(log);
+            }
+            long snapshotWrite = System.nanoTime() - time;
+            time = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    Files.newInputStream(snapshot)))) {
+                in.readObject();
+                in.readObject();
+            }
+            long snapshotRead = System.nanoTime() - time;
+            System.out.println("compacted snapshot: write " + snapshotWrite / 1_000_000 + " ms, read "
+                    + snapshotRead / 1_000_000 + " ms, " + Files.size(snapshot) / 1024 + " KB");
+        } finally {
+            Files.deleteIfExists(legacy);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(RequestJournal.file(directory, 0));
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void benchmarkStatisticsStartup() throws IOException, ClassNotFoundException {
+        int requests = 10_000_000;
+        int queries = 100_000;
+        Random random = new Random(29);
+        RequestHistory history = new RequestHistory(Long.MAX_VALUE);
+        RequestLog log = new RequestLog();
+        long now = 1_600_000_000_000L;
+        for (int i = 0; i < requests; i++) {
+            now += random.nextInt(10);
+            log.append(now);
+            history.record(title((int) (queries * Math.pow(random.nextDouble(), 2))), now);
+        }
+
+        Path serialized = Files.createTempFile("statistics", ".ser");
+        Path mappable = Files.createTempFile("statistics", ".bin");
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(serialized)))) {
+                out.writeObject(history);
+                out.writeObject(log);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(mappable)))) {
+                history.writeTo(out, now);
+                log.writeTo(out);
+            }
+            history = null;
+            log = null;
+
+            long time = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    Files.newInputStream(serialized)))) {
+                in.readObject();
+                in.readObject();
+            }
+            System.out.println("serialized snapshot: read " + (System.nanoTime() - time) / 1_000_000 + " ms, "
+                    + Files.size(serialized) / (1 << 20) + " MB");
+
+            time = System.nanoTime();
+            ByteBuffer data;
+            try (FileChannel channel = FileChannel.open(mappable, StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            RequestHistory mappedHistory = RequestHistory.read(data);
+            RequestLog mappedLog = RequestLog.read(data);
+            long mapped = System.nanoTime() - time;
+            time = System.nanoTime();
+            mappedLog.append(now);
+            mappedHistory.record(title(0), now);
+            long firstRequest = System.nanoTime() - time;
+            time = System.nanoTime();
+            mappedLog.peak(1000);
+            long firstPeak = System.nanoTime() - time;
+            time = System.nanoTime();
+            AtomicLong visited = new AtomicLong();
+            mappedHistory.forEachStored((query, rolledUp, times) -> visited.addAndGet(rolledUp + times.size()));
+            long rankingInput = System.nanoTime() - time;
+            System.out.println("mapped snapshot: open " + mapped / 1_000 + " us, first request "
+                    + firstRequest / 1_000 + " us, first peak " + firstPeak / 1_000_000 + " ms, "
+                    + "background ranking scan " + rankingInput / 1_000_000 + " ms over " + visited.get()
+                    + " requests, " + Files.size(mappable) / (1 << 20) + " MB");
+        } finally {
+            Files.deleteIfExists(serialized);
+            Files.deleteIfExists(mappable);
+        }
+    }
+
+    // Helper Methods in private
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /**
+     * Builds a wiki of pages "Page 0" to "Page (pages - 1)", each linking to linksPerPage
+     * other pages chosen at random from a fixed seed.
+     */
+    static InMemoryWikiBackend syntheticWiki(int pages, int linksPerPage, int textLength, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < textLength) {
+            text.append("lorem ipsum dolor sit amet ");
+        }
+        String body = text.substring(0, textLength);
+
+        String[] titles = new String[pages];
+        for (int i = 0; i < pages; i++) {
+            titles[i] = title(i);
+        }
+
+        InMemoryWikiBackend wiki = new InMemoryWikiBackend();
+        for (int i = 0; i < pages; i++) {
+            List<String> links = new ArrayList<>(linksPerPage);
+            for (int j = 0; j < linksPerPage; j++) {
+                links.add(titles[random.nextInt(pages)]);
+            }
+            wiki.addPage(titles[i], textLength == 0 ? "" : titles[i] + " " + body, links);
+        }
+        return wiki;
+    }
+
+    static String title(int i) {
+        return "Page " + i;
+    }
+}
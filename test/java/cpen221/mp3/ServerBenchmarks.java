@@ -0,0 +1,347 @@
+package cpen221.mp3;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import cpen221.mp3.server.NioWikiMediatorServer;
+import cpen221.mp3.server.WikiMediatorClient;
+import cpen221.mp3.server.WikiMediatorServer;
+import cpen221.mp3.wikimediator.InMemoryWikiBackend;
+import cpen221.mp3.wikimediator.WikiMediator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline load tests for the server front ends. They run against an in-memory wiki that
+ * sleeps on every page fetch, standing in for the latency of the live wiki, and print their
+ * results, like the other benchmarks.
+ */
+public class ServerBenchmarks {
+
+    private static final int PORT = 9400;
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final Gson jsonConverter = new Gson();
+    private static final int FETCH_MILLIS = 50;
+
+    // EXECUTION MODES
+
+    @Test
+    public void benchmarkBlockingClients() throws IOException, InterruptedException {
+        int clients = 1_000;
+        for (boolean virtualThreads : new boolean[] {false, true}) {
+            int port = PORT + (virtualThreads ? 1 : 0);
+            WikiMediatorServer server = new WikiMediatorServer(port, 32, slowMediator(clients), virtualThreads);
+            Thread serverThread = new Thread(server::serve);
+            serverThread.start();
+
+            // every client connects, asks for one page, and hangs up once it has it
+            List<WikiMediatorClient> connected = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                connected.add(new WikiMediatorClient(LOCALHOST, port));
+            }
+            Thread[] threads = new Thread[clients];
+            long time = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                WikiMediatorClient client = connected.get(i);
+                JsonObject json = new JsonObject();
+                json.addProperty("id", Integer.toString(i));
+                json.addProperty("type", "getPage");
+                json.addProperty("pageTitle", "Page " + i);
+                threads[i] = new Thread(() -> {
+                    try {
+                        client.sendRequest(json);
+                        client.getReply();
+                        client.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - time;
+            System.out.println((virtualThreads ? "thread per client" : "pool of 32") + " (Java "
+                    + Runtime.version().feature() + "): " + clients + " clients waiting " + FETCH_MILLIS
+                    + " ms each in " + elapsed / 1_000_000 + " ms, "
+                    + (long) clients * 1_000_000_000L / elapsed + " requests/s");
+
+            WikiMediatorClient client = new WikiMediatorClient(LOCALHOST, port);
+            stop(client);
+            client.close();
+            serverThread.join();
+        }
+    }
+
+    // BATCHES
+
+    @Test
+    public void benchmarkBatchedRequests() throws IOException, InterruptedException {
+        int requests = 100;
+        WikiMediatorServer server = new WikiMediatorServer(PORT + 2, 4, slowMediator(2 * requests));
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        WikiMediatorClient client = new WikiMediatorClient(LOCALHOST, PORT + 2);
+
+        // one round trip per page, then the same number of other pages in a single batch
+        long time = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            client.sendRequest(getPage(Integer.toString(i), "Page " + i));
+            client.getReply();
+        }
+        long oneByOne = System.nanoTime() - time;
+
+        JsonArray batched = new JsonArray();
+        for (int i = requests; i < 2 * requests; i++) {
+            batched.add(getPage(Integer.toString(i), "Page " + i));
+        }
+        JsonObject batch = new JsonObject();
+        batch.addProperty("id", "batch");
+        batch.addProperty("type", "batch");
+        batch.add("requests", batched);
+        time = System.nanoTime();
+        client.sendRequest(batch);
+        client.getReply();
+        long together = System.nanoTime() - time;
+        System.out.println(requests + " pages fetched in " + FETCH_MILLIS + " ms each: one request each "
+                + oneByOne / 1_000_000 + " ms, one batch " + together / 1_000_000 + " ms");
+
+        stop(client);
+        client.close();
+        serverThread.join();
+    }
+
+    // ALLOCATION
+
+    @Test
+    public void benchmarkResponseAllocation() throws IOException, InterruptedException {
+        int pageBytes = 1 << 20;
+        int requests = 50;
+        StringBuilder text = new StringBuilder(pageBytes);
+        while (text.length() < pageBytes) {
+            text.append("A \"quoted\" line of page text, with a tab\tand a newline.\n");
+        }
+        for (boolean nio : new boolean[] {false, true}) {
+            InMemoryWikiBackend backend = new InMemoryWikiBackend();
+            backend.addPage("Large", text.toString(), new ArrayList<>());
+            WikiMediator mediator = new WikiMediator(10, 1000, backend);
+            int port = PORT + (nio ? 4 : 3);
+            Runnable serve = nio ? new NioWikiMediatorServer(port, 1, 1, mediator)::serve
+                    : new WikiMediatorServer(port, 1, mediator)::serve;
+            Thread serverThread = new Thread(serve);
+            serverThread.start();
+            WikiMediatorClient client = new WikiMediatorClient(LOCALHOST, port);
+
+            // the first requests load the page and warm up the server
+            for (int i = 0; i < 10; i++) {
+                client.sendRequest(getPage(Integer.toString(i), "Large"));
+                client.getReply();
+            }
+            long allocated = allocatedByOtherThreads();
+            long time = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                client.sendRequest(getPage(Integer.toString(i), "Large"));
+                client.getReply();
+            }
+            long elapsed = System.nanoTime() - time;
+            allocated = allocatedByOtherThreads() - allocated;
+            System.out.println((nio ? "nio server" : "blocking server") + ": " + pageBytes / 1024
+                    + " KB page, " + allocated / requests / 1024 + " KB allocated by the server per request, "
+                    + elapsed / requests / 1_000 + " us per round trip");
+
+            stop(client);
+            client.close();
+            serverThread.join();
+        }
+    }
+
+    // COMPRESSION
+
+    @Test
+    public void benchmarkCompressedResponses() throws IOException, InterruptedException {
+        String text = articleText(256 * 1024);
+        InMemoryWikiBackend backend = new InMemoryWikiBackend();
+        backend.addPage("Article", text, new ArrayList<>());
+        WikiMediatorServer server = new WikiMediatorServer(PORT + 5, 4, new WikiMediator(10, 1000, backend));
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        // 0 is loopback at full speed; 1 MB/s stands in for a slow link
+        for (int bytesPerSecond : new int[] {0, 1 << 20}) {
+            int requests = bytesPerSecond == 0 ? 50 : 10;
+            for (int level : new int[] {-2, 1, 6}) {
+                try (Relay relay = new Relay(PORT + 6, PORT + 5, bytesPerSecond)) {
+                    WikiMediatorClient client = new WikiMediatorClient(LOCALHOST, PORT + 6);
+                    if (level >= 0) {
+                        client.compress(level);
+                    }
+                    client.sendRequest(getPage("warm", "Article"));
+                    client.getReply();
+
+                    long sent = relay.sent.get();
+                    long time = System.nanoTime();
+                    for (int i = 0; i < requests; i++) {
+                        client.sendRequest(getPage(Integer.toString(i), "Article"));
+                        client.getReply();
+                    }
+                    long elapsed = System.nanoTime() - time;
+                    sent = relay.sent.get() - sent;
+                    System.out.println((bytesPerSecond == 0 ? "loopback" : "1 MB/s link") + ", "
+                            + (level < 0 ? "plain" : "deflate " + level) + ": "
+                            + sent / requests / 1024 + " KB sent per " + text.length() / 1024 + " KB page, "
+                            + elapsed / requests / 1_000 + " us per round trip, "
+                            + (long) text.length() * requests * 1_000 / (elapsed / 1_000_000) / 1024
+                            + " KB/s of page text");
+                    client.close();
+                }
+            }
+        }
+
+        WikiMediatorClient client = new WikiMediatorClient(LOCALHOST, PORT + 5);
+        stop(client);
+        client.close();
+        serverThread.join();
+    }
+
+    // Helper Methods in private
+
+    //a mediator over pages whose every fetch blocks for FETCH_MILLIS
+    private static WikiMediator slowMediator(int pages) {
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                try {
+                    Thread.sleep(FETCH_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getPageText(pageTitle);
+            }
+        };
+        for (int i = 0; i < pages; i++) {
+            backend.addPage("Page " + i, "text of page " + i, new ArrayList<>());
+        }
+        return new WikiMediator(pages, 100, backend);
+    }
+
+    //the bytes allocated so far by every live thread other than this one, which plays the client
+    private static long allocatedByOtherThreads() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            if (id != Thread.currentThread().getId()) {
+                total += Math.max(0, threads.getThreadAllocatedBytes(id));
+            }
+        }
+        return total;
+    }
+
+    private static JsonObject getPage(String id, String pageTitle) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("type", "getPage");
+        json.addProperty("pageTitle", pageTitle);
+        return json;
+    }
+
+    private static void stop(WikiMediatorClient client) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", "stop");
+        json.addProperty("type", "stop");
+        client.sendRequest(json);
+        jsonConverter.fromJson(client.getReply(), JsonObject.class);
+    }
+
+    //text with roughly the word frequencies, and so the compression ratio, of an encyclopedia article
+    private static String articleText(int length) {
+        Random random = new Random(221);
+        String[] words = new String[2_000];
+        for (int i = 0; i < words.length; i++) {
+            char[] letters = new char[2 + random.nextInt(9)];
+            for (int j = 0; j < letters.length; j++) {
+                letters[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(letters);
+        }
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            // common words much more often than rare ones
+            text.append(words[random.nextInt(random.nextInt(words.length) + 1)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Forwards one connection to the server, counting the bytes the server sends back, and
+     * sending them no faster than bytesPerSecond, unless that is 0.
+     */
+    private static final class Relay implements AutoCloseable {
+        final AtomicLong sent = new AtomicLong();
+        private final ServerSocket listener;
+        private final Thread accepting;
+        private volatile Socket client;
+        private volatile Socket server;
+
+        Relay(int port, int serverPort, int bytesPerSecond) throws IOException {
+            listener = new ServerSocket(port);
+            accepting = new Thread(() -> {
+                try {
+                    client = listener.accept();
+                    server = new Socket(LOCALHOST, serverPort);
+                    Thread requests = new Thread(() -> copy(client, server, 0, new AtomicLong()));
+                    requests.setDaemon(true);
+                    requests.start();
+                    copy(server, client, bytesPerSecond, sent);
+                } catch (IOException e) {
+                    // the relay was closed
+                }
+            });
+            accepting.setDaemon(true);
+            accepting.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            if (client != null) {
+                client.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+
+        private static void copy(Socket from, Socket to, int bytesPerSecond, AtomicLong count) {
+            byte[] chunk = new byte[16 * 1024];
+            long start = System.nanoTime();
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int read;
+                while ((read = in.read(chunk)) >= 0) {
+                    out.write(chunk, 0, read);
+                    long total = count.addAndGet(read);
+                    if (bytesPerSecond > 0) {
+                        long due = start + total * 1_000_000_000L / bytesPerSecond;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // either side hung up
+            }
+        }
+    }
+}
@@ -1,10 +1,46 @@
 package cpen221.mp3;
 
+import cpen221.mp3.fsftbuffer.OffHeapPageStore;
+import cpen221.mp3.wikimediator.InMemoryWikiBackend;
+import cpen221.mp3.wikimediator.MappedWikiBackend;
+import cpen221.mp3.wikimediator.QueryRanking;
+import cpen221.mp3.wikimediator.RequestCoalescer;
+import cpen221.mp3.wikimediator.RequestHistory;
+import cpen221.mp3.wikimediator.RequestJournal;
+import cpen221.mp3.wikimediator.RequestLog;
 import cpen221.mp3.wikimediator.WikiMediator;
 import org.junit.Test;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
 
 public class Task3Tests {
     private static WikiMediator mediator = new WikiMediator(20, 10);
@@ -81,4 +117,604 @@ public class Task3Tests {
         mediator2.readStorage();
         System.out.println("\n\n\n\n\n\n" + mediator2.zeitgeist(10));
     }
+
+    @Test
+    public void testCoalescedLoads() throws InterruptedException {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>(Runnable::run);
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        String[] results = new String[8];
+
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> results[index] = coalescer.load("Obama", title -> {
+                fetches.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "text of " + title;
+            }));
+            threads[i].start();
+        }
+
+        while (coalescer.inFlightCount() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, fetches.get());
+        for (String result : results) {
+            assertEquals("text of Obama", result);
+        }
+        assertEquals(0, coalescer.inFlightCount());
+    }
+
+    @Test
+    public void testCoalescedLoadFailure() {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>(Runnable::run);
+        try {
+            coalescer.load("Obama", title -> {
+                throw new IllegalStateException("no connection");
+            });
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            assertEquals(0, coalescer.inFlightCount());
+        }
+        assertEquals("retry", coalescer.load("Obama", title -> "retry"));
+    }
+
+    @Test
+    public void testCoalescedLoadOutlivesInterruptedCaller() throws Exception {
+        ExecutorService loaders = Executors.newSingleThreadExecutor();
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>(loaders);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        Function<String, String> loader = title -> {
+            fetches.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "text of " + title;
+        };
+
+        AtomicReference<RuntimeException> leaderFailure = new AtomicReference<>();
+        Thread leader = new Thread(() -> {
+            try {
+                coalescer.load("Obama", loader);
+            } catch (RuntimeException e) {
+                leaderFailure.set(e);
+            }
+        });
+        leader.start();
+        while (coalescer.inFlightCount() == 0) {
+            Thread.sleep(1);
+        }
+        String[] follower = new String[1];
+        Thread waiter = new Thread(() -> follower[0] = coalescer.load("Obama", loader));
+        waiter.start();
+        Thread.sleep(100);
+
+        // the caller that started the load gives up, as a request that timed out would
+        leader.interrupt();
+        leader.join();
+        assertNotNull(leaderFailure.get());
+        release.countDown();
+        waiter.join();
+        assertEquals("text of Obama", follower[0]);
+        assertEquals(1, fetches.get());
+        loaders.shutdown();
+    }
+
+    @Test
+    public void testOfflineGetPageCoalesced() throws InterruptedException {
+        AtomicInteger fetches = new AtomicInteger();
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getPageText(pageTitle);
+            }
+        };
+        backend.addPage("Trending", "popular text", Arrays.asList("Other"));
+        WikiMediator offline = new WikiMediator(20, 10, backend);
+
+        Thread[] threads = new Thread[8];
+        String[] results = new String[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> results[index] = offline.getPage("Trending"));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, fetches.get());
+        for (String result : results) {
+            assertEquals("popular text", result);
+        }
+        assertEquals("popular text", offline.getPage("Trending"));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testOfflineStripedPageBuffer() throws InterruptedException {
+        AtomicInteger fetches = new AtomicInteger();
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getPageText(pageTitle);
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            backend.addPage("Page " + i, "text " + i, Arrays.asList());
+        }
+        WikiMediator offline = new WikiMediator(40, 10, backend, new WikiMediator.Options()
+                .pathSearchThreads(2).pageConcurrency(4));
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i * 5;
+            threads[i] = new Thread(() -> {
+                for (int j = offset; j < offset + 5; j++) {
+                    assertEquals("text " + j, offline.getPage("Page " + j));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("text " + i, offline.getPage("Page " + i));
+        }
+        assertEquals(20, fetches.get());
+        offline.close();
+    }
+
+    @Test
+    public void testOfflinePageStore() throws InterruptedException {
+        AtomicInteger fetches = new AtomicInteger();
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getPageText(pageTitle);
+            }
+        };
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1_000; i++) {
+            large.append("Line ").append(i).append(" of a large page.\n");
+        }
+        backend.addPage("Large", large.toString(), new ArrayList<>());
+        backend.addPage("Small", "small text \u00e9", new ArrayList<>());
+        WikiMediator offline = new WikiMediator(1, 1, backend, new WikiMediator.Options()
+                .pathSearchThreads(2).historyRetention(3600).pageStore(new OffHeapPageStore(1 << 20)));
+
+        // each page pushes the other out of the one-page buffer, into the store, and back
+        for (int i = 0; i < 3; i++) {
+            assertEquals(large.toString(), offline.getPage("Large"));
+            assertEquals("small text \u00e9", offline.getPage("Small"));
+        }
+        assertEquals(2, fetches.get());
+
+        // a page in the store times out when it would have timed out in the buffer
+        Thread.sleep(1_100);
+        assertEquals(large.toString(), offline.getPage("Large"));
+        assertEquals(3, fetches.get());
+    }
+
+    @Test
+    public void testOfflinePageStoreKeepsStaleness() throws InterruptedException {
+        AtomicInteger fetches = new AtomicInteger();
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getPageText(pageTitle);
+            }
+        };
+        backend.addPage("A", "text of A", new ArrayList<>());
+        backend.addPage("B", "text of B", new ArrayList<>());
+        WikiMediator offline = new WikiMediator(1, 1, backend, new WikiMediator.Options()
+                .pathSearchThreads(2).historyRetention(3600).pageStore(new OffHeapPageStore(1 << 20)));
+
+        // the pages move between the one-page buffer and the store for three timeouts
+        long end = System.currentTimeMillis() + 3_000;
+        while (System.currentTimeMillis() < end) {
+            assertEquals("text of A", offline.getPage("A"));
+            assertEquals("text of B", offline.getPage("B"));
+            Thread.sleep(50);
+        }
+        // each page is fetched again once a timeout has passed since it was last fetched
+        assertTrue(fetches.get() >= 6);
+        assertTrue(fetches.get() <= 10);
+    }
+
+    @Test
+    public void testOfflineSearchCache() throws InterruptedException {
+        AtomicInteger searches = new AtomicInteger();
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public List<String> search(String query, int limit) {
+                searches.incrementAndGet();
+                return super.search(query, limit);
+            }
+        };
+        for (String title : new String[] {"Alpha", "Alphabet", "Alpha Centauri", "Alphanumeric", "Beta"}) {
+            backend.addPage(title, title, new ArrayList<>());
+        }
+        WikiMediator offline = new WikiMediator(0, 10, backend, new WikiMediator.Options()
+                .pathSearchThreads(1).searchCapacity(10).searchStaleness(1));
+
+        assertEquals(List.of("Alpha", "Alpha Centauri", "Alphabet"), offline.search("alpha", 3));
+        // a smaller limit, and a query that differs only in case, are answered from the cache
+        assertEquals(List.of("Alpha", "Alpha Centauri"), offline.search("ALPHA", 2));
+        assertEquals(1, searches.get());
+
+        // a larger limit is not, but once fetched it answers the smaller ones
+        assertEquals(4, offline.search("Alpha", 10).size());
+        assertEquals(2, searches.get());
+        // the wiki had fewer than 10 results, so they answer unlimited searches too
+        assertEquals(4, offline.search("alpha", -1).size());
+        assertEquals(List.of("Alpha"), offline.search("alpha", 1));
+        assertEquals(2, searches.get());
+
+        // results are used only until they are stale, however often they are asked for
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(400);
+            offline.search("alpha", 1);
+        }
+        assertEquals(3, searches.get());
+
+        // the results handed out are copies
+        offline.search("beta", 5).clear();
+        assertEquals(List.of("Beta"), offline.search("beta", 5));
+    }
+
+    @Test
+    public void testMappedBackend() throws IOException {
+        InMemoryWikiBackend pages = new InMemoryWikiBackend();
+        pages.addPage("Barack Obama", "44th president", Arrays.asList("Michelle Obama", "Hawaii"));
+        pages.addPage("Michelle Obama", "First Lady \u00e9", Arrays.asList("Barack Obama"));
+
+        Path dump = Files.createTempFile("pages", ".dump");
+        try {
+            MappedWikiBackend.write(dump, pages.pages(), pages.links());
+            MappedWikiBackend mapped = MappedWikiBackend.load(dump);
+
+            assertEquals(3, mapped.titleCount());
+            assertEquals("First Lady \u00e9", mapped.getPageText("Michelle Obama"));
+            assertEquals("", mapped.getPageText("Hawaii"));
+            assertEquals(Arrays.asList("Michelle Obama", "Hawaii"), mapped.getLinksOnPage("Barack Obama"));
+            assertEquals(Arrays.asList("Barack Obama", "Michelle Obama"), mapped.search("obama", -1));
+            assertEquals(List.of("Barack Obama"), mapped.search("obama", 1));
+            assertEquals("44th president", new WikiMediator(20, 10, mapped).getPage("Barack Obama"));
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void testOfflineZeitgeistTieBreak() {
+        WikiMediator offline = new WikiMediator(20, 10, new InMemoryWikiBackend());
+        offline.getPage("Delta");
+        offline.search("Charlie", 5);
+        offline.getPage("Bravo");
+        offline.getPage("Delta");
+        offline.search("Alpha", 5);
+        offline.getPage("Bravo");
+        offline.getPage("Delta");
+
+        assertEquals(Arrays.asList("Delta", "Bravo", "Alpha", "Charlie"), offline.zeitgeist(10));
+        assertEquals(Arrays.asList("Delta", "Bravo"), offline.zeitgeist(3));
+        assertEquals(Arrays.asList("Delta", "Bravo", "Alpha", "Charlie"), offline.trending(60, 10));
+        assertEquals(Arrays.asList("Delta", "Bravo", "Alpha"), offline.trending(60, 4));
+    }
+
+    @Test
+    public void testQueryRankingWindows() {
+        int horizon = 50;
+        QueryRanking ranking = new QueryRanking(horizon);
+        Map<String, List<Long>> history = new HashMap<>();
+        Random random = new Random(221);
+        long now = 1_000_000;
+
+        for (int step = 0; step < 5000; step++) {
+            now += random.nextInt(random.nextInt(10) == 0 ? 5000 : 200);
+            String query = "q" + random.nextInt(30);
+            ranking.record(query, now);
+            history.computeIfAbsent(query, q -> new ArrayList<>()).add(now);
+
+            if (step % 25 == 0) {
+                long window = random.nextInt(8) == 0 ? 120_000 : random.nextInt(40_000);
+                int limit = 1 + random.nextInt(12);
+                assertEquals(rankBetween(history, Long.MIN_VALUE, limit), ranking.top(limit));
+                assertEquals(rankSince(history, window, now, horizon, limit),
+                        ranking.topSince(window, now, limit));
+            }
+        }
+    }
+
+    @Test
+    public void testOfflineWindowedPeakLoad() {
+        WikiMediator offline = new WikiMediator(20, 10, new InMemoryWikiBackend());
+        for (int i = 0; i < 5; i++) {
+            offline.search("Alpha", 1);
+        }
+        assertEquals(5, offline.windowedPeakLoad());
+        assertEquals(6, offline.windowedPeakLoad(30));
+    }
+
+    @Test
+    public void testRequestLogPeaks() throws IOException, ClassNotFoundException {
+        RequestLog log = new RequestLog();
+        List<Long> times = new ArrayList<>();
+        Random random = new Random(17);
+        long now = 0;
+
+        for (int step = 0; step < 20_000; step++) {
+            now += random.nextInt(10) == 0 ? random.nextInt(3000) : random.nextInt(20);
+            // every so often the clock is read late, out of order
+            long time = random.nextInt(50) == 0 ? now - random.nextInt(100) : now;
+            times.add(log.append(time));
+
+            if (step % 500 == 0) {
+                for (long window : new long[] {0, 1, 30, 1000, 30_000}) {
+                    assertEquals(scanPeak(times, window), log.peak(window));
+                }
+            }
+        }
+        assertEquals(times, log.toList());
+        assertTrue(log.contains(times.get(1234)));
+        assertFalse(log.contains(-1));
+
+        RequestLog copy = roundTrip(log);
+        assertEquals(times, copy.toList());
+        assertEquals(log.peak(30_000), copy.peak(30_000));
+    }
+
+    @Test
+    public void testRequestHistoryRollUp() throws IOException, ClassNotFoundException {
+        RequestHistory history = new RequestHistory(10_000);
+        List<Long> recent = new ArrayList<>();
+        long now = 1_000_000;
+        for (int i = 0; i < 1000; i++) {
+            now += 100 + (i % 7) * 50;
+            history.record("Obama", now);
+            history.record(i % 2 == 0 ? "Even" : "Odd", now);
+            recent.add(now);
+        }
+        history.record("Late", now - 5);
+
+        history.rollUp(now);
+        List<Long> kept = history.times("Obama");
+        assertEquals(1000, history.rolledUp("Obama") + kept.size());
+        assertEquals(recent.subList(recent.size() - kept.size(), recent.size()), kept);
+        assertTrue(kept.get(0) >= now - 10_000);
+        assertTrue(history.rolledUp("Obama") > 0);
+        assertEquals(List.of(now - 5), history.times("Late"));
+        assertEquals(2001, history.size());
+        assertEquals(1_000_100, history.firstTime());
+
+        RequestHistory copy = roundTrip(history);
+        assertEquals(history.queries(), copy.queries());
+        assertEquals(kept, copy.times("Obama"));
+        assertEquals(history.rolledUp("Even"), copy.rolledUp("Even"));
+        assertEquals(2001, copy.size());
+        copy.record("Obama", now + 1);
+        assertEquals(Long.valueOf(now + 1), copy.times("Obama").get(kept.size()));
+    }
+
+    @Test
+    public void testRequestStatisticsMapped() throws IOException {
+        RequestHistory history = new RequestHistory(10_000);
+        RequestLog log = new RequestLog();
+        Map<String, List<Long>> recorded = new HashMap<>();
+        long now = 1_000_000;
+        for (int i = 0; i < 20_000; i++) {
+            now += i % 11;
+            String query = i % 5 == 0 ? "\u00e9t\u00e9 " + (i % 13) : "query " + (i % 97);
+            log.append(now);
+            history.record(query, now);
+            recorded.computeIfAbsent(query, q -> new ArrayList<>()).add(now);
+        }
+
+        Path file = Files.createTempFile("statistics", ".bin");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                history.writeTo(out, now);
+                log.writeTo(out);
+            }
+            ByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            RequestHistory mappedHistory = RequestHistory.read(mapped);
+            RequestLog mappedLog = RequestLog.read(mapped);
+            assertFalse(mapped.hasRemaining());
+
+            assertEquals(log.toList(), mappedLog.toList());
+            assertEquals(log.peak(30), mappedLog.peak(30));
+            assertTrue(mappedLog.contains(now));
+            assertEquals(history.queries(), mappedHistory.queries());
+            assertEquals(history.size(), mappedHistory.size());
+            assertEquals(history.firstTime(), mappedHistory.firstTime());
+            Map<String, Long> visited = new HashMap<>();
+            mappedHistory.forEachStored((query, rolledUp, times) -> {
+                assertEquals(history.times(query), times);
+                assertEquals(recorded.get(query).size(), rolledUp + times.size());
+                visited.put(query, rolledUp);
+            });
+            assertEquals(recorded.keySet(), visited.keySet());
+            assertTrue(visited.get("query 3") > 0);
+            assertEquals(List.of(), mappedHistory.times("missing"));
+
+            // a stored query is copied onto the heap when it is recorded again
+            mappedLog.append(now + 1);
+            mappedHistory.record("query 3", now + 1);
+            mappedHistory.record("new", now + 1);
+            List<Long> times = mappedHistory.times("query 3");
+            assertEquals(Long.valueOf(now + 1), times.get(times.size() - 1));
+            assertEquals(visited.get("query 3").longValue(), mappedHistory.rolledUp("query 3"));
+            assertEquals(history.size() + 2, mappedHistory.size());
+            assertTrue(mappedHistory.queries().contains("new"));
+            log.append(now + 1);
+            assertEquals(log.toList(), mappedLog.toList());
+            assertEquals(log.peak(5), mappedLog.peak(5));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRequestJournalReplay() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            RequestJournal journal = new RequestJournal(directory, 3, true);
+            List<String> appended = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                String query = i % 3 == 0 ? null : "query \u00e9 " + (i % 7);
+                long time = 1_000_000 + i * 37L - (i % 5 == 0 ? 20 : 0);
+                journal.append(query, time);
+                appended.add(query + "@" + time);
+            }
+            journal.flush();
+            assertEquals(1000, journal.generationRecords());
+            assertEquals(4, journal.rotate());
+            journal.append("after rotate", 5);
+            journal.close();
+            assertEquals(Arrays.asList(3L, 4L), RequestJournal.generations(directory));
+
+            List<String> replayed = new ArrayList<>();
+            assertEquals(1000, RequestJournal.replay(RequestJournal.file(directory, 3),
+                    (query, time) -> replayed.add(query + "@" + time)));
+            assertEquals(appended, replayed);
+            List<String> rotated = new ArrayList<>();
+            RequestJournal.replay(RequestJournal.file(directory, 4), (query, time) -> rotated.add(query + "@" + time));
+            assertEquals(List.of("after rotate@5"), rotated);
+
+            // a frame cut short by a crash is ignored, along with everything after it
+            Path file = RequestJournal.file(directory, 3);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+            assertTrue(RequestJournal.replay(file, (query, time) -> { }) < 1000);
+        } finally {
+            for (long generation : RequestJournal.generations(directory)) {
+                Files.delete(RequestJournal.file(directory, generation));
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testOfflineJournalRecovery() throws IOException, InterruptedException {
+        deleteStoredRequests();
+        try {
+            WikiMediator first = new WikiMediator(20, 10, new InMemoryWikiBackend());
+            first.readStorage();
+            first.search("Alpha", 1);
+            first.search("Alpha", 1);
+            first.search("Alpha", 1);
+            first.getPage("Bravo");
+            first.storeRequests();
+            first.getPage("Bravo");
+            first.search("Bravo", 1);
+            first.zeitgeist(5);
+            // the requests after the snapshot are only in the journal; give its writer time to commit them
+            Thread.sleep(500);
+
+            WikiMediator second = new WikiMediator(20, 10, new InMemoryWikiBackend());
+            second.readStorage();
+            assertEquals(Arrays.asList("Alpha", "Bravo"), second.zeitgeist(10));
+            assertEquals(8, second.windowedPeakLoad(60));
+        } finally {
+            deleteStoredRequests();
+        }
+    }
+
+    //deletes the request statistics stored in ./local by any version of storeRequests
+    private static void deleteStoredRequests() throws IOException {
+        Path local = Paths.get("./local");
+        for (long generation : RequestJournal.generations(local)) {
+            Files.deleteIfExists(RequestJournal.file(local, generation));
+        }
+        Files.deleteIfExists(local.resolve("requests.snapshot"));
+        Files.deleteIfExists(local.resolve("pastSearchGetRequests.ser"));
+        Files.deleteIfExists(local.resolve("requestTimes.ser"));
+    }
+
+    //serializes and deserializes an object, as storeRequests and readStorage do
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+    //finds the peak of sorted times the way windowedPeakLoad always has
+    private static int scanPeak(List<Long> times, long window) {
+        List<Long> sorted = new ArrayList<>(times);
+        sorted.sort(Long::compare);
+        int endOfInterval = 0;
+        int maxCount = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            for (int j = endOfInterval + 1; j < sorted.size(); j++) {
+                if (sorted.get(j) - sorted.get(i) <= window) {
+                    endOfInterval = j;
+                } else {
+                    break;
+                }
+            }
+            maxCount = Math.max(maxCount, endOfInterval - i);
+        }
+        return maxCount;
+    }
+
+    //ranks history the way QueryRanking.topSince is specified to, by brute force
+    private static List<String> rankSince(Map<String, List<Long>> history, long window, long now,
+                                          int horizon, int limit) {
+        long oldest = Math.floorDiv(now - window, 1000);
+        long first = history.values().stream().flatMap(List::stream).min(Long::compare).orElse(now);
+        if (oldest <= Math.floorDiv(now, 1000) - horizon) {
+            if (first >= now - window) {
+                return rankBetween(history, Long.MIN_VALUE, limit);
+            }
+            oldest = Math.floorDiv(now, 1000) - horizon + 1;
+        }
+        return rankBetween(history, oldest, limit);
+    }
+
+    //ranks every query by its count from second oldest on, then lexicographically
+    private static List<String> rankBetween(Map<String, List<Long>> history, long oldest, int limit) {
+        Map<String, Long> counts = new HashMap<>();
+        history.forEach((query, times) -> counts.put(query,
+                times.stream().filter(t -> Math.floorDiv(t, 1000) >= oldest).count()));
+        TreeSet<String> ordered = new TreeSet<>((a, b) -> counts.get(a).equals(counts.get(b))
+                ? a.compareTo(b) : Long.compare(counts.get(b), counts.get(a)));
+        ordered.addAll(counts.keySet());
+        List<String> ranked = new ArrayList<>(ordered);
+        return ranked.subList(0, Math.min(limit, ranked.size()));
+    }
 }
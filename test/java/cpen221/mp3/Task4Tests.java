@@ -1,9 +1,12 @@
 package cpen221.mp3;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import cpen221.mp3.server.NioWikiMediatorServer;
 import cpen221.mp3.server.WikiMediatorClient;
 import cpen221.mp3.server.WikiMediatorServer;
+import cpen221.mp3.wikimediator.InMemoryWikiBackend;
 import cpen221.mp3.wikimediator.WikiMediator;
 import org.junit.Test;
 import org.junit.jupiter.api.BeforeAll;
@@ -11,6 +14,14 @@ import org.junit.jupiter.api.BeforeAll;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
 
 public class Task4Tests {
 
@@ -253,6 +264,467 @@ public class Task4Tests {
         client.close();
     }
 
+    @Test
+    public void testNioManyIdleClients() throws IOException, InterruptedException {
+        InMemoryWikiBackend backend = new InMemoryWikiBackend();
+        backend.addPage("Pegasus", "winged horse", Arrays.asList("Horse"));
+        backend.addPage("Horse", "hoofed mammal", Arrays.asList("Pegasus"));
+        NioWikiMediatorServer server = new NioWikiMediatorServer(port + 20, 2, 2,
+                new WikiMediator(20, 100, backend));
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        // far more idle connections than compute threads, which would starve a thread-per-client server
+        List<WikiMediatorClient> idle = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            idle.add(new WikiMediatorClient(localhost, port + 20));
+        }
+
+        WikiMediatorClient client = new WikiMediatorClient(localhost, port + 20);
+        for (int i = 0; i < 5; i++) {
+            JsonObject json = new JsonObject();
+            getPage(json, Integer.toString(i), i % 2 == 0 ? "Pegasus" : "Horse");
+            client.sendRequest(json);
+        }
+        for (int i = 0; i < 5; i++) {
+            JsonObject reply = jsonConverter.fromJson(client.getReply(), JsonObject.class);
+            assertEquals(Integer.toString(i), reply.get("id").getAsString());
+            assertEquals("success", reply.get("status").getAsString());
+            assertEquals(i % 2 == 0 ? "winged horse" : "hoofed mammal", reply.get("response").getAsString());
+        }
+
+        for (int i = 0; i < idle.size(); i++) {
+            JsonObject json = new JsonObject();
+            windowedPeakLoad(json, "idle " + i, 60);
+            idle.get(i).sendRequest(json);
+        }
+        for (int i = 0; i < idle.size(); i++) {
+            JsonObject reply = jsonConverter.fromJson(idle.get(i).getReply(), JsonObject.class);
+            assertEquals("idle " + i, reply.get("id").getAsString());
+            assertEquals("success", reply.get("status").getAsString());
+            idle.get(i).close();
+        }
+
+        JsonObject json = new JsonObject();
+        addId(json, "stop");
+        json.addProperty("type", "stop");
+        client.sendRequest(json);
+        assertEquals("bye", jsonConverter.fromJson(client.getReply(), JsonObject.class).get("response").getAsString());
+        client.close();
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void testVirtualThreadTimeout() throws IOException, InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public List<String> search(String query, int limit) {
+                if (query.equals("Slow")) {
+                    try {
+                        Thread.sleep(60_000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.search(query, limit);
+            }
+        };
+        backend.addPage("Slow", "slow text", Arrays.asList("Fast"));
+        backend.addPage("Fast", "fast text", Arrays.asList("Slow"));
+        WikiMediatorServer server = new WikiMediatorServer(port + 21, 1, new WikiMediator(20, 100, backend), true);
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        // with a single pooled thread, the second client would wait for the first to hang up
+        WikiMediatorClient first = new WikiMediatorClient(localhost, port + 21);
+        WikiMediatorClient second = new WikiMediatorClient(localhost, port + 21);
+        JsonObject json = new JsonObject();
+        search(json, "slow", "Slow", 1);
+        json.addProperty("timeout", 1);
+        first.sendRequest(json);
+        json = new JsonObject();
+        getPage(json, "fast", "Fast");
+        second.sendRequest(json);
+
+        JsonObject reply = jsonConverter.fromJson(second.getReply(), JsonObject.class);
+        assertEquals("fast text", reply.get("response").getAsString());
+        reply = jsonConverter.fromJson(first.getReply(), JsonObject.class);
+        assertEquals("slow", reply.get("id").getAsString());
+        assertEquals("failed", reply.get("status").getAsString());
+        assertEquals("Operation timed out.", reply.get("response").getAsString());
+        // the request that timed out was cancelled, not left running
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        json = new JsonObject();
+        addId(json, "stop");
+        json.addProperty("type", "stop");
+        second.sendRequest(json);
+        assertEquals("bye", jsonConverter.fromJson(second.getReply(), JsonObject.class).get("response").getAsString());
+        first.close();
+        second.close();
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void testSharedLoadTimeout() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new RuntimeException(e);
+                }
+                return super.getPageText(pageTitle);
+            }
+        };
+        backend.addPage("Slow", "slow text", Arrays.asList());
+        WikiMediatorServer server = new WikiMediatorServer(port + 29, 2, new WikiMediator(20, 100, backend));
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        WikiMediatorClient impatient = new WikiMediatorClient(localhost, port + 29);
+        WikiMediatorClient patient = new WikiMediatorClient(localhost, port + 29);
+        JsonObject json = new JsonObject();
+        getPage(json, "impatient", "Slow");
+        json.addProperty("timeout", 1);
+        impatient.sendRequest(json);
+        // the request that will time out is the one that starts the load
+        while (fetches.get() == 0) {
+            Thread.sleep(1);
+        }
+        json = new JsonObject();
+        getPage(json, "patient", "Slow");
+        patient.sendRequest(json);
+
+        JsonObject reply = jsonConverter.fromJson(impatient.getReply(), JsonObject.class);
+        assertEquals("failed", reply.get("status").getAsString());
+        assertEquals("Operation timed out.", reply.get("response").getAsString());
+        // the load both requests share was not interrupted by the one that timed out
+        assertFalse(interrupted.await(500, TimeUnit.MILLISECONDS));
+        release.countDown();
+        reply = jsonConverter.fromJson(patient.getReply(), JsonObject.class);
+        assertEquals("patient", reply.get("id").getAsString());
+        assertEquals("slow text", reply.get("response").getAsString());
+
+        // and what it cached is the page, not a failure
+        json = new JsonObject();
+        getPage(json, "again", "Slow");
+        impatient.sendRequest(json);
+        reply = jsonConverter.fromJson(impatient.getReply(), JsonObject.class);
+        assertEquals("slow text", reply.get("response").getAsString());
+        assertEquals(1, fetches.get());
+
+        json = new JsonObject();
+        addId(json, "stop");
+        json.addProperty("type", "stop");
+        patient.sendRequest(json);
+        assertEquals("bye", jsonConverter.fromJson(patient.getReply(), JsonObject.class).get("response").getAsString());
+        impatient.close();
+        patient.close();
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void testStopWaitsForRunningRequests() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                fetching.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getLinksOnPage(pageTitle);
+            }
+        };
+        backend.addPage("A", "", Arrays.asList("B"));
+        backend.addPage("B", "", Arrays.asList("A"));
+        WikiMediatorServer server = new WikiMediatorServer(port + 30, 2, new WikiMediator(20, 100, backend));
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+
+        WikiMediatorClient searching = new WikiMediatorClient(localhost, port + 30);
+        WikiMediatorClient stopping = new WikiMediatorClient(localhost, port + 30);
+        JsonObject json = new JsonObject();
+        shortestPath(json, "path", "A", "B", 10);
+        searching.sendRequest(json);
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+
+        json = new JsonObject();
+        addId(json, "stop");
+        json.addProperty("type", "stop");
+        stopping.sendRequest(json);
+        assertEquals("bye", jsonConverter.fromJson(stopping.getReply(), JsonObject.class).get("response").getAsString());
+
+        // the server waits for the search, and the mediator is not closed under it
+        Thread.sleep(200);
+        assertTrue(serverThread.isAlive());
+        release.countDown();
+        JsonObject reply = jsonConverter.fromJson(searching.getReply(), JsonObject.class);
+        assertEquals("path", reply.get("id").getAsString());
+        assertEquals("success", reply.get("status").getAsString());
+        assertEquals("[A, B]", reply.get("response").getAsString());
+
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+        searching.close();
+        stopping.close();
+    }
+
+    @Test
+    public void testPipelinedResponses() throws Exception {
+        for (boolean nio : new boolean[] {false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+                @Override
+                public String getPageText(String pageTitle) {
+                    if (pageTitle.equals("Slow")) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return super.getPageText(pageTitle);
+                }
+            };
+            backend.addPage("Slow", "slow text", Arrays.asList("Fast"));
+            backend.addPage("Fast", "fast text", Arrays.asList("Slow"));
+            WikiMediator mediator = new WikiMediator(20, 100, backend);
+            int serverPort = port + (nio ? 23 : 22);
+            Runnable serve = nio ? new NioWikiMediatorServer(serverPort, 1, 4, mediator)::serve
+                    : new WikiMediatorServer(serverPort, 1, mediator)::serve;
+            Thread serverThread = new Thread(serve);
+            serverThread.start();
+
+            WikiMediatorClient client = new WikiMediatorClient(localhost, serverPort);
+            JsonObject json = new JsonObject();
+            getPage(json, "slow", "Slow");
+            CompletableFuture<JsonObject> slow = client.sendAsync(json);
+            List<CompletableFuture<JsonObject>> fast = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                json = new JsonObject();
+                getPage(json, "fast " + i, "Fast");
+                fast.add(client.sendAsync(json));
+            }
+
+            // the cheap requests are answered while the slow one sent before them is still running
+            for (int i = 0; i < fast.size(); i++) {
+                JsonObject reply = fast.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("fast " + i, reply.get("id").getAsString());
+                assertEquals("fast text", reply.get("response").getAsString());
+            }
+            assertFalse(slow.isDone());
+            release.countDown();
+            assertEquals("slow text", slow.get(5, TimeUnit.SECONDS).get("response").getAsString());
+
+            json = new JsonObject();
+            addId(json, "stop");
+            json.addProperty("type", "stop");
+            assertEquals("bye", client.sendAsync(json).get(5, TimeUnit.SECONDS).get("response").getAsString());
+            client.close();
+            serverThread.join(10_000);
+            assertFalse(serverThread.isAlive());
+        }
+    }
+
+    @Test
+    public void testBatchRequest() throws Exception {
+        InMemoryWikiBackend backend = new InMemoryWikiBackend() {
+            @Override
+            public String getPageText(String pageTitle) {
+                if (pageTitle.equals("Down")) {
+                    throw new RuntimeException("upstream down");
+                }
+                return super.getPageText(pageTitle);
+            }
+        };
+        backend.addPage("Slow", "slow text", Arrays.asList("Fast"));
+        backend.addPage("Fast", "fast text", Arrays.asList("Slow"));
+        AtomicInteger fetches = new AtomicInteger();
+        WikiMediator mediator = new WikiMediator(20, 100, backend) {
+            @Override
+            public String getPage(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getPage(pageTitle);
+            }
+        };
+        WikiMediatorServer server = new WikiMediatorServer(port + 24, 2, mediator);
+        Thread serverThread = new Thread(server::serve);
+        serverThread.start();
+        WikiMediatorClient client = new WikiMediatorClient(localhost, port + 24);
+
+        JsonArray requests = new JsonArray();
+        String[] titles = {"Fast", "Slow", "Fast", "Fast"};
+        for (int i = 0; i < titles.length; i++) {
+            JsonObject json = new JsonObject();
+            getPage(json, "page " + i, titles[i]);
+            requests.add(json);
+        }
+        JsonObject nested = new JsonObject();
+        addId(nested, "nested stop");
+        nested.addProperty("type", "stop");
+        requests.add(nested);
+        JsonObject down = new JsonObject();
+        getPage(down, "down", "Down");
+        requests.add(down);
+        JsonObject batch = new JsonObject();
+        addId(batch, "batch");
+        batch.addProperty("type", "batch");
+        batch.add("requests", requests);
+        client.sendRequest(batch);
+
+        JsonObject reply = jsonConverter.fromJson(client.getReply(), JsonObject.class);
+        assertEquals("batch", reply.get("id").getAsString());
+        assertEquals("success", reply.get("status").getAsString());
+        JsonArray responses = reply.get("response").getAsJsonArray();
+        assertEquals(titles.length + 2, responses.size());
+        for (int i = 0; i < titles.length; i++) {
+            JsonObject response = responses.get(i).getAsJsonObject();
+            assertEquals("page " + i, response.get("id").getAsString());
+            assertEquals("success", response.get("status").getAsString());
+            assertEquals(titles[i].toLowerCase() + " text", response.get("response").getAsString());
+        }
+        JsonObject rejected = responses.get(titles.length).getAsJsonObject();
+        assertEquals("nested stop", rejected.get("id").getAsString());
+        assertEquals("failed", rejected.get("status").getAsString());
+        // a sub-request that fails only fails its own response
+        JsonObject failed = responses.get(titles.length + 1).getAsJsonObject();
+        assertEquals("down", failed.get("id").getAsString());
+        assertEquals("failed", failed.get("status").getAsString());
+
+        // the three identical requests for Fast reached the mediator once, and the stop never did
+        assertEquals(3, fetches.get());
+
+        JsonObject json = new JsonObject();
+        addId(json, "bad batch");
+        json.addProperty("type", "batch");
+        client.sendRequest(json);
+        assertEquals("failed", jsonConverter.fromJson(client.getReply(), JsonObject.class).get("status").getAsString());
+
+        json = new JsonObject();
+        addId(json, "stop");
+        json.addProperty("type", "stop");
+        client.sendRequest(json);
+        assertEquals("bye", jsonConverter.fromJson(client.getReply(), JsonObject.class).get("response").getAsString());
+        client.close();
+        serverThread.join(10_000);
+        assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void testResponseEscaping() throws Exception {
+        String text = "\"quoted\" \\ back\\slash\n\ttabbed\r\n\u0001 caf\u00e9 \u2028 <&> \ud83d\ude00 \u007f";
+        for (boolean nio : new boolean[] {false, true}) {
+            InMemoryWikiBackend backend = new InMemoryWikiBackend();
+            backend.addPage("Escaped \"title\"", text, new ArrayList<>());
+            WikiMediator mediator = new WikiMediator(20, 100, backend);
+            int serverPort = port + (nio ? 26 : 25);
+            Runnable serve = nio ? new NioWikiMediatorServer(serverPort, 1, 2, mediator)::serve
+                    : new WikiMediatorServer(serverPort, 2, mediator)::serve;
+            Thread serverThread = new Thread(serve);
+            serverThread.start();
+            WikiMediatorClient client = new WikiMediatorClient(localhost, serverPort);
+
+            // the page comes back exactly as stored, as one line, whatever the default charset is
+            JsonObject json = new JsonObject();
+            getPage(json, "\"escaped\"", "Escaped \"title\"");
+            client.sendRequest(json);
+            String line = client.getReply();
+            assertTrue(line.chars().allMatch(c -> c >= 0x20 && c < 0x7f));
+            JsonObject reply = jsonConverter.fromJson(line, JsonObject.class);
+            assertEquals("\"escaped\"", reply.get("id").getAsString());
+            assertEquals(text, reply.get("response").getAsString());
+
+            json = new JsonObject();
+            addId(json, "stop");
+            json.addProperty("type", "stop");
+            client.sendRequest(json);
+            assertEquals("bye", jsonConverter.fromJson(client.getReply(), JsonObject.class).get("response").getAsString());
+            client.close();
+            serverThread.join(10_000);
+            assertFalse(serverThread.isAlive());
+        }
+    }
+
+    @Test
+    public void testCompressedResponses() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            large.append("Line ").append(i).append(" of a \"large\" page.\n");
+        }
+        for (boolean nio : new boolean[] {false, true}) {
+            InMemoryWikiBackend backend = new InMemoryWikiBackend();
+            backend.addPage("Large", large.toString(), new ArrayList<>());
+            backend.addPage("Small", "small text", new ArrayList<>());
+            WikiMediator mediator = new WikiMediator(20, 100, backend);
+            int serverPort = port + (nio ? 28 : 27);
+            Runnable serve = nio ? new NioWikiMediatorServer(serverPort, 1, 2, mediator)::serve
+                    : new WikiMediatorServer(serverPort, 2, mediator)::serve;
+            Thread serverThread = new Thread(serve);
+            serverThread.start();
+
+            WikiMediatorClient compressed = new WikiMediatorClient(localhost, serverPort);
+            JsonObject json = new JsonObject();
+            addId(json, "bad level");
+            json.addProperty("type", "compress");
+            json.addProperty("level", 10);
+            compressed.sendRequest(json);
+            assertEquals("failed", jsonConverter.fromJson(compressed.getReply(), JsonObject.class).get("status").getAsString());
+            compressed.compress(6);
+
+            // a plain client of the same server is not affected
+            WikiMediatorClient plain = new WikiMediatorClient(localhost, serverPort);
+            for (WikiMediatorClient client : Arrays.asList(compressed, plain, compressed)) {
+                json = new JsonObject();
+                getPage(json, "large", "Large");
+                client.sendRequest(json);
+                assertEquals(large.toString(), jsonConverter.fromJson(client.getReply(), JsonObject.class)
+                        .get("response").getAsString());
+                json = new JsonObject();
+                getPage(json, "small", "Small");
+                client.sendRequest(json);
+                assertEquals("small text", jsonConverter.fromJson(client.getReply(), JsonObject.class)
+                        .get("response").getAsString());
+            }
+            plain.close();
+
+            // a compressed connection can be pipelined too
+            List<CompletableFuture<JsonObject>> replies = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                json = new JsonObject();
+                getPage(json, "async " + i, i % 2 == 0 ? "Large" : "Small");
+                replies.add(compressed.sendAsync(json));
+            }
+            for (int i = 0; i < replies.size(); i++) {
+                assertEquals(i % 2 == 0 ? large.toString() : "small text",
+                        replies.get(i).get(5, TimeUnit.SECONDS).get("response").getAsString());
+            }
+
+            json = new JsonObject();
+            addId(json, "stop");
+            json.addProperty("type", "stop");
+            assertEquals("bye", compressed.sendAsync(json).get(5, TimeUnit.SECONDS).get("response").getAsString());
+            compressed.close();
+            serverThread.join(10_000);
+            assertFalse(serverThread.isAlive());
+        }
+    }
+
     private void windowedPeakLoad(JsonObject json, String id, int timeWindowInSeconds) {
         addId(json, id);
         json.addProperty("type", "windowedPeakLoad");
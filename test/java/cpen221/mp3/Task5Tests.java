@@ -2,10 +2,34 @@ package cpen221.mp3;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import cpen221.mp3.wikimediator.InMemoryWikiBackend;
+import cpen221.mp3.wikimediator.LinkGraphCache;
+import cpen221.mp3.wikimediator.PathFinder;
+import cpen221.mp3.wikimediator.PathSearchScheduler;
 import cpen221.mp3.wikimediator.WikiMediator;
 
+import static org.junit.Assert.*;
+
 public class Task5Tests {
 
 
@@ -34,4 +58,277 @@ public class Task5Tests {
     public void testShortestPathSickoMode() throws TimeoutException {
         System.out.println(mediator.shortestPath("United States", "Travis Scott", 100000));
     }
+
+    @Test
+    public void testOfflineShortestPathTieBreak() throws TimeoutException {
+        InMemoryWikiBackend wiki = new InMemoryWikiBackend();
+        wiki.addPage("A", "", Arrays.asList("D", "C", "B"));
+        wiki.addPage("B", "", Arrays.asList("F"));
+        wiki.addPage("C", "", Arrays.asList("E"));
+        wiki.addPage("D", "", Arrays.asList("E"));
+        wiki.addPage("E", "", Arrays.asList("G"));
+        wiki.addPage("F", "", Arrays.asList("H"));
+        wiki.addPage("H", "", Arrays.asList("G"));
+        WikiMediator offline = new WikiMediator(20, 10, wiki);
+
+        assertEquals(Arrays.asList("A", "C", "E", "G"), offline.shortestPath("A", "G", 10));
+        assertEquals(Arrays.asList("A", "B", "F"), offline.shortestPath("A", "F", 10));
+        assertEquals(Collections.singletonList("A"), offline.shortestPath("A", "A", 10));
+        assertEquals(Collections.emptyList(), offline.shortestPath("G", "A", 10));
+        offline.close();
+    }
+
+    @Test
+    public void testMediatorCloseStopsPathSearchThreads() throws Exception {
+        InMemoryWikiBackend wiki = new InMemoryWikiBackend();
+        wiki.addPage("A", "", Arrays.asList("B"));
+        wiki.addPage("B", "", Arrays.asList("A"));
+        List<Thread> before = pathSearchThreads();
+        WikiMediator mediator = new WikiMediator(20, 10, wiki);
+        List<Thread> started = pathSearchThreads();
+        started.removeAll(before);
+        assertEquals(PathSearchScheduler.DPARALLELISM, started.size());
+        assertEquals(Arrays.asList("A", "B"), mediator.shortestPath("A", "B", 10));
+
+        mediator.close();
+        for (Thread thread : started) {
+            thread.join(5_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void testOfflineShortestPathRandomGraphs() throws TimeoutException {
+        Random random = new Random(221);
+        for (int graph = 0; graph < 200; graph++) {
+            int pages = 2 + random.nextInt(60);
+            InMemoryWikiBackend wiki = new InMemoryWikiBackend();
+            for (int i = 0; i < pages; i++) {
+                List<String> links = new ArrayList<>();
+                int linkCount = random.nextInt(4);
+                for (int j = 0; j < linkCount; j++) {
+                    links.add("p" + random.nextInt(pages));
+                }
+                wiki.addPage("p" + i, "", links);
+            }
+
+            PathFinder finder = new PathFinder(wiki);
+            for (int query = 0; query < 10; query++) {
+                String from = "p" + random.nextInt(pages);
+                String to = "p" + random.nextInt(pages);
+                assertEquals(from + " -> " + to, smallestShortestPath(wiki, from, to),
+                        finder.find(from, to, 1, TimeUnit.HOURS));
+            }
+        }
+    }
+
+    @Test
+    public void testLinkGraphReusedAcrossQueries() throws TimeoutException {
+        AtomicInteger fetches = new AtomicInteger();
+        InMemoryWikiBackend wiki = new InMemoryWikiBackend() {
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getLinksOnPage(pageTitle);
+            }
+
+            @Override
+            public List<String> getBacklinks(String pageTitle) {
+                fetches.incrementAndGet();
+                return super.getBacklinks(pageTitle);
+            }
+        };
+        wiki.addPage("A", "", Arrays.asList("B", "C"));
+        wiki.addPage("B", "", Arrays.asList("D"));
+        wiki.addPage("C", "", Arrays.asList("D"));
+        wiki.addPage("D", "", Arrays.asList("E"));
+        WikiMediator offline = new WikiMediator(20, 10, wiki);
+
+        assertEquals(Arrays.asList("A", "B", "D", "E"), offline.shortestPath("A", "E", 10));
+        int coldFetches = fetches.get();
+        assertTrue(coldFetches > 0);
+        assertEquals(Arrays.asList("A", "B", "D", "E"), offline.shortestPath("A", "E", 10));
+        assertEquals(coldFetches, fetches.get());
+    }
+
+    @Test
+    public void testLinkGraphStoreLoad() throws IOException {
+        LinkGraphCache graph = new LinkGraphCache();
+        graph.put("A", Arrays.asList("B", "C"));
+        graph.put("B", Collections.emptyList());
+        graph.put("C", Arrays.asList("A", "\u00c9cole"));
+
+        Path file = Files.createTempFile("links", ".bin");
+        try {
+            graph.store(file);
+            LinkGraphCache loaded = new LinkGraphCache();
+            loaded.put("Z", Arrays.asList("Y"));
+            loaded.load(file);
+
+            assertEquals(3, loaded.size());
+            assertEquals(4, loaded.edgeCount());
+            assertEquals(Arrays.asList("B", "C"), loaded.get("A"));
+            assertEquals(Collections.emptyList(), loaded.get("B"));
+            assertEquals(Arrays.asList("A", "\u00c9cole"), loaded.get("C"));
+            assertNull(loaded.get("Z"));
+            assertNull(loaded.get("\u00c9cole"));
+
+            loaded.put("D", Arrays.asList("A"));
+            assertEquals(Arrays.asList("A"), loaded.get("D"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLinkGraphEviction() throws IOException {
+        // room for 30 links, counting each title as one more
+        LinkGraphCache graph = new LinkGraphCache(30);
+        graph.put("Hub", Arrays.asList("A", "B", "C", "D", "E", "F", "G", "H", "I"));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(graph.get("Hub"));
+        }
+
+        // a stream of pages read once each pushes out the others, but not the hub every search reads
+        // long enough that the evicted rows are compacted away several times
+        for (int i = 0; i < 5_000; i++) {
+            graph.put("Page " + i, Arrays.asList("Hub", "Other " + i, "Another " + i));
+            assertTrue(graph.edgeCount() + graph.size() <= 30);
+            assertNotNull(graph.get("Hub"));
+        }
+        assertEquals(Arrays.asList("A", "B", "C", "D", "E", "F", "G", "H", "I"), graph.get("Hub"));
+        assertEquals(Arrays.asList("Hub", "Other 4999", "Another 4999"), graph.get("Page 4999"));
+        assertNull(graph.get("Page 0"));
+
+        // a list longer than the cache is not cached, and evicts nothing
+        graph.put("Huge", Collections.nCopies(30, "A"));
+        assertNull(graph.get("Huge"));
+        assertNotNull(graph.get("Page 4999"));
+
+        // a stored graph larger than the cache is cut down to fit when loaded
+        Path file = Files.createTempFile("links", ".bin");
+        try {
+            graph.store(file);
+            LinkGraphCache small = new LinkGraphCache(12);
+            small.load(file);
+            assertTrue(small.edgeCount() + small.size() <= 12);
+            assertTrue(small.size() > 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testShortestPathTimeoutCancelsFetches() throws InterruptedException {
+        AtomicInteger interrupted = new AtomicInteger();
+        InMemoryWikiBackend wiki = new InMemoryWikiBackend() {
+            @Override
+            public List<String> getLinksOnPage(String pageTitle) {
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+                return super.getLinksOnPage(pageTitle);
+            }
+        };
+        wiki.addPage("A", "", Arrays.asList("B"));
+        WikiMediator offline = new WikiMediator(20, 10, wiki, new WikiMediator.Options().pathSearchThreads(2));
+
+        long time = System.currentTimeMillis();
+        try {
+            offline.shortestPath("A", "B", 1);
+            fail("timeout expected");
+        } catch (TimeoutException e) {
+            assertTrue(System.currentTimeMillis() - time < 5_000);
+        }
+        for (int i = 0; i < 100 && interrupted.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, interrupted.get());
+    }
+
+    @Test
+    public void testSchedulerFairness() throws Exception {
+        PathSearchScheduler scheduler = new PathSearchScheduler(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        PathSearchScheduler.Query heavy = scheduler.newQuery();
+        heavy.submit(() -> {
+            blocked.await();
+            return null;
+        });
+        for (int i = 0; i < 50; i++) {
+            final int index = i;
+            heavy.submit(() -> order.add("heavy" + index));
+        }
+        PathSearchScheduler.Query light = scheduler.newQuery();
+        Future<Boolean> lightTask = light.submit(() -> order.add("light"));
+        blocked.countDown();
+
+        lightTask.get();
+        assertTrue(order.indexOf("light") <= 1);
+
+        heavy.cancel();
+        Future<Object> late = heavy.submit(() -> "never");
+        try {
+            late.get();
+            fail("cancelled query ran a task");
+        } catch (CancellationException e) {
+            assertTrue(late.isCancelled());
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Reference answer: a plain BFS backwards from the end gives every page's distance to
+     * it, and the smallest path is then built one smallest next step at a time.
+     */
+    private static List<String> smallestShortestPath(InMemoryWikiBackend wiki, String from, String to) {
+        if (from.equals(to)) {
+            return Collections.singletonList(from);
+        }
+        Map<String, Integer> distance = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>();
+        distance.put(to, 0);
+        queue.add(to);
+        while (!queue.isEmpty()) {
+            String page = queue.poll();
+            for (String linking : wiki.getBacklinks(page)) {
+                if (!distance.containsKey(linking)) {
+                    distance.put(linking, distance.get(page) + 1);
+                    queue.add(linking);
+                }
+            }
+        }
+        if (!distance.containsKey(from)) {
+            return Collections.emptyList();
+        }
+
+        List<String> path = new ArrayList<>(Collections.singletonList(from));
+        String page = from;
+        while (!page.equals(to)) {
+            String best = null;
+            for (String link : wiki.getLinksOnPage(page)) {
+                if (distance.getOrDefault(link, -1) == distance.get(page) - 1
+                        && (best == null || link.compareTo(best) < 0)) {
+                    best = link;
+                }
+            }
+            page = best;
+            path.add(page);
+        }
+        return path;
+    }
+
+    private static List<Thread> pathSearchThreads() {
+        List<Thread> threads = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("path-search-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
 }
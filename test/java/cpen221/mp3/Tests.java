@@ -2,6 +2,13 @@ package cpen221.mp3;
 
 import cpen221.mp3.fsftbuffer.*;
 import org.junit.Test;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -283,6 +290,325 @@ public class Tests {
         }
     }
 
+    @Test
+    public void test_stripedConcurrency1() throws InterruptedException {
+        // five objects per segment, so all five fit however their ids are spread
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(20, 10, 4);
+        Test_Task2 testBuffer = new Test_Task2(buffer);
+
+        Thread testThread1 = new Thread(testBuffer);
+        Thread testThread2 = new Thread(testBuffer);
+        Thread testThread3 = new Thread(testBuffer);
+
+        testThread1.start();
+        testThread2.start();
+        testThread3.start();
+        testThread1.join();
+        testThread2.join();
+        testThread3.join();
+
+        for (String str : new String[] {"a", "b", "c", "d", "e"}) {
+            BufferableString t = new BufferableString(str);
+            try {
+                assertEquals(t, buffer.get(t.id()));
+            } catch (ObjectNotFoundException e) {
+                fail(str + " should still be in the buffer");
+            }
+        }
+    }
+
+    @Test
+    public void test_stripedGetTouch() {
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(8, 1, 4);
+        BufferableString t = new BufferableString("striped");
+        assertTrue(buffer.put(t));
+        assertFalse(buffer.put(t));
+        try {
+            assertEquals(t, buffer.get(t.id()));
+            Thread.sleep(1010);
+        } catch (Exception e) {
+            fail("Test failed.");
+        }
+        assertFalse(buffer.touch(t.id()));
+    }
+
+    @Test
+    public void test_stripedCapacity() throws InterruptedException {
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(8, 100, 4);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i * 100;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    buffer.put(new BufferableString("item" + (offset + j)));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int live = 0;
+        for (int i = 0; i < 400; i++) {
+            if (buffer.touch(new BufferableString("item" + i).id())) {
+                live++;
+            }
+        }
+        assertTrue(live > 0);
+        assertTrue(live <= 8);
+    }
+
+    @Test
+    public void test_wikiPageText() {
+        StringBuilder article = new StringBuilder();
+        for (int i = 0; i < 2_000; i++) {
+            article.append("Line ").append(i).append(" of the article, caf\u00e9 \u4e2d\u6587 \ud83d\ude00.\n");
+        }
+        StringBuilder noise = new StringBuilder();
+        Random random = new Random(221);
+        for (int i = 0; i < 4 * BufferableWikiPage.COMPRESSION_THRESHOLD; i++) {
+            noise.append((char) random.nextInt(0xd800));
+        }
+        String[] texts = {
+                "",
+                "A short page.",
+                article.toString(),
+                noise.toString(),
+                article + "\ud800 unpaired",
+        };
+        for (String text : texts) {
+            BufferableWikiPage page = new BufferableWikiPage("Title", text);
+            assertEquals("Title", page.id());
+            assertEquals(text, page.getPageText());
+            assertEquals(text, page.getPageText());
+        }
+    }
+
+    @Test
+    public void test_evictionListener() throws InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        List<Long> expiries = new ArrayList<>();
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(2, 1, 1, (t, expiry) -> {
+            evicted.add(t.id());
+            expiries.add(expiry);
+        });
+        BufferableString a = new BufferableString("a");
+        long before = System.currentTimeMillis();
+        buffer.put(a);
+        buffer.put(new BufferableString("b"));
+        buffer.put(new BufferableString("c"));
+        assertEquals(Arrays.asList(a.id()), evicted);
+        assertTrue(expiries.get(0) >= before + 1000);
+        assertTrue(expiries.get(0) <= System.currentTimeMillis() + 1000);
+
+        // objects that time out are dropped, not passed on
+        Thread.sleep(1010);
+        buffer.put(new BufferableString("d"));
+        buffer.put(new BufferableString("e"));
+        assertEquals(1, evicted.size());
+    }
+
+    @Test
+    public void test_weightedCapacity() throws ObjectNotFoundException {
+        List<String> evicted = new ArrayList<>();
+        FSFTBuffer<Bufferable> buffer = FSFTBuffer.weighted(100, 60, 1, (t, expiry) -> evicted.add(t.id()));
+        assertTrue(buffer.put(weighing("a", 10)));
+        assertTrue(buffer.put(weighing("b", 10)));
+        assertTrue(buffer.put(weighing("article", 60)));
+        assertTrue(buffer.put(weighing("c", 10)));
+
+        // the article is the heaviest of the least recently accessed, and frees enough room on its own
+        assertTrue(buffer.put(weighing("d", 20)));
+        assertEquals(Arrays.asList("article"), evicted);
+        for (String id : Arrays.asList("a", "b", "c", "d")) {
+            assertTrue(buffer.touch(id));
+        }
+
+        // an object heavier than the whole buffer is never held, and evicts nothing
+        assertFalse(buffer.put(weighing("huge", 101)));
+        assertEquals(1, evicted.size());
+
+        // an update that makes an object heavier evicts others to make room, never the object itself
+        assertTrue(buffer.update(weighing("a", 70)));
+        assertEquals(Arrays.asList("article", "d"), evicted);
+        assertEquals(70, buffer.get("a").weight());
+        assertTrue(buffer.touch("b"));
+        assertTrue(buffer.touch("c"));
+
+        // pages weigh the memory their text takes, and every other bufferable weighs 1
+        StringBuilder article = new StringBuilder();
+        for (int i = 0; i < 1_000; i++) {
+            article.append("Line ").append(i).append(" of the article.\n");
+        }
+        assertEquals(2 * "stub".length(), new BufferableWikiPage("Stub", "stub").weight());
+        assertTrue(new BufferableWikiPage("Article", article.toString()).weight() < article.length());
+        assertEquals(1, new BufferableString("a").weight());
+    }
+
+    @Test
+    public void test_admission() {
+        for (boolean admission : new boolean[] {false, true}) {
+            FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(10, 60, 1, null, admission);
+            List<BufferableString> hot = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                hot.add(new BufferableString("hot " + i));
+                buffer.put(hot.get(i));
+            }
+            for (int round = 0; round < 5; round++) {
+                for (BufferableString page : hot) {
+                    assertTrue(buffer.touch(page.id()));
+                }
+            }
+
+            // a scan of titles asked for once each, while the hot ones go on being asked for
+            int hotHits = 0;
+            for (int i = 0; i < 1_000; i++) {
+                BufferableString once = new BufferableString("once " + i);
+                if (!buffer.touch(once.id())) {
+                    buffer.put(once);
+                }
+                hotHits += buffer.touch(hot.get(i % 10).id()) ? 1 : 0;
+            }
+            if (admission) {
+                assertEquals(1_000, hotHits);
+            } else {
+                assertTrue(hotHits < 100);
+            }
+        }
+
+        // a title that starts being asked for often is admitted once it is asked for more than the eldest
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(2, 60, 1, null, true);
+        BufferableString a = new BufferableString("a");
+        BufferableString b = new BufferableString("b");
+        BufferableString c = new BufferableString("c");
+        assertTrue(buffer.put(a));
+        assertTrue(buffer.put(b));
+        assertTrue(buffer.touch(a.id()));
+        assertFalse(buffer.put(c));
+        assertFalse(buffer.touch(c.id()));
+        assertTrue(buffer.put(c));
+        assertFalse(buffer.touch(b.id()));
+        assertTrue(buffer.touch(a.id()));
+    }
+
+    @Test
+    public void test_backgroundSweep() throws InterruptedException {
+        for (boolean sweep : new boolean[] {false, true}) {
+            FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(10_000, 1, 4);
+            List<WeakReference<BufferableString>> references = new ArrayList<>();
+            for (int i = 0; i < 3_000; i++) {
+                BufferableString s = new BufferableString("s" + i);
+                buffer.put(s);
+                references.add(new WeakReference<>(s));
+            }
+            if (sweep) {
+                buffer.sweepInBackground();
+                buffer.sweepInBackground();
+            }
+
+            // nothing touches the buffer once its objects time out
+            Thread.sleep(3_000);
+            System.gc();
+            int held = 0;
+            for (WeakReference<BufferableString> reference : references) {
+                held += reference.get() == null ? 0 : 1;
+            }
+            assertEquals(sweep ? 0 : 3_000, held);
+            assertFalse(buffer.touch(new BufferableString("s0").id()));
+        }
+    }
+
+    @Test
+    public void test_offHeapPageStore() throws Exception {
+        StringBuilder article = new StringBuilder();
+        for (int i = 0; i < 2_000; i++) {
+            article.append("Line ").append(i).append(" of the article.\n");
+        }
+        Path file = Files.createTempFile("pages", ".slab");
+        try {
+            for (OffHeapPageStore store : new OffHeapPageStore[] {new OffHeapPageStore(1 << 16),
+                    new OffHeapPageStore(file, 1 << 16)}) {
+                long expiry = System.currentTimeMillis() + 60_000;
+                store.evicted(new BufferableWikiPage("Article", article.toString()), expiry);
+                store.evicted(new BufferableWikiPage("Short", "short \u00e9"), expiry);
+                store.evicted(new BufferableWikiPage("Expired", "expired"), System.currentTimeMillis() - 1);
+                assertEquals(3, store.size());
+
+                assertEquals(article.toString(), store.take("Article").page().getPageText());
+                assertNull(store.take("Article"));
+                assertEquals("short \u00e9", store.take("Short").page().getPageText());
+                assertNull(store.take("Expired"));
+                assertEquals(0, store.size());
+
+                // once the store is full, each page written over the oldest ones evicts them
+                for (int i = 0; i < 1_000; i++) {
+                    store.evicted(new BufferableWikiPage("Page " + i, "text of page " + i + " "
+                            + article.substring(0, 100)), expiry);
+                }
+                assertTrue(store.size() < 1_000);
+                assertNull(store.take("Page 0"));
+                for (int i = 1_000 - store.size(); i < 1_000; i++) {
+                    assertTrue(store.take("Page " + i).page().getPageText().startsWith("text of page " + i + " "));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void test_putWithExpiry() throws InterruptedException {
+        FSFTBuffer<BufferableString> buffer = new FSFTBuffer<>(2, 10);
+        BufferableString early = new BufferableString("early");
+        BufferableString late = new BufferableString("late");
+        BufferableString newest = new BufferableString("newest");
+        long now = System.currentTimeMillis();
+
+        assertFalse(buffer.put(early, now - 1));
+        assertTrue(buffer.put(late, now + 5_000));
+        assertTrue(buffer.put(early, now + 500));
+        // early times out first, so it counts as the least recently accessed
+        assertTrue(buffer.put(newest));
+        assertFalse(buffer.touch(early.id()));
+        assertTrue(buffer.touch(late.id()));
+
+        buffer.put(early, System.currentTimeMillis() + 500);
+        assertTrue(buffer.touch(early.id()));
+        Thread.sleep(1_100);
+        // touching early pushed it to the full timeout again
+        assertTrue(buffer.touch(early.id()));
+        assertTrue(buffer.put(new BufferableString("other"), System.currentTimeMillis() + 200));
+        Thread.sleep(300);
+        assertFalse(buffer.touch(new BufferableString("other").id()));
+    }
+
+    @Test
+    public void test_offHeapPageStoreEmptyPage() {
+        // the mediator caches "" for missing titles, so empty pages are evicted like any other
+        OffHeapPageStore store = new OffHeapPageStore(1 << 12);
+        long expiry = System.currentTimeMillis() + 60_000;
+        store.evicted(new BufferableWikiPage("Missing", ""), expiry);
+        StringBuilder filler = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            filler.append('x');
+        }
+        // enough pages to wrap round the slab several times
+        for (int i = 0; i < 100; i++) {
+            store.evicted(new BufferableWikiPage("Page " + i, i + " " + filler), expiry);
+        }
+        assertNull(store.take("Missing"));
+        int held = 0;
+        for (int i = 0; i < 100; i++) {
+            OffHeapPageStore.StoredPage page = store.take("Page " + i);
+            if (page != null) {
+                assertEquals(i + " " + filler, page.page().getPageText());
+                held++;
+            }
+        }
+        assertTrue(held > 0);
+    }
+
     private class Test_Task2 implements Runnable
     {
         FSFTBuffer<BufferableString> buffer;
@@ -329,4 +655,21 @@ public class Tests {
             }
         }
     }
-}
\ No newline at end of file
+
+    // Helper Methods in private
+
+    //a bufferable with the given id and weight
+    private static Bufferable weighing(String id, long weight) {
+        return new Bufferable() {
+            @Override
+            public String id() {
+                return id;
+            }
+
+            @Override
+            public long weight() {
+                return weight;
+            }
+        };
+    }
+}